@@ -1,15 +1,82 @@
 //Atm simulator single file project 
 //Atm simultor Gui version 
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.sql.*;                 // JDBC imports added
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 // Interface for basic transaction
@@ -23,519 +90,8503 @@ interface AccountOperations {
     void withdraw(int amount) throws InsufficientFundsException;
 }
 
+// General ATM failure (bad credentials, bad amount, expired session...)
+class AtmException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public AtmException(String message) {
+        super(message);
+    }
+}
+
 // Custom exception for insufficient funds
-class InsufficientFundsException extends Exception {
+class InsufficientFundsException extends AtmException {
+    private static final long serialVersionUID = 1L;
+
     public InsufficientFundsException(String message) {
         super(message);
     }
 }
 
+// kinds of entries recorded on an account
+enum TxType {
+    DEPOSIT("Deposited"),
+    WITHDRAWAL("Withdrew"),
+    CHEQUE("Cheque deposit"),
+    TRANSFER("Transferred out"),
+    TRANSFER_IN("Received transfer"),
+    INTEREST("Interest credited"),
+    OPEN("Account opened");
+
+    private static final TxType[] VALUES = values();
+
+    final String label;
+
+    TxType(String label) {
+        this.label = label;
+    }
+
+    static TxType fromCode(int code) {
+        return VALUES[code];
+    }
+}
+
+// Fixed-capacity ring of the most recent transactions on one account. Each entry is packed
+// into primitive longs (type+amount, balance after, timestamp) and only turned into a String
+// when somebody displays it. Writers claim a sequence number and publish the slot through a
+// per-slot stamp, so readers never block writers and never see a half written entry.
+class MiniStatement {
+
+    // receives one entry without allocating
+    interface Visitor {
+        void visit(TxType type, long amount, long balanceAfter, long timestampMillis);
+    }
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final int SLOT_WIDTH = 4;       // stamp, type|amount, balance, timestamp
+    private static final int AMOUNT_BITS = 56;
+    private static final long AMOUNT_MASK = (1L << AMOUNT_BITS) - 1;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    // stamp = seq + 1 once published, -(seq + 1) while being written, 0 when empty
+    private final AtomicLongArray slots;
+
+    public MiniStatement() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MiniStatement(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicLongArray(capacity * SLOT_WIDTH);
+    }
+
+    public void record(TxType type, long amount, long balanceAfter) {
+        long seq = next.getAndIncrement();
+        int base = (int) (seq & mask) * SLOT_WIDTH;
+        long previous = seq < capacity ? 0 : seq - capacity + 1;
+
+        // only wait if a writer one full lap behind has not published yet
+        while (!slots.compareAndSet(base, previous, -(seq + 1)))
+            Thread.yield();
+
+        slots.set(base + 1, ((long) type.ordinal() << AMOUNT_BITS) | (amount & AMOUNT_MASK));
+        slots.set(base + 2, balanceAfter);
+        slots.set(base + 3, System.currentTimeMillis());
+        slots.set(base, seq + 1); // publish
+    }
+
+    // total number of entries ever recorded (not just the ones still held)
+    public long count() {
+        return next.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // visits up to n of the most recent entries, oldest first; returns how many were visited
+    public int forEachRecent(int n, Visitor visitor) {
+        long hi = next.get();
+        long lo = Math.max(0, hi - Math.min(n, capacity));
+        int visited = 0;
+        for (long seq = lo; seq < hi; seq++) {
+            int base = (int) (seq & mask) * SLOT_WIDTH;
+            long stamp = slots.get(base);
+            if (stamp != seq + 1) continue;       // still being written, or already overwritten
+            long typeAmount = slots.get(base + 1);
+            long balance = slots.get(base + 2);
+            long time = slots.get(base + 3);
+            if (slots.get(base) != stamp) continue; // overwritten while we were reading
+            visitor.visit(TxType.fromCode((int) (typeAmount >>> AMOUNT_BITS)),
+                    typeAmount & AMOUNT_MASK, balance, time);
+            visited++;
+        }
+        return visited;
+    }
+
+    // rendered lines for display, oldest first
+    public List<String> render(int n) {
+        final List<String> lines = new ArrayList<String>(Math.min(n, capacity));
+        forEachRecent(n, new Visitor() {
+            public void visit(TxType type, long amount, long balanceAfter, long timestampMillis) {
+                lines.add(format(type, amount, balanceAfter));
+            }
+        });
+        return lines;
+    }
+
+    static String format(TxType type, long amount, long balanceAfter) {
+        return type.label + " Rs" + amount + " (Balance: Rs" + balanceAfter + ")";
+    }
+}
+
 // Base account class
+// balance is updated with CAS on a volatile field - no monitor, and reads are always visible
 class Account {
-    protected int balance;
-    protected List<String> miniStatement;
+    private static final AtomicLongFieldUpdater<Account> BALANCE =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "balance");
+    private static final AtomicLongFieldUpdater<Account> HELD =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "held");
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private volatile long balance;
+    // headroom kept free for money that transfers in flight debited here, so a refund always fits
+    private volatile long held;
+    protected final MiniStatement miniStatement;
+    private final long id = NEXT_ID.incrementAndGet(); // unique per account
 
     public Account(int initialBalance) {
         this.balance = initialBalance;
-        this.miniStatement = new ArrayList<String>();
+        this.miniStatement = new MiniStatement();
+    }
+
+    public long getId() {
+        return id;
     }
 
     public int getBalance() {
-        return balance;
+        return Math.toIntExact(balance);
     }
 
+    // rendered copy of the recent entries still held in the ring, oldest first
     public List<String> getMiniStatement() {
+        return miniStatement.render(miniStatement.capacity());
+    }
+
+    public MiniStatement getStatement() {
         return miniStatement;
     }
+
+    // lock-free credit, returns the new balance
+    protected final long credit(long amount) {
+        for (;;) {
+            long current = balance;
+            long next = current + amount;
+            if (next + held > Integer.MAX_VALUE)
+                throw new ArithmeticException("Balance overflow");
+            if (BALANCE.compareAndSet(this, current, next))
+                return next;
+            Metrics.ACCOUNT_CAS_RETRIES.increment(); // lost a race, only paid under contention
+        }
+    }
+
+    // overdraft-safe debit: returns the new balance, or -1 if the balance is too low
+    protected final long tryDebit(long amount) {
+        for (;;) {
+            long current = balance;
+            if (amount > current)
+                return -1;
+            if (BALANCE.compareAndSet(this, current, current - amount))
+                return current - amount;
+            Metrics.ACCOUNT_CAS_RETRIES.increment();
+        }
+    }
+
+    // credit of money whose headroom was set aside earlier (striped shares, held transfers);
+    // never fails
+    protected final long creditReserved(long amount) {
+        return BALANCE.addAndGet(this, amount);
+    }
+
+    // Before a transfer debits this account it holds the amount, so deposits cannot use the
+    // headroom the debit frees; the hold is released once the target is credited, or turned
+    // back into balance by refund if it is not. Deposits between hold and debit see the
+    // amount twice and may be refused early, never late.
+    protected final void hold(long amount) {
+        HELD.addAndGet(this, amount);
+    }
+
+    protected final void releaseHold(long amount) {
+        HELD.addAndGet(this, -amount);
+    }
+
+    protected final void refund(long amount) {
+        creditReserved(amount);
+        releaseHold(amount);
+    }
+
+    // settled balance only, without anything a subclass may still be holding back
+    protected final long settledBalance() {
+        return balance;
+    }
+
+    protected final long heldBalance() {
+        return held;
+    }
 }
 
 // SavingsAccount: shows inheritance, polymorphism, implements interfaces
+// Balance updates are CAS based. Deposit-heavy accounts (e.g. merchants) can turn on striped
+// deposits: each thread adds into its own padded cell and withdrawals fold the cells back into
+// the balance before deciding, so the overdraft check stays linearizable. Each cell also carries
+// a share of the headroom left below Integer.MAX_VALUE, so striped deposits can never overflow
+// the balance; a deposit bigger than its cell's share settles and credits with the exact check.
 class SavingsAccount extends Account implements Transaction, AccountOperations {
 
+    // one cell per stripe, spaced a cache line apart to avoid false sharing
+    private static final int CELL_STRIDE = 8;
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1))); // next power of two
+
+    private static final Counter STRIPE_DRAINS =
+            Metrics.counter("atm_striped_drains_total", "Withdrawals that had to fold striped deposits first");
+
+    // each cell packs (headroom share << 32) | pending deposits, both non-negative ints; a
+    // deposit moves money from the share to the pending half in one CAS, so settled balance +
+    // held + pending + shares never exceeds Integer.MAX_VALUE
+    private final AtomicLongArray pendingDeposits; // null unless striped
+    // odd while a thread is folding the cells into the settled balance (money in flight)
+    private final AtomicInteger settling;
+
     public SavingsAccount(int initialBalance) {
+        this(initialBalance, false);
+    }
+
+    public SavingsAccount(int initialBalance, boolean stripedDeposits) {
         super(initialBalance);
+        this.pendingDeposits = stripedDeposits ? new AtomicLongArray(STRIPES * CELL_STRIDE) : null;
+        this.settling = stripedDeposits ? new AtomicInteger() : null;
+        if (stripedDeposits) refillShares();
+    }
+
+    public boolean isStriped() {
+        return pendingDeposits != null;
+    }
+
+    @Override
+    public int getBalance() {
+        if (pendingDeposits == null) return super.getBalance();
+        return stripedBalance();
     }
 
     @Override
-    public synchronized void perform(int amount) {
-        // deposit logic
-        balance += amount;
-        miniStatement.add("Deposited Rs" + amount + " (Balance: Rs" + balance + ")");
+    public void perform(int amount) {
+        depositAndGet(amount);
     }
 
     @Override
-    public synchronized void deposit(int amount) {
+    public void deposit(int amount) {
         perform(amount); // reuse
     }
 
     @Override
-    public synchronized void withdraw(int amount) throws InsufficientFundsException {
-        if (amount > balance)
-            throw new InsufficientFundsException("Insufficient balance.");
-        balance -= amount;
-        miniStatement.add("Withdrew Rs" + amount + " (Balance: Rs" + balance + ")");
+    public void withdraw(int amount) throws InsufficientFundsException {
+        withdrawAndGet(amount);
     }
-}
 
-//Database 
-class DatabaseManager {
+    // deposit logic, returns the balance after this deposit
+    public int depositAndGet(int amount) {
+        return depositAndGet(amount, TxType.DEPOSIT);
+    }
 
-    // update these if you want to test with real DB
-    private static final String JDBC_URL = "jdbc:mysql://localhost:3306/atm_db";
-    private static final String DB_USER = "root";
-    private static final String DB_PASS = "password";
+    public int depositAndGet(int amount, TxType type) {
+        int after = add(amount);
+        miniStatement.record(type, amount, after);
+        return after;
+    }
 
-    // get DB connection (stubbed) - shows Class.forName and DriverManager usage
-    public static Connection getConnection() throws SQLException, ClassNotFoundException {
+    public int withdrawAndGet(int amount) throws InsufficientFundsException {
+        int after = take(amount);
+        miniStatement.record(TxType.WITHDRAWAL, amount, after);
+        return after;
+    }
+
+    // Moves amount between two accounts as two lock-free legs: an overdraft-checked debit of the
+    // source, then a credit of the target, each a single CAS like any deposit or withdrawal. If
+    // the credit fails (balance limit) the debit is compensated by refunding the source, which
+    // cannot overflow: the source holds the amount's headroom until the transfer is over.
+    // Between the legs the money is in flight: a reader adding both balances can briefly come up
+    // short, but nothing can spend it twice. Returns {from balance after, to balance after}.
+    public static int[] transfer(SavingsAccount from, SavingsAccount to, int amount)
+            throws InsufficientFundsException {
+        if (from == to) throw new IllegalArgumentException("Cannot transfer to the same account");
+        int fromAfter = from.reserveTransfer(amount);
+        int toAfter;
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver"); // will throw if driver not present
-            return DriverManager.getConnection(JDBC_URL, DB_USER, DB_PASS);
-        } catch (ClassNotFoundException cnfe) {
-            // driver missing - fallback so program doesn't crash
-            System.out.println("JDBC Driver not found (driver missing). Continuing without real DB.");
-            throw cnfe;
-        } catch (SQLException se) {
-            System.out.println("JDBC Connection failed: " + se.getMessage());
-            throw se;
+            toAfter = to.add(amount);
+        } catch (ArithmeticException overflow) {
+            from.refund(amount);
+            throw overflow;
         }
+        from.releaseHold(amount);
+        from.miniStatement.record(TxType.TRANSFER, amount, fromAfter);
+        to.miniStatement.record(TxType.TRANSFER_IN, amount, toAfter);
+        return new int[]{fromAfter, toAfter};
     }
 
-    // Insert transaction with PreparedStatement (shows implementation)
-    public static void insertTransaction(String user, String detail) {
-      //try real DB, may be on console it fails 
-        Connection con = null;
-        PreparedStatement ps = null;
+    // Bulk transfer legs, the same two CAS legs run as separate steps: the batch reserves money
+    // on the source, credits the target, and refunds the reservation if that credit fails.
+    // Every successful reserveTransfer must end in completeTransfer or releaseTransfer.
+    int reserveTransfer(int amount) throws InsufficientFundsException {
+        hold(amount);
         try {
-            con = getConnection();
-            String sql = "INSERT INTO transactions(username, detail, created_at) VALUES (?, ?, NOW())";
-            ps = con.prepareStatement(sql);
-            ps.setString(1, user);
-            ps.setString(2, detail);
-            ps.executeUpdate();
-            System.out.println("DB Inserted (JDBC): " + user + " - " + detail);
-        } catch (ClassNotFoundException | SQLException e) {
-           
-            System.out.println("DB Insert fallback: " + user + " - " + detail);
-        } finally {
-           
-            try { if (ps != null) ps.close(); } catch (Exception ignored) {}
-            try { if (con != null) con.close(); } catch (Exception ignored) {}
+            return take(amount);
+        } catch (InsufficientFundsException e) {
+            releaseHold(amount);
+            throw e;
         }
     }
 
-    // Update PIN example with PreparedStatement
-    public static void updatePIN(String user, int newPin) {
-        Connection con = null;
-        PreparedStatement ps = null;
+    int receiveTransfer(int amount) {
+        int after = add(amount);
+        miniStatement.record(TxType.TRANSFER_IN, amount, after);
+        return after;
+    }
+
+    void completeTransfer(int amount, int balanceAfter) {
+        releaseHold(amount);
+        miniStatement.record(TxType.TRANSFER, amount, balanceAfter);
+    }
+
+    void releaseTransfer(int amount) {
+        refund(amount);
+    }
+
+    // credit without a statement entry, returns the balance shown after it
+    private int add(int amount) {
+        if (pendingDeposits == null)
+            return (int) credit(amount);
+        int i = stripe();
+        for (;;) {
+            long cell = pendingDeposits.get(i);
+            if ((cell >>> 32) < amount) break; // share used up, take the exact path below
+            if (pendingDeposits.compareAndSet(i, cell, cell - ((long) amount << 32) + amount))
+                return stripedBalance();
+            Metrics.ACCOUNT_CAS_RETRIES.increment();
+        }
+        beginSettle();
         try {
-            con = getConnection();
-            String sql = "UPDATE users SET pin = ? WHERE username = ?";
-            ps = con.prepareStatement(sql);
-            ps.setInt(1, newPin);
-            ps.setString(2, user);
-            int rows = ps.executeUpdate();
-            System.out.println("DB Update PIN (JDBC) rows:" + rows);
-        } catch (ClassNotFoundException | SQLException e) {
-            System.out.println("DB Update PIN fallback for " + user + " -> " + newPin);
+            drainPendingDeposits();
+            return (int) credit(amount); // cells are empty, so this checks the whole balance
         } finally {
-            try { if (ps != null) ps.close(); } catch (Exception ignored) {}
-            try { if (con != null) con.close(); } catch (Exception ignored) {}
+            endSettle();
         }
     }
-}
 
-public class AtmSimulatorGui {
+    private int take(int amount) throws InsufficientFundsException {
+        long after = tryDebit(amount);
+        if (pendingDeposits == null) {
+            if (after < 0) throw new InsufficientFundsException("Insufficient balance.");
+            return (int) after;
+        }
+        if (after < 0) {
+            // not enough settled money - fold striped deposits in and decide while no other
+            // thread has deposits in flight, so the settled balance is the whole balance
+            STRIPE_DRAINS.increment();
+            beginSettle();
+            try {
+                drainPendingDeposits();
+                after = tryDebit(amount);
+            } finally {
+                endSettle();
+            }
+            if (after < 0) throw new InsufficientFundsException("Insufficient balance.");
+        }
+        return stripedBalance();
+    }
 
-    // Collections usage - rubric point (Map + List)
-    private static Map<String, SavingsAccount> accountsMap = new HashMap<String, SavingsAccount>();
-    private static Map<String, Integer> userPinMap = new HashMap<String, Integer>();
-    private static String currentUser;
+    // settled balance plus pending deposits, read while no fold is in progress
+    private int stripedBalance() {
+        for (;;) {
+            int seq = settling.get();
+            if ((seq & 1) == 0) {
+                long total = settledBalance();
+                for (int i = 0; i < STRIPES; i++)
+                    total += (int) pendingDeposits.get(i * CELL_STRIDE);
+                if (settling.get() == seq) return (int) total;
+            }
+            Thread.yield();
+        }
+    }
 
-    public static void main(String[] args) {
-        // demo user
-        userPinMap.put("Priyanshu", 1234);
-        accountsMap.put("Priyanshu", new SavingsAccount(10000));
+    private void beginSettle() {
+        for (;;) {
+            int seq = settling.get();
+            if ((seq & 1) == 0 && settling.compareAndSet(seq, seq + 1)) return;
+            Thread.yield();
+        }
+    }
 
-        // start GUI on EDT
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                showLoginScreen();
-            }
-        });
+    private void endSettle() {
+        refillShares();
+        settling.incrementAndGet();
     }
 
-    private static void showLoginScreen() {
-        final JFrame loginFrame = new JFrame("ATM Simulator");
-        loginFrame.setSize(400, 300);
-        loginFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        loginFrame.setLocationRelativeTo(null);
+    // folds the striped cells into the settled balance, returns how much was moved. Emptied
+    // cells have no share left, so no deposit lands in them until endSettle refills them.
+    private long drainPendingDeposits() {
+        long moved = 0;
+        for (int i = 0; i < STRIPES; i++)
+            moved += (int) pendingDeposits.getAndSet(i * CELL_STRIDE, 0);
+        if (moved != 0) creditReserved(moved); // fits: it came out of the headroom shares
+        return moved;
+    }
 
-        JPanel panel = new JPanel();
-        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-        panel.setBorder(BorderFactory.createEmptyBorder(20, 40, 20, 40));
-        panel.setBackground(new Color(240, 248, 255));
+    // hands out the headroom left above the settled balance and held transfers, an equal share
+    // per cell; only called on empty cells (construction or while settling). Between a hold and
+    // its debit the two overlap, so the headroom can briefly come out negative.
+    private void refillShares() {
+        long share = Math.max(0, Integer.MAX_VALUE - settledBalance() - heldBalance()) / STRIPES;
+        for (int i = 0; i < STRIPES; i++)
+            pendingDeposits.set(i * CELL_STRIDE, share << 32);
+    }
 
-        JLabel title = new JLabel("ATM Login");
-        title.setFont(new Font("Arial", Font.BOLD, 22));
-        title.setAlignmentX(Component.CENTER_ALIGNMENT);
+    private static int stripe() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & (STRIPES - 1)) * CELL_STRIDE;
+    }
+}
 
-        final JTextField usernameField = new JTextField(15);
-        final JPasswordField pinField = new JPasswordField(15);
+// Metrics
 
-        JButton loginBtn = new JButton("Login");
-        JButton createBtn = new JButton("Create Account");
+// point-in-time reading for a gauge
+interface Gauge {
+    long value();
+}
 
-        loginBtn.setFont(new Font("SansSerif", Font.BOLD, 14));
-        createBtn.setFont(new Font("SansSerif", Font.BOLD, 14));
-        loginBtn.setBackground(new Color(60, 179, 113));
-        createBtn.setBackground(new Color(100, 149, 237));
-        loginBtn.setForeground(Color.WHITE);
-        createBtn.setForeground(Color.WHITE);
+// monotonically increasing count, cheap under contention
+class Counter {
+    private final LongAdder adder = new LongAdder();
 
-        panel.add(title);
-        panel.add(Box.createRigidArea(new Dimension(0, 20)));
+    public void increment() {
+        adder.increment();
+    }
 
-        panel.add(new JLabel("Username:"));
-        panel.add(usernameField);
-        panel.add(Box.createRigidArea(new Dimension(0, 10)));
+    public void add(long n) {
+        adder.add(n);
+    }
 
-        panel.add(new JLabel("PIN:"));
-        panel.add(pinField);
-        panel.add(Box.createRigidArea(new Dimension(0, 20)));
+    public long get() {
+        return adder.sum();
+    }
+}
 
-        panel.add(loginBtn);
-        panel.add(Box.createRigidArea(new Dimension(0, 10)));
-        panel.add(createBtn);
+// HDR-style latency histogram in nanoseconds: log-linear buckets with 32 linear sub-buckets
+// per power of two (about 3% relative error), fixed size, lock-free recording. Bucket counts
+// are striped by thread so concurrent callers hitting the same bucket do not share a line.
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+    private static final int STRIPES = Math.min(8, Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors())));
 
-        loginFrame.add(panel);
-        loginFrame.setVisible(true);
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
 
-        // login action
-        loginBtn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++)
+            counts[i] = new AtomicLongArray(BUCKETS);
+    }
 
-                String username = usernameField.getText();
-                if (username == null || username.trim().isEmpty()) {
-                    JOptionPane.showMessageDialog(loginFrame, "Please enter username.");
-                    return;
-                }
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[stripe()].incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        long m;
+        while (nanos > (m = max.get())) {
+            if (max.compareAndSet(m, nanos)) break;
+        }
+    }
 
-                String pinText = new String(pinField.getPassword()).trim();
-                int pin;
+    // records the time since startNanos
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
 
-                try {
-                    pin = Integer.parseInt(pinText);
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(loginFrame, "Invalid PIN format.");
-                    return;
-                }
+    private static int stripe() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (STRIPES - 1);
+    }
 
-                if (userPinMap.containsKey(username) &&
-                        Objects.equals(userPinMap.get(username), pin)) {
+    static int index(long v) {
+        if (v < (1L << SUB_BITS)) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (v >>> shift);
+    }
 
-                    currentUser = username;
-                    loginFrame.dispose();
-                    showMainMenu();
-                } else {
-                    JOptionPane.showMessageDialog(loginFrame, "Wrong credentials! Access Denied.");
-                }
-            }
-        });
+    // upper edge of a bucket
+    static long highestValue(int index) {
+        if (index < (2 << SUB_BITS)) return index;
+        int shift = (index >>> SUB_BITS) - 1;
+        long m = index - ((long) shift << SUB_BITS);
+        return ((m + 1) << shift) - 1;
+    }
 
-        // create account action
-        createBtn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
+    public long getCount() {
+        return count.sum();
+    }
 
-                String newUser = JOptionPane.showInputDialog(loginFrame, "Enter new username:");
-                if (newUser == null) return;
-                newUser = newUser.trim();
+    public long getSumNanos() {
+        return sum.sum();
+    }
 
-                if (newUser.isEmpty()) {
-                    JOptionPane.showMessageDialog(loginFrame, "Invalid username.");
-                    return;
-                }
+    public long getMaxNanos() {
+        return max.get();
+    }
 
-                if (userPinMap.containsKey(newUser)) {
-                    JOptionPane.showMessageDialog(loginFrame, "Username already exists.");
-                    return;
-                }
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : sum.sum() / (double) n;
+    }
 
-                String newPinStr = JOptionPane.showInputDialog(loginFrame, "Set your 4-digit PIN:");
-                if (newPinStr == null) return;
+    // value at quantile q (0..1), upper bucket edge
+    public long percentile(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : counts) {
+            for (int i = 0; i < BUCKETS; i++)
+                snapshot[i] += stripe.get(i);
+        }
+        for (long c : snapshot)
+            total += c;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
 
-                int newPin;
-                try {
-                    newPin = Integer.parseInt(newPinStr.trim());
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(loginFrame, "Invalid PIN format.");
-                    return;
-                }
+    public void reset() {
+        for (AtomicLongArray stripe : counts) {
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
 
-                userPinMap.put(newUser, newPin);
-                accountsMap.put(newUser, new SavingsAccount(10000));
+// per engine operation: latency plus failure counts
+class OpMetrics {
+    final LatencyHistogram latency;
+    final Counter errors;
 
-                DatabaseManager.insertTransaction(newUser, "Account created - initial balance Rs10000");
-                JOptionPane.showMessageDialog(loginFrame, "Account created successfully for " + newUser);
-            }
-        });
+    private OpMetrics(String op) {
+        this.latency = Metrics.histogram("atm_operation_seconds{op=\"" + op + "\"}", "ATM operation latency");
+        this.errors = Metrics.counter("atm_operation_errors_total{op=\"" + op + "\"}", "ATM operations that failed");
     }
 
-    private static void showMainMenu() {
-        final JFrame menuFrame = new JFrame("ATM Menu - " + currentUser);
-        menuFrame.setSize(450, 450);
-        menuFrame.setLayout(new GridLayout(9, 1, 6, 6));
-        menuFrame.setLocationRelativeTo(null);
-        menuFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+    static OpMetrics of(String op) {
+        return new OpMetrics(op);
+    }
 
-        String[] options = {
-                "Check Balance", "Deposit", "Withdraw", "Mini Statement",
-                "Export History", "Change PIN", "Cheque Deposit",
-                "Interest Calculator", "Exit"
-        };
+    void failed(AtmException e) {
+        errors.increment();
+        if (e instanceof InsufficientFundsException)
+            Metrics.INSUFFICIENT_FUNDS.increment();
+    }
+}
 
-        for (final String option : options) {
-            JButton btn = new JButton(option);
-            btn.setFont(new Font("SansSerif", Font.PLAIN, 14));
+// Process-wide metrics registry. Metric names follow Prometheus conventions; a label set can
+// be part of the name, e.g. atm_operation_seconds{op="deposit"}. Exposed through JMX
+// (atm:type=Metrics) and a periodic text dump in Prometheus exposition format.
+final class Metrics {
 
-            btn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    handleOption(option, menuFrame);
-                }
-            });
+    private static final class Entry {
+        final String name;
+        final String help;
+        final Object metric; // Counter, Gauge or LatencyHistogram
 
-            menuFrame.add(btn);
+        Entry(String name, String help, Object metric) {
+            this.name = name;
+            this.help = help;
+            this.metric = metric;
         }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private static ScheduledExecutorService reporter;
 
-        menuFrame.setVisible(true);
+    // shared counters used from several places
+    static final Counter INSUFFICIENT_FUNDS =
+            counter("atm_insufficient_funds_total", "Withdrawals refused for insufficient balance");
+    static final Counter ACCOUNT_CAS_RETRIES =
+            counter("atm_account_cas_retries_total", "Balance CAS attempts that lost a race (account contention)");
+
+    private Metrics() {
     }
 
-    private static SavingsAccount getCurrentAccount() {
-        return accountsMap.get(currentUser);
+    public static Counter counter(String name, String help) {
+        return (Counter) register(name, help, new Counter()).metric;
     }
 
-    private static void handleOption(String option, final JFrame frame) {
+    public static LatencyHistogram histogram(String name, String help) {
+        return (LatencyHistogram) register(name, help, new LatencyHistogram()).metric;
+    }
 
-        final SavingsAccount account = getCurrentAccount();
-        if (account == null) {
-            JOptionPane.showMessageDialog(frame, "Account error. Please login again.");
-            return;
-        }
+    // gauges are replaced on re-registration so the newest component instance wins
+    public static void gauge(String name, String help, Gauge gauge) {
+        entries.put(name, new Entry(name, help, gauge));
+    }
 
-        // CHECK BALANCE
-        if ("Check Balance".equals(option)) {
-            String msg = "Your balance is Rs" + account.getBalance();
-            if (account.getBalance() < 500)
-                msg += "\nAlert: Balance below Rs500!";
-            JOptionPane.showMessageDialog(frame, msg);
-            return;
-        }
+    private static Entry register(String name, String help, Object metric) {
+        Entry e = entries.get(name);
+        if (e != null) return e;
+        Entry fresh = new Entry(name, help, metric);
+        e = entries.putIfAbsent(name, fresh);
+        return e == null ? fresh : e;
+    }
 
-        // DEPOSIT
-        if ("Deposit".equals(option)) {
-            String depositStr = JOptionPane.showInputDialog(frame, "Enter amount to deposit:");
+    static Map<String, Object> snapshot() {
+        Map<String, Object> out = new TreeMap<String, Object>();
+        for (Entry e : entries.values())
+            out.put(e.name, e.metric);
+        return out;
+    }
 
-            if (depositStr != null && !depositStr.trim().isEmpty()) {
+    // Prometheus text exposition format; histograms are exported as summaries in seconds
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        Map<String, Entry> sorted = new TreeMap<String, Entry>(entries);
+        Set<String> described = new HashSet<String>();
+        for (Entry e : sorted.values()) {
+            String base = baseName(e.name);
+            String labels = labels(e.name);
+            String type = e.metric instanceof Counter ? "counter"
+                    : e.metric instanceof LatencyHistogram ? "summary" : "gauge";
+            if (described.add(base)) {
+                sb.append("# HELP ").append(base).append(' ').append(e.help).append('\n');
+                sb.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+            }
+            if (e.metric instanceof Counter) {
+                sb.append(e.name).append(' ').append(((Counter) e.metric).get()).append('\n');
+            } else if (e.metric instanceof Gauge) {
+                long v;
                 try {
-                    int deposit = Integer.parseInt(depositStr.trim());
-                    if (deposit <= 0) throw new NumberFormatException();
-
-                    account.deposit(deposit); // uses AccountOperations
-                    DatabaseManager.insertTransaction(currentUser, "Deposited Rs" + deposit);
-                    JOptionPane.showMessageDialog(frame, "Rs" + deposit + " deposited.");
-
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(frame, "Enter a valid positive integer amount.");
+                    v = ((Gauge) e.metric).value();
+                } catch (RuntimeException ex) {
+                    continue;
+                }
+                sb.append(e.name).append(' ').append(v).append('\n');
+            } else {
+                LatencyHistogram h = (LatencyHistogram) e.metric;
+                for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                    sb.append(base).append(withLabel(labels, "quantile=\"" + q + "\"")).append(' ')
+                      .append(h.percentile(q) / 1e9).append('\n');
                 }
+                sb.append(base).append("_sum").append(labels).append(' ').append(h.getSumNanos() / 1e9).append('\n');
+                sb.append(base).append("_count").append(labels).append(' ').append(h.getCount()).append('\n');
             }
-            return;
         }
+        return sb.toString();
+    }
 
-        // WITHDRAW
-        if ("Withdraw".equals(option)) {
-
-            String withdrawStr = JOptionPane.showInputDialog(frame, "Enter amount to withdraw:");
-            if (withdrawStr != null && !withdrawStr.trim().isEmpty()) {
+    static String baseName(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
 
-                try {
-                    int withdraw = Integer.parseInt(withdrawStr.trim());
-                    if (withdraw <= 0)
-                        throw new NumberFormatException();
+    static String labels(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? "" : name.substring(brace);
+    }
 
-                    try {
-                        account.withdraw(withdraw);
-                        DatabaseManager.insertTransaction(currentUser, "Withdrew Rs" + withdraw);
-                        JOptionPane.showMessageDialog(frame, "Rs" + withdraw + " withdrawn.");
-                    } catch (InsufficientFundsException ex) {
-                        JOptionPane.showMessageDialog(frame, ex.getMessage());
-                    }
+    private static String withLabel(String labels, String label) {
+        if (labels.isEmpty()) return "{" + label + "}";
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
 
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(frame, "Enter a valid positive integer amount.");
+    // registers the JMX bean and starts writing the dump file every periodMillis
+    public static synchronized void startReporting(final File dumpFile, long periodMillis) {
+        registerJmx();
+        if (reporter != null) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Metrics-Reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    dump(dumpFile);
+                } catch (IOException e) {
+                    System.out.println("Metrics dump failed: " + e.getMessage());
                 }
             }
-            return;
-        }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
 
-        // MINI STATEMENT
-        if ("Mini Statement".equals(option)) {
+    public static void dump(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), java.nio.charset.StandardCharsets.UTF_8);
+        try {
+            w.write(toPrometheus());
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+    }
 
-            StringBuilder sb = new StringBuilder("Last 5 Transactions:\n");
-            List<String> history = account.getMiniStatement();
-            int start = Math.max(0, history.size() - 5);
+    public static synchronized void registerJmx() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("atm:type=Metrics");
+            if (!server.isRegistered(name))
+                server.registerMBean(new MetricsMBean(), name);
+            ObjectName balances = new ObjectName("atm:type=BalanceWriteBehind");
+            if (!server.isRegistered(balances))
+                server.registerMBean(new BalanceWriterMBean(), balances);
+        } catch (JMException e) {
+            System.out.println("Metrics JMX registration failed: " + e.getMessage());
+        }
+    }
+}
 
-            for (int i = start; i < history.size(); i++)
-                sb.append(history.get(i)).append("\n");
+// JMX view of the registry: one read-only attribute per metric (histograms as p50/p99/max/count)
+class MetricsMBean implements DynamicMBean {
 
-            if (history.isEmpty())
-                sb = new StringBuilder("No transactions yet.");
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Map<String, Object> all = attributes();
+        if (!all.containsKey(attribute)) throw new AttributeNotFoundException(attribute);
+        return all.get(attribute);
+    }
 
-            JOptionPane.showMessageDialog(frame, sb.toString());
-            return;
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> all = attributes();
+        AttributeList list = new AttributeList();
+        for (String n : names) {
+            if (all.containsKey(n)) list.add(new Attribute(n, all.get(n)));
         }
+        return list;
+    }
 
-        // EXPORT HISTORY
-        if ("Export History".equals(option)) {
-            try {
-                FileWriter fw = new FileWriter("transaction_history_" + currentUser + ".txt");
-                for (String entry : account.getMiniStatement())
-                    fw.write(entry + System.lineSeparator());
-                fw.close();
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
 
-                JOptionPane.showMessageDialog(frame,
-                        "Exported to transaction_history_" + currentUser + ".txt");
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
 
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(frame, "Error exporting file: " + ex.getMessage());
-            }
-            return;
-        }
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        if ("dumpPrometheus".equals(actionName)) return Metrics.toPrometheus();
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
 
-        // CHANGE PIN
-        if ("Change PIN".equals(option)) {
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> all = attributes();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[all.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> e : all.entrySet()) {
+            attrs[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue() instanceof Double ? "double" : "long",
+                    e.getKey(), true, false, false);
+        }
+        MBeanOperationInfo dump = new MBeanOperationInfo("dumpPrometheus", "Metrics in Prometheus text format",
+                new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+        return new MBeanInfo(getClass().getName(), "ATM simulator metrics", attrs, null,
+                new MBeanOperationInfo[]{dump}, null);
+    }
+
+    private static Map<String, Object> attributes() {
+        Map<String, Object> out = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> e : Metrics.snapshot().entrySet()) {
+            String key = e.getKey().replace("\"", "").replace('{', '.').replace("}", "").replace('=', '_');
+            Object m = e.getValue();
+            if (m instanceof Counter) {
+                out.put(key, ((Counter) m).get());
+            } else if (m instanceof Gauge) {
+                try {
+                    out.put(key, ((Gauge) m).value());
+                } catch (RuntimeException ignored) {
+                }
+            } else {
+                LatencyHistogram h = (LatencyHistogram) m;
+                out.put(key + ".count", h.getCount());
+                out.put(key + ".p50Micros", h.percentile(0.5) / 1000.0);
+                out.put(key + ".p99Micros", h.percentile(0.99) / 1000.0);
+                out.put(key + ".maxMicros", h.getMaxNanos() / 1000.0);
+            }
+        }
+        return out;
+    }
+}
+
+// JMX operator hook for the balance write-behind: the accounts parked on a version conflict,
+// and overwriteConflict to write one back once its users row has been reconciled
+class BalanceWriterMBean implements DynamicMBean {
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (!"ParkedAccounts".equals(attribute)) throw new AttributeNotFoundException(attribute);
+        BalanceWriteBehind b = DatabaseManager.currentBalanceWriter();
+        return b == null ? "[]" : b.getParkedAccounts().toString();
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String n : names) {
+            try {
+                list.add(new Attribute(n, getAttribute(n)));
+            } catch (AttributeNotFoundException ignored) {
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("ParkedAccounts is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        if ("overwriteConflict".equals(actionName) && params != null && params.length == 1) {
+            BalanceWriteBehind b = DatabaseManager.currentBalanceWriter();
+            return b != null && b.overwriteConflict((String) params[0]);
+        }
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo parked = new MBeanAttributeInfo("ParkedAccounts", "java.lang.String",
+                "Accounts left out of the DB flush after a version conflict", true, false, false);
+        MBeanOperationInfo overwrite = new MBeanOperationInfo("overwriteConflict",
+                "Write the local balance over the reconciled users row of a parked account",
+                new MBeanParameterInfo[]{new MBeanParameterInfo("username", "java.lang.String", "Parked account")},
+                "boolean", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "ATM balance write-behind",
+                new MBeanAttributeInfo[]{parked}, null, new MBeanOperationInfo[]{overwrite}, null);
+    }
+}
+
+//Database 
+
+// creates raw JDBC connections for the pool - swap in an in-memory stand-in for testing
+interface ConnectionFactory {
+    Connection create() throws SQLException;
+}
+
+// A pooled connection: wraps the real JDBC connection plus its own prepared statement cache.
+// close() hands it back to the pool instead of closing the socket.
+class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+    private volatile long lastUsedNanos;
+    private volatile boolean broken;
+    // set on borrow, cleared by the first close() so a second close cannot release it twice
+    private final AtomicBoolean checkedOut = new AtomicBoolean();
+
+    PooledConnection(ConnectionPool pool, Connection connection, final int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.lastUsedNanos = System.nanoTime();
+        // access-ordered LRU, closes the statement that falls off the end
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) return false;
+                try { eldest.getValue().close(); } catch (Exception ignored) {}
+                return true;
+            }
+        };
+    }
+
+    // cached PreparedStatement for this sql, prepared once per physical connection
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null || ps.isClosed()) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        } else {
+            ps.clearParameters();
+        }
+        return ps;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // call when a statement failed; the pool only drops the connection for a connection-level
+    // error (SQLState class 08) or when it no longer passes isValid - a constraint violation or
+    // a bad statement leaves it perfectly usable
+    public void markBroken(SQLException cause) {
+        String state = cause.getSQLState();
+        if (state != null && state.startsWith("08")) {
+            broken = true;
+            return;
+        }
+        try {
+            if (!connection.isValid(2)) broken = true;
+        } catch (SQLException e) {
+            broken = true;
+        }
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    void checkOut() {
+        checkedOut.set(true);
+    }
+
+    void closePhysical() {
+        for (PreparedStatement ps : statements.values()) {
+            try { ps.close(); } catch (Exception ignored) {}
+        }
+        statements.clear();
+        try { connection.close(); } catch (Exception ignored) {}
+    }
+
+    @Override
+    public void close() {
+        if (checkedOut.compareAndSet(true, false))
+            pool.release(this);
+    }
+}
+
+// Bounded JDBC connection pool: health checks on borrow, idle eviction in the background,
+// per-connection statement cache and wait-time / in-use metrics.
+class ConnectionPool {
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long validateAfterNanos;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    // LIFO so the most recently used (warm) connections are handed out first
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    // metrics
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder failedValidations = new LongAdder();
+    private static final LatencyHistogram WAIT_TIME =
+            Metrics.histogram("atm_db_pool_wait_seconds", "Time spent waiting for a pooled connection");
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long idleTimeoutMillis,
+                          long validateAfterMillis, int statementCacheSize) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Connection-Pool-Evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000L, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public PooledConnection borrow(long timeoutMillis) throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+                throw new SQLTimeoutException("Timed out waiting for a pooled connection");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a pooled connection", ie);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (isHealthy(pc)) {
+                    inUse.incrementAndGet();
+                    pc.checkOut();
+                    return pc;
+                }
+                failedValidations.increment();
+                destroy(pc);
+            }
+            pc = new PooledConnection(this, factory.create(), statementCacheSize);
+            open.incrementAndGet();
+            created.increment();
+            inUse.incrementAndGet();
+            pc.checkOut();
+            return pc;
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pc) {
+        inUse.decrementAndGet();
+        try {
+            if (!closed && !pc.isBroken() && resetState(pc)) {
+                pc.touch();
+                idle.offerFirst(pc);
+            } else {
+                destroy(pc);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // only pays for a round trip when the connection sat idle for a while
+    private boolean isHealthy(PooledConnection pc) {
+        if (System.nanoTime() - pc.getLastUsedNanos() < validateAfterNanos) return true;
+        try {
+            return pc.getConnection().isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean resetState(PooledConnection pc) {
+        try {
+            Connection con = pc.getConnection();
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void destroy(PooledConnection pc) {
+        open.decrementAndGet();
+        pc.closePhysical();
+    }
+
+    void evictIdle() {
+        long now = System.nanoTime();
+        // oldest connections sit at the tail
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledConnection pc = it.next();
+            if (now - pc.getLastUsedNanos() < idleTimeoutNanos) break;
+            if (idle.remove(pc)) {   // lost the race if a borrower took it first
+                evicted.increment();
+                destroy(pc);
+            }
+        }
+    }
+
+    private void recordWait(long nanos) {
+        WAIT_TIME.record(nanos);
+        borrows.increment();
+        waitNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null)
+            destroy(pc);
+    }
+
+    public int getMaxSize() { return maxSize; }
+    public int getInUse() { return inUse.get(); }
+    public int getIdleCount() { return idle.size(); }
+    public int getOpenConnections() { return open.get(); }
+    public long getBorrowCount() { return borrows.sum(); }
+    public long getCreatedCount() { return created.sum(); }
+    public long getEvictedCount() { return evicted.sum(); }
+    public long getFailedValidationCount() { return failedValidations.sum(); }
+    public long getMaxWaitNanos() { return maxWaitNanos.get(); }
+
+    public double getAverageWaitMillis() {
+        long n = borrows.sum();
+        return n == 0 ? 0.0 : waitNanos.sum() / (double) n / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pool[inUse=%d idle=%d open=%d/%d borrows=%d avgWait=%.3fms maxWait=%.3fms evicted=%d]",
+                getInUse(), getIdleCount(), getOpenConnections(), maxSize, getBorrowCount(),
+                getAverageWaitMillis(), getMaxWaitNanos() / 1_000_000.0, getEvictedCount());
+    }
+}
+
+// one queued row for the transactions table
+class JournalEntry {
+    final String user;
+    final String detail;
+    final long createdAtMillis;
+    final long enqueuedNanos;
+
+    JournalEntry(String user, String detail, long createdAtMillis, long enqueuedNanos) {
+        this.user = user;
+        this.detail = detail;
+        this.createdAtMillis = createdAtMillis;
+        this.enqueuedNanos = enqueuedNanos;
+    }
+}
+
+// Background writer for the transactions table. Callers only enqueue; a single daemon thread
+// group-commits with addBatch/executeBatch when the batch fills up or the oldest entry has
+// waited maxDelay. While the database is unreachable batches are spilled (fsynced) to a local
+// file, which is replayed once the database answers again.
+class TransactionJournal {
+    private static final String INSERT_SQL =
+            "INSERT INTO transactions(username, detail, created_at) VALUES (?, ?, ?)";
+    private static final long MIN_RETRY_MS = 1_000;
+    private static final long MAX_RETRY_MS = 30_000;
+
+    private final ConnectionPool pool;
+    private final File spillFile;
+    private final File spillPosFile;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final long offerTimeoutMillis;
+    private final BlockingQueue<JournalEntry> queue;
+    private final Thread writer;
+    private final Object spillLock = new Object();
+
+    private volatile boolean running = true;
+    private volatile boolean spillPending;
+    private long retryDelayMs = MIN_RETRY_MS;
+    private long nextRetryNanos;
+
+    // metrics
+    private final long startNanos = System.nanoTime();
+    private final LongAdder inserted = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder callerSpills = new LongAdder();
+    private final LongAdder lagNanos = new LongAdder();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    // process-wide, survive the journal being replaced
+    private static final LatencyHistogram BATCH_TIME =
+            Metrics.histogram("atm_db_batch_seconds", "Round trip of one journal batch insert + commit");
+    private static final LatencyHistogram LAG =
+            Metrics.histogram("atm_db_journal_lag_seconds", "Enqueue to commit delay of journal rows");
+    private static final Counter ROWS_INSERTED =
+            Metrics.counter("atm_db_rows_inserted_total", "Journal rows inserted directly");
+    private static final Counter ROWS_SPILLED =
+            Metrics.counter("atm_db_rows_spilled_total", "Journal rows spilled to the local file");
+    private static final Counter ROWS_REPLAYED =
+            Metrics.counter("atm_db_rows_replayed_total", "Spilled journal rows replayed into the DB");
+    private static final Counter FALLBACKS =
+            Metrics.counter("atm_db_batch_fallbacks_total", "Journal batches that failed and fell back to the spill file");
+
+    public TransactionJournal(ConnectionPool pool, File spillFile, int capacity, int batchSize,
+                              long maxDelayMillis, long offerTimeoutMillis) {
+        this.pool = pool;
+        this.spillFile = spillFile;
+        this.spillPosFile = new File(spillFile.getPath() + ".pos");
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<JournalEntry>(capacity);
+        trimTornSpillLine(); // before any spill or replay can touch the file
+        this.spillPending = spillFile.length() > 0; // left over from a previous run
+
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "Transaction-Journal-Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // non-blocking in the common case; blocks up to offerTimeout when the writer falls behind
+    // and then spills from the caller's thread rather than dropping the entry
+    public void append(String user, String detail) {
+        JournalEntry e = new JournalEntry(user, detail, System.currentTimeMillis(), System.nanoTime());
+        try {
+            if (running && queue.offer(e, offerTimeoutMillis, TimeUnit.MILLISECONDS))
+                return;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        callerSpills.increment();
+        List<JournalEntry> one = new ArrayList<JournalEntry>(1);
+        one.add(e);
+        spill(one);
+    }
+
+    private void writeLoop() {
+        List<JournalEntry> batch = new ArrayList<JournalEntry>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                JournalEntry first = queue.poll(maxDelayNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    if (spillPending && retryDue()) replaySpill();
+                    continue;
+                }
+                batch.add(first);
+                // group commit window is measured from the oldest entry in the batch
+                long deadline = first.enqueuedNanos + maxDelayNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || !running) break;
+                    JournalEntry next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException ie) {
+                // close() wakes us up; drain whatever is left and fall through
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<JournalEntry> batch) {
+        if (spillPending) {
+            if (!retryDue() || !replaySpill()) {
+                spill(batch);
+                return;
+            }
+        }
+        try {
+            insertBatch(batch);
+            inserted.add(batch.size());
+            ROWS_INSERTED.add(batch.size());
+            onDbSuccess();
+            long now = System.nanoTime();
+            for (JournalEntry e : batch)
+                recordLag(now - e.enqueuedNanos);
+            System.out.println("DB Inserted (JDBC) batch of " + batch.size());
+        } catch (SQLException e) {
+            FALLBACKS.increment();
+            onDbFailure();
+            spill(batch);
+            System.out.println("DB Insert fallback: spilled " + batch.size() + " to " + spillFile.getName());
+        }
+    }
+
+    private void insertBatch(List<JournalEntry> batch) throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection pc = pool.borrow(TimeUnit.NANOSECONDS.toMillis(maxDelayNanos) + 1000);
+        try {
+            Connection con = pc.getConnection();
+            con.setAutoCommit(false);
+            PreparedStatement ps = pc.prepare(INSERT_SQL);
+            for (JournalEntry e : batch) {
+                ps.setString(1, e.user);
+                ps.setString(2, e.detail);
+                ps.setTimestamp(3, new Timestamp(e.createdAtMillis));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            con.commit();
+            batches.increment();
+            BATCH_TIME.recordSince(start);
+        } catch (SQLException e) {
+            pc.markBroken(e);
+            throw e;
+        } finally {
+            pc.close();
+        }
+    }
+
+    private boolean retryDue() {
+        return System.nanoTime() - nextRetryNanos >= 0;
+    }
+
+    private void onDbSuccess() {
+        retryDelayMs = MIN_RETRY_MS;
+    }
+
+    private void onDbFailure() {
+        nextRetryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMs);
+        retryDelayMs = Math.min(MAX_RETRY_MS, retryDelayMs * 2);
+    }
+
+    // append + fsync so nothing acknowledged to the caller is lost if the process dies. Plain
+    // file descriptor calls, not a FileChannel: close() interrupts the writer thread, and an
+    // interrupted channel would close itself and drop the batch.
+    private void spill(List<JournalEntry> batch) {
+        StringBuilder sb = new StringBuilder(batch.size() * 64);
+        for (JournalEntry e : batch) {
+            sb.append(e.createdAtMillis).append('\t')
+              .append(escape(e.user)).append('\t')
+              .append(escape(e.detail)).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        synchronized (spillLock) {
+            RandomAccessFile out = null;
+            long before = -1;
+            try {
+                out = new RandomAccessFile(spillFile, "rw");
+                before = out.length();
+                out.seek(before);
+                out.write(bytes);
+                out.getFD().sync();
+                spilled.add(batch.size());
+                ROWS_SPILLED.add(batch.size());
+                spillPending = true;
+            } catch (IOException io) {
+                System.out.println("Journal spill failed, " + batch.size() + " entries lost: " + io);
+                // drop a partly written batch, the next append must start on a fresh line
+                try { if (before >= 0) out.setLength(before); } catch (IOException ignored) {}
+            } finally {
+                try { if (out != null) out.close(); } catch (Exception ignored) {}
+            }
+        }
+    }
+
+    // replays the spill file in batches; the committed byte offset is kept in a side file so a
+    // failure half way through does not insert the same rows twice. Only the bytes present when
+    // the replay starts are read, so spill() is not held up by the DB round trips; the lock is
+    // taken again just to truncate, and only if nothing was appended in the meantime.
+    private boolean replaySpill() {
+        BufferedReader in = null;
+        try {
+            long end;
+            synchronized (spillLock) {
+                end = spillFile.length();
+            }
+            long pos = readSpillPos();
+            in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(spillFile), java.nio.charset.StandardCharsets.UTF_8));
+            skipBytes(in, pos);
+
+            List<JournalEntry> batch = new ArrayList<JournalEntry>(batchSize);
+            long batchBytes = 0;
+            String line;
+            while (pos + batchBytes < end && (line = in.readLine()) != null) {
+                long lineBytes = line.getBytes(java.nio.charset.StandardCharsets.UTF_8).length + 1;
+                if (pos + batchBytes + lineBytes > end) break; // no newline before end: torn
+                batchBytes += lineBytes;
+                JournalEntry e = parseSpillLine(line);
+                if (e != null) batch.add(e);
+                if (batch.size() >= batchSize) {
+                    pos = replayBatch(batch, pos + batchBytes);
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty()) pos = replayBatch(batch, pos + batchBytes);
+            in.close();
+            in = null;
+
+            synchronized (spillLock) {
+                if (spillFile.length() == end) {
+                    new FileOutputStream(spillFile).close(); // truncate
+                    spillPosFile.delete();
+                    spillPending = false;
+                } else {
+                    writeSpillPos(end); // spilled while we replayed, picked up next time
+                }
+            }
+            onDbSuccess();
+            System.out.println("Journal spill replayed to DB");
+            return true;
+        } catch (SQLException e) {
+            onDbFailure();
+            return false;
+        } catch (IOException io) {
+            onDbFailure();
+            System.out.println("Journal spill replay failed: " + io.getMessage());
+            return false;
+        } finally {
+            try { if (in != null) in.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    // A crash half way through a spill leaves a last line without its newline; that batch was
+    // never acknowledged. Cut the file back to the last complete line, or the next spill would
+    // be glued onto it and lost with it.
+    private void trimTornSpillLine() {
+        if (!spillFile.exists()) return;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(spillFile, "rw");
+            long end = raf.length();
+            byte[] chunk = new byte[4096];
+            long keep = end;
+            while (keep > 0) {
+                int n = (int) Math.min(chunk.length, keep);
+                raf.seek(keep - n);
+                raf.readFully(chunk, 0, n);
+                int i = n - 1;
+                while (i >= 0 && chunk[i] != '\n') i--;
+                if (i >= 0) {
+                    keep = keep - n + i + 1;
+                    break;
+                }
+                keep -= n;
+            }
+            if (keep < end) {
+                raf.setLength(keep);
+                raf.getFD().sync();
+                System.out.println("Journal spill: dropped a torn last line (" + (end - keep) + " bytes)");
+            }
+        } catch (IOException io) {
+            System.out.println("Journal spill check failed: " + io.getMessage());
+        } finally {
+            try { if (raf != null) raf.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    // inserts one replayed batch and records the offset after it
+    private long replayBatch(List<JournalEntry> batch, long pos) throws SQLException, IOException {
+        insertBatch(batch);
+        replayed.add(batch.size());
+        ROWS_REPLAYED.add(batch.size());
+        writeSpillPos(pos);
+        batch.clear();
+        return pos;
+    }
+
+    private long readSpillPos() {
+        if (!spillPosFile.exists()) return 0;
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(spillPosFile));
+            return Long.parseLong(r.readLine().trim());
+        } catch (Exception e) {
+            return 0;
+        } finally {
+            try { if (r != null) r.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void writeSpillPos(long pos) throws IOException {
+        FileOutputStream out = new FileOutputStream(spillPosFile);
+        try {
+            out.write(Long.toString(pos).getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void skipBytes(BufferedReader in, long bytes) throws IOException {
+        // spill lines are read back as UTF-8 text, so count encoded bytes per line
+        while (bytes > 0) {
+            String line = in.readLine();
+            if (line == null) return;
+            bytes -= line.getBytes(java.nio.charset.StandardCharsets.UTF_8).length + 1;
+        }
+    }
+
+    private static JournalEntry parseSpillLine(String line) {
+        String[] parts = line.split("\t", -1);
+        if (parts.length != 3) return null; // torn last line
+        try {
+            return new JournalEntry(unescape(parts[1]), unescape(parts[2]),
+                    Long.parseLong(parts[0]), System.nanoTime());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void recordLag(long nanos) {
+        LAG.record(nanos);
+        lagNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxLagNanos.get())) {
+            if (maxLagNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    // stops accepting new entries, then drains (or spills) what is queued
+    public void close(long timeoutMillis) {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        List<JournalEntry> rest = new ArrayList<JournalEntry>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) spill(rest);
+    }
+
+    public int getQueueDepth() { return queue.size(); }
+    public long getInsertedCount() { return inserted.sum(); }
+    public long getBatchCount() { return batches.sum(); }
+    public long getSpilledCount() { return spilled.sum(); }
+    public long getReplayedCount() { return replayed.sum(); }
+    public long getCallerSpillCount() { return callerSpills.sum(); }
+    public boolean isSpillPending() { return spillPending; }
+    public long getMaxLagNanos() { return maxLagNanos.get(); }
+
+    public double getInsertsPerSecond() {
+        double secs = (System.nanoTime() - startNanos) / 1e9;
+        return secs <= 0 ? 0.0 : (inserted.sum() + replayed.sum()) / secs;
+    }
+
+    // enqueue -> commit, for rows that went straight to the DB
+    public double getAverageLagMillis() {
+        long n = inserted.sum();
+        return n == 0 ? 0.0 : lagNanos.sum() / (double) n / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("journal[queued=%d inserted=%d batches=%d spilled=%d replayed=%d rate=%.1f/s avgLag=%.2fms maxLag=%.2fms]",
+                getQueueDepth(), getInsertedCount(), getBatchCount(), getSpilledCount(), getReplayedCount(),
+                getInsertsPerSecond(), getAverageLagMillis(), getMaxLagNanos() / 1_000_000.0);
+    }
+}
+
+// Write-behind persistence of account balances (and the PIN hash) to the users table. Every balance change only
+// marks the account dirty (one CAS, queued once no matter how often it changes); a background
+// flusher writes the latest balance of each dirty account once per interval as one batched
+// UPDATE per chunk, so a hot account costs one DB row per flush instead of one per operation.
+// Rows carry a version: the UPDATE only applies when the row still has the version this
+// process last wrote. A miss means the row is new (it is inserted) or someone else wrote it.
+// A record rebuilt from the local log after a restart does not know its row's version yet, so
+// its first miss adopts the version it finds. Any later conflict is never written over: the
+// account is parked (logged and counted), keeps running on the local log and is left out of
+// every flush until an operator has reconciled the row and calls overwriteConflict (JMX
+// atm:type=BalanceWriteBehind), which writes our balance over that row version only.
+class BalanceWriteBehind {
+    static final String UPDATE_SQL = "UPDATE users SET balance = ?, pin = ?, version = ? WHERE username = ? AND version = ?";
+    static final String VERSION_SQL = "SELECT version FROM users WHERE username = ?";
+    static final String INSERT_SQL = "INSERT INTO users(username, pin, balance, version) VALUES (?, ?, ?, ?)";
+
+    private static final long MIN_RETRY_MS = 1_000;
+    private static final long MAX_RETRY_MS = 30_000;
+
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final long borrowTimeoutMillis;
+    private final ConcurrentLinkedQueue<AccountRecord> dirty = new ConcurrentLinkedQueue<AccountRecord>();
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock = new Object();
+    // accounts whose row someone else wrote; dbVersion holds the version we found there
+    private final ConcurrentHashMap<String, AccountRecord> parked = new ConcurrentHashMap<String, AccountRecord>();
+
+    // flusher thread only (under flushLock)
+    private long retryDelayMs = MIN_RETRY_MS;
+    private long nextRetryNanos;
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    private static final Counter CHANGES =
+            Metrics.counter("atm_balance_changes_total", "Balance changes handed to the write-behind layer");
+    private static final Counter ROWS_WRITTEN =
+            Metrics.counter("atm_balance_rows_written_total", "Balance rows written to the users table");
+    private static final Counter CONFLICTS =
+            Metrics.counter("atm_balance_version_conflicts_total", "Balance rows whose version changed under us");
+    private static final Counter FAILURES =
+            Metrics.counter("atm_balance_flush_failures_total", "Balance flushes that could not reach the DB");
+    private static final LatencyHistogram FLUSH_TIME =
+            Metrics.histogram("atm_balance_flush_seconds", "Round trip of one batched balance UPDATE + commit");
+
+    public BalanceWriteBehind(ConnectionPool pool, long flushIntervalMillis, int batchSize, long borrowTimeoutMillis) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Balance-Write-Behind");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (System.nanoTime() - nextRetryNanos >= 0) flush();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // called after every balance change; cheap enough for the hot path
+    public void changed(AccountRecord record) {
+        changes.increment();
+        CHANGES.increment();
+        enqueue(record);
+    }
+
+    private void enqueue(AccountRecord record) {
+        if (record.markDirty()) {
+            dirty.add(record);
+            dirtyCount.incrementAndGet();
+        }
+    }
+
+    // writes every account that was dirty when the call started; returns the rows written,
+    // or -1 if the DB could not be reached (the accounts stay dirty)
+    public int flush() {
+        synchronized (flushLock) {
+            List<AccountRecord> batch = new ArrayList<AccountRecord>(batchSize);
+            int written = 0;
+            int limit = dirtyCount.get(); // accounts re-dirtied meanwhile wait for the next round
+            AccountRecord r;
+            while (limit-- > 0 && (r = dirty.poll()) != null) {
+                dirtyCount.decrementAndGet();
+                r.startWrite(); // before the balance is read, so a later change queues it again
+                if (parked.containsKey(r.getUsername())) continue; // stays dirty, never written
+                batch.add(r);
+                if (batch.size() == batchSize) {
+                    int n = write(batch);
+                    if (n < 0) return -1;
+                    written += n;
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                int n = write(batch);
+                if (n < 0) return -1;
+                written += n;
+            }
+            if (written > 0) flushes.increment();
+            return written;
+        }
+    }
+
+    private int write(List<AccountRecord> batch) {
+        long start = System.nanoTime();
+        int n = batch.size();
+        long[] versions = new long[n];
+        boolean[] conflicted = new boolean[n];
+        int conflictCount = 0;
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow(borrowTimeoutMillis);
+            Connection con = pc.getConnection();
+            con.setAutoCommit(false);
+            PreparedStatement ps = pc.prepare(UPDATE_SQL);
+            for (int i = 0; i < n; i++) {
+                AccountRecord r = batch.get(i);
+                versions[i] = r.dbVersion + 1;
+                ps.setLong(1, r.getAccount().getBalance());
+                ps.setString(2, r.getCredential().toDbString());
+                ps.setLong(3, versions[i]);
+                ps.setString(4, r.getUsername());
+                ps.setLong(5, r.dbVersion);
+                ps.addBatch();
+            }
+            int[] counts = ps.executeBatch();
+            for (int i = 0; i < n; i++) {
+                if (counts[i] == 0) {
+                    AccountRecord r = batch.get(i);
+                    long v = resolveMiss(pc, r);
+                    if (v < 0) {
+                        versions[i] = 1;
+                    } else if (r.dbVersion < 0 && adopt(pc, r, v)) {
+                        versions[i] = v + 1;
+                    } else {
+                        versions[i] = v;
+                        conflicted[i] = true;
+                        conflictCount++;
+                    }
+                } else if (counts[i] < 0 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                    throw new SQLException("balance update failed for " + batch.get(i).getUsername());
+                }
+            }
+            con.commit();
+        } catch (SQLException e) {
+            if (pc != null) pc.markBroken(e);
+            FAILURES.increment();
+            onFailure(e);
+            for (AccountRecord r : batch)
+                enqueue(r);
+            return -1;
+        } finally {
+            if (pc != null) pc.close();
+        }
+        for (int i = 0; i < n; i++) {
+            AccountRecord r = batch.get(i);
+            r.dbVersion = versions[i];
+            if (conflicted[i]) park(r); // left dirty so a bounded registry keeps it in memory
+            else r.finishWrite();
+        }
+        if (conflictCount > 0) {
+            conflicts.add(conflictCount);
+            CONFLICTS.add(conflictCount);
+        }
+        retryDelayMs = MIN_RETRY_MS;
+        int written = n - conflictCount;
+        rowsWritten.add(written);
+        ROWS_WRITTEN.add(written);
+        FLUSH_TIME.recordSince(start);
+        return written;
+    }
+
+    // UPDATE matched nothing: returns the version of the row someone else wrote, or -1 after
+    // inserting the row because there was none
+    private long resolveMiss(PooledConnection pc, AccountRecord r) throws SQLException {
+        PreparedStatement q = pc.prepare(VERSION_SQL);
+        q.setString(1, r.getUsername());
+        ResultSet rs = q.executeQuery();
+        try {
+            if (rs.next()) return rs.getLong(1);
+        } finally {
+            rs.close();
+        }
+        PreparedStatement ins = pc.prepare(INSERT_SQL);
+        ins.setString(1, r.getUsername());
+        ins.setString(2, r.getCredential().toDbString());
+        ins.setLong(3, r.getAccount().getBalance());
+        ins.setLong(4, 1);
+        ins.executeUpdate();
+        return -1;
+    }
+
+    // first write since a restart: the row's version was never known here, so the version just
+    // read is taken as ours rather than a conflict; false if the row moved on meanwhile
+    private boolean adopt(PooledConnection pc, AccountRecord r, long version) throws SQLException {
+        PreparedStatement ps = pc.prepare(UPDATE_SQL);
+        ps.setLong(1, r.getAccount().getBalance());
+        ps.setString(2, r.getCredential().toDbString());
+        ps.setLong(3, version + 1);
+        ps.setString(4, r.getUsername());
+        ps.setLong(5, version);
+        return ps.executeUpdate() == 1;
+    }
+
+    private void park(AccountRecord r) {
+        parked.put(r.getUsername(), r);
+        System.out.println("Balance write-behind: users row for " + r.getUsername()
+                + " was changed outside this ATM (now version " + r.dbVersion + "), not overwriting it;"
+                + " local balance Rs" + r.getAccount().getBalance() + " is kept in the local log until the row is reconciled");
+    }
+
+    // operator decision after reconciling a parked row: write our balance over the row version
+    // found at the conflict. Returns false if the account is not parked. A row that changed
+    // again since then conflicts (and is parked) again.
+    public boolean overwriteConflict(String username) {
+        synchronized (flushLock) {
+            AccountRecord r = parked.remove(username);
+            if (r == null) return false;
+            enqueue(r);
+            return true;
+        }
+    }
+
+    public Set<String> getParkedAccounts() {
+        return new TreeSet<String>(parked.keySet());
+    }
+
+    private void onFailure(SQLException e) {
+        if (retryDelayMs == MIN_RETRY_MS)
+            System.out.println("Balance write-behind: DB unavailable (" + e.getMessage() + "), "
+                    + dirtyCount.get() + " accounts kept dirty");
+        nextRetryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMs);
+        retryDelayMs = Math.min(MAX_RETRY_MS, retryDelayMs * 2);
+    }
+
+    // clean shutdown: stop the timer and write everything that is still dirty
+    public void close(long timeoutMillis) {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (dirtyCount.get() > 0 && System.nanoTime() - deadline < 0) {
+            if (flush() < 0) break;
+        }
+        if (dirtyCount.get() > 0)
+            System.out.println("Balance write-behind: " + dirtyCount.get()
+                    + " accounts not written to DB (kept in the local log)");
+        if (!parked.isEmpty())
+            System.out.println("Balance write-behind: " + parked.size()
+                    + " accounts parked on a version conflict, not written to DB: " + getParkedAccounts());
+    }
+
+    public int getDirtyCount() { return dirtyCount.get(); }
+    public long getChangeCount() { return changes.sum(); }
+    public long getRowsWritten() { return rowsWritten.sum(); }
+    public long getFlushCount() { return flushes.sum(); }
+    public long getConflictCount() { return conflicts.sum(); }
+
+    @Override
+    public String toString() {
+        long c = changes.sum(), w = rowsWritten.sum();
+        return String.format("balances[dirty=%d changes=%d rows=%d flushes=%d conflicts=%d parked=%d coalesced=%.1fx]",
+                getDirtyCount(), c, w, getFlushCount(), getConflictCount(), parked.size(), w == 0 ? 0.0 : c / (double) w);
+    }
+}
+
+class DatabaseManager {
+
+    // update these if you want to test with real DB
+    private static final String JDBC_URL = "jdbc:mysql://localhost:3306/atm_db?useCursorFetch=true"; // honour fetch sizes
+    private static final String DB_USER = "root";
+    private static final String DB_PASS = "password";
+
+    // pool tuning
+    private static final int POOL_SIZE = 8;
+    private static final long POOL_IDLE_TIMEOUT_MS = 60_000;
+    private static final long POOL_VALIDATE_AFTER_MS = 5_000;
+    private static final int STATEMENT_CACHE_SIZE = 16;
+    private static final long BORROW_TIMEOUT_MS = 3_000;
+
+    // journal tuning
+    private static final String JOURNAL_SPILL_FILE = "transactions_spill.log";
+    private static final int JOURNAL_CAPACITY = 10_000;
+    private static final int JOURNAL_BATCH_SIZE = 200;
+    private static final long JOURNAL_MAX_DELAY_MS = 50;
+    private static final long JOURNAL_OFFER_TIMEOUT_MS = 100;
+    private static final long JOURNAL_CLOSE_TIMEOUT_MS = 5_000;
+
+    // balance write-behind tuning
+    private static final long BALANCE_FLUSH_MS = Long.getLong("atm.balanceFlushMs", 1_000);
+    private static final int BALANCE_BATCH_SIZE = 500;
+    private static final long BALANCE_CLOSE_TIMEOUT_MS = 5_000;
+
+    private static final String UPDATE_PIN_SQL = "UPDATE users SET pin = ? WHERE username = ?";
+    private static final String LOAD_ACCOUNT_SQL = "SELECT pin, balance, version FROM users WHERE username = ?";
+    // same split as AccountPreloader.partitionOf
+    private static final String PRELOAD_SQL =
+            "SELECT username, pin, balance, version FROM users WHERE MOD(CRC32(username), ?) = ?";
+    private static final int PRELOAD_FETCH_SIZE = 1_000;
+    static final int PRELOAD_PARTITIONS = 32;
+
+    private static volatile boolean driverLoaded;
+    private static volatile boolean enabled = true;
+    private static volatile ConnectionPool pool;
+    private static volatile TransactionJournal journal;
+    private static volatile BalanceWriteBehind balances;
+
+    private static final LatencyHistogram UPDATE_PIN_TIME =
+            Metrics.histogram("atm_db_update_pin_seconds", "Round trip of the synchronous PIN update");
+    private static final Counter UPDATE_PIN_FALLBACKS =
+            Metrics.counter("atm_db_update_pin_fallbacks_total", "PIN updates that could not reach the DB");
+
+    // pool/journal gauges read whatever instance is current
+    static {
+        Metrics.gauge("atm_db_pool_in_use", "Connections currently borrowed", new Gauge() {
+            public long value() {
+                ConnectionPool p = pool;
+                return p == null ? 0 : p.getInUse();
+            }
+        });
+        Metrics.gauge("atm_db_pool_idle", "Idle pooled connections", new Gauge() {
+            public long value() {
+                ConnectionPool p = pool;
+                return p == null ? 0 : p.getIdleCount();
+            }
+        });
+        Metrics.gauge("atm_db_pool_open", "Open physical connections", new Gauge() {
+            public long value() {
+                ConnectionPool p = pool;
+                return p == null ? 0 : p.getOpenConnections();
+            }
+        });
+        Metrics.gauge("atm_db_journal_queue_depth", "Journal rows waiting for the writer", new Gauge() {
+            public long value() {
+                TransactionJournal j = journal;
+                return j == null ? 0 : j.getQueueDepth();
+            }
+        });
+        Metrics.gauge("atm_db_journal_spill_pending", "1 while spilled rows wait for replay", new Gauge() {
+            public long value() {
+                TransactionJournal j = journal;
+                return j != null && j.isSpillPending() ? 1 : 0;
+            }
+        });
+        Metrics.gauge("atm_balance_dirty_accounts", "Accounts waiting for the next balance flush", new Gauge() {
+            public long value() {
+                BalanceWriteBehind b = balances;
+                return b == null ? 0 : b.getDirtyCount();
+            }
+        });
+    }
+
+    // get DB connection (stubbed) - shows Class.forName and DriverManager usage
+    public static Connection getConnection() throws SQLException, ClassNotFoundException {
+        try {
+            if (!driverLoaded) {
+                Class.forName("com.mysql.cj.jdbc.Driver"); // will throw if driver not present
+                driverLoaded = true;
+            }
+            return DriverManager.getConnection(JDBC_URL, DB_USER, DB_PASS);
+        } catch (ClassNotFoundException cnfe) {
+            // driver missing - fallback so program doesn't crash
+            System.out.println("JDBC Driver not found (driver missing). Continuing without real DB.");
+            throw cnfe;
+        } catch (SQLException se) {
+            System.out.println("JDBC Connection failed: " + se.getMessage());
+            throw se;
+        }
+    }
+
+    // shared pool, created on first use against the MySQL settings above
+    public static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (DatabaseManager.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ConnectionPool(new ConnectionFactory() {
+                        public Connection create() throws SQLException {
+                            try {
+                                return getConnection();
+                            } catch (ClassNotFoundException cnfe) {
+                                throw new SQLException("JDBC driver not found", cnfe);
+                            }
+                        }
+                    }, POOL_SIZE, POOL_IDLE_TIMEOUT_MS, POOL_VALIDATE_AFTER_MS, STATEMENT_CACHE_SIZE);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    // plug in a different pool, e.g. one over an in-memory JDBC stand-in
+    public static synchronized void usePool(ConnectionPool newPool) {
+        shutdown(); // the journal is bound to the old pool
+        ConnectionPool old = pool;
+        pool = newPool;
+        if (old != null && old != newPool) old.close();
+    }
+
+    // shared journal writer, created with the pool on first use
+    public static TransactionJournal getJournal() {
+        TransactionJournal j = journal;
+        if (j == null) {
+            synchronized (DatabaseManager.class) {
+                j = journal;
+                if (j == null) {
+                    j = new TransactionJournal(getPool(), new File(JOURNAL_SPILL_FILE), JOURNAL_CAPACITY,
+                            JOURNAL_BATCH_SIZE, JOURNAL_MAX_DELAY_MS, JOURNAL_OFFER_TIMEOUT_MS);
+                    journal = j;
+                }
+            }
+        }
+        return j;
+    }
+
+    // shared balance write-behind, created with the pool on first use
+    // the running writer, or null; unlike getBalanceWriter this never creates one
+    public static BalanceWriteBehind currentBalanceWriter() {
+        return balances;
+    }
+
+    public static BalanceWriteBehind getBalanceWriter() {
+        BalanceWriteBehind b = balances;
+        if (b == null) {
+            synchronized (DatabaseManager.class) {
+                b = balances;
+                if (b == null) {
+                    b = new BalanceWriteBehind(getPool(), BALANCE_FLUSH_MS, BALANCE_BATCH_SIZE, BORROW_TIMEOUT_MS);
+                    balances = b;
+                }
+            }
+        }
+        return b;
+    }
+
+    // flush dirty balances and queued journal entries (or spill them) before the JVM goes away
+    public static void shutdown() {
+        BalanceWriteBehind b;
+        TransactionJournal j;
+        synchronized (DatabaseManager.class) {
+            b = balances;
+            balances = null;
+            j = journal;
+            journal = null;
+        }
+        if (b != null) b.close(BALANCE_CLOSE_TIMEOUT_MS);
+        if (j != null) j.close(JOURNAL_CLOSE_TIMEOUT_MS);
+    }
+
+    // turn MySQL off entirely (--no-db): journal rows and PIN updates are skipped, not spilled
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Insert transaction - queued for the background journal writer, never blocks on the DB
+    public static void insertTransaction(String user, String detail) {
+        if (!enabled) return;
+        getJournal().append(user, detail);
+    }
+
+    // Balance changed - the row is written by the next write-behind flush, coalesced with any
+    // other change to the same account until then
+    public static void balanceChanged(AccountRecord record) {
+        if (!enabled) return;
+        getBalanceWriter().changed(record);
+    }
+
+    // One customer from the users table, null if there is none
+    public static AccountRecord loadAccount(String user) throws SQLException {
+        PooledConnection pc = getPool().borrow(BORROW_TIMEOUT_MS);
+        try {
+            PreparedStatement ps = pc.prepare(LOAD_ACCOUNT_SQL);
+            ps.setString(1, user);
+            ResultSet rs = ps.executeQuery();
+            try {
+                return rs.next() ? toRecord(user, rs.getString(1), rs.getLong(2), rs.getLong(3)) : null;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            pc.markBroken(e);
+            throw e;
+        } finally {
+            pc.close();
+        }
+    }
+
+    // bulk load for start-up: one hash partition of the users table per call, streamed in
+    // fetch-size chunks instead of materialized, each partition on its own pooled connection
+    public static AccountPreloader.PartitionSource preloadSource() {
+        return new AccountPreloader.PartitionSource() {
+            public void load(int partition, int partitions, AccountRegistry.Visitor sink) throws SQLException {
+                PooledConnection pc = getPool().borrow(BORROW_TIMEOUT_MS);
+                try {
+                    PreparedStatement ps = pc.prepare(PRELOAD_SQL);
+                    ps.setFetchSize(PRELOAD_FETCH_SIZE);
+                    ps.setInt(1, partitions);
+                    ps.setInt(2, partition);
+                    ResultSet rs = ps.executeQuery();
+                    try {
+                        while (rs.next())
+                            sink.visit(toRecord(rs.getString(1), rs.getString(2), rs.getLong(3), rs.getLong(4)));
+                    } finally {
+                        rs.close();
+                    }
+                } catch (SQLException e) {
+                    pc.markBroken(e);
+                    throw e;
+                } finally {
+                    pc.close();
+                }
+            }
+        };
+    }
+
+    public static int getPoolSize() {
+        return POOL_SIZE;
+    }
+
+    private static AccountRecord toRecord(String user, String pin, long balance, long version) throws SQLException {
+        Credential credential;
+        try {
+            credential = Credential.fromDbString(pin);
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Unreadable pin column for " + user, e);
+        }
+        AccountRecord record = new AccountRecord(user, credential, new SavingsAccount(Math.toIntExact(balance)));
+        record.dbVersion = version;
+        return record;
+    }
+
+    // read-through loader for a bounded AccountRegistry
+    public static AccountLoader accountLoader() {
+        return new AccountLoader() {
+            public AccountRecord load(String username) throws SQLException {
+                return loadAccount(username);
+            }
+        };
+    }
+
+    // Update PIN with PreparedStatement - stores the salted hash, never the PIN itself
+    public static void updatePIN(String user, Credential credential) {
+        if (!enabled) return;
+        PooledConnection pc = null;
+        long start = System.nanoTime();
+        try {
+            pc = getPool().borrow(BORROW_TIMEOUT_MS);
+            PreparedStatement ps = pc.prepare(UPDATE_PIN_SQL);
+            ps.setString(1, credential.toDbString());
+            ps.setString(2, user);
+            int rows = ps.executeUpdate();
+            System.out.println("DB Update PIN (JDBC) rows:" + rows);
+        } catch (SQLException e) {
+            if (pc != null) pc.markBroken(e);
+            UPDATE_PIN_FALLBACKS.increment();
+            System.out.println("DB Update PIN fallback for " + user);
+        } finally {
+            if (pc != null) pc.close();
+            UPDATE_PIN_TIME.recordSince(start);
+        }
+    }
+}
+
+// kinds of records in the local transaction log
+enum LogRecordType {
+    OPEN,         // amount = opening balance, extra = encoded Credential (plain int PIN in old logs)
+    DEPOSIT,      // extra = client request ID, if any
+    WITHDRAWAL,   // extra = client request ID, if any
+    CHEQUE,       // credit of a cleared cheque, extra = cheque id [+ request ID] (old logs: no extra)
+    PIN_CHANGE,   // extra = encoded Credential (old logs: no extra, amount = new PIN)
+    STATUS,       // amount = AccountStatus ordinal
+    TRANSFER,     // both legs: user = source, extra = target balance after + target user [+ 0 + request ID]
+    TRANSFER_IN,  // incoming side of a TRANSFER in history exports, never written to the log
+    INTEREST;     // end-of-day accrual: amount = rupees credited, extra = day + carried fraction
+
+    private static final LogRecordType[] VALUES = values();
+
+    static LogRecordType fromCode(int code) {
+        return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+    }
+}
+
+// when the log forces mapped pages to disk
+enum FsyncPolicy {
+    NEVER,      // leave it to the OS
+    INTERVAL,   // background force every fsyncIntervalMillis
+    ALWAYS      // force after every append
+}
+
+// one decoded log record
+class LogRecord {
+    long position;
+    long seq;
+    long timestampMillis;
+    LogRecordType type;
+    String username;
+    long amount;
+    long balanceAfter;
+    byte[] extra;
+
+    static byte[] intBytes(int v) {
+        return new byte[]{(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+
+    int extraInt() {
+        return extra != null && extra.length >= 4
+                ? ((extra[0] & 0xff) << 24) | ((extra[1] & 0xff) << 16) | ((extra[2] & 0xff) << 8) | (extra[3] & 0xff)
+                : 0;
+    }
+
+    // PIN hash of an OPEN or PIN_CHANGE record; records written before hashing carry the plain
+    // PIN, which is hashed here on replay
+    Credential credential() {
+        if (extra != null && extra.length > 4) return Credential.decode(extra);
+        return Credential.create(type == LogRecordType.PIN_CHANGE && extra == null ? (int) amount : extraInt());
+    }
+
+    static byte[] transferExtra(String target, long targetBalanceAfter) {
+        return transferExtra(target, targetBalanceAfter, null);
+    }
+
+    // the request ID, if any, follows the target name after a 0 byte
+    static byte[] transferExtra(String target, long targetBalanceAfter, String requestId) {
+        byte[] name = (requestId == null ? target : target + '\u0000' + requestId)
+                .getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + name.length).putLong(targetBalanceAfter).put(name).array();
+    }
+
+    String transferTarget() {
+        return extra == null || extra.length < 8 ? null
+                : new String(extra, 8, nameEnd() - 8, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private int nameEnd() {
+        int end = 8;
+        while (end < extra.length && extra[end] != 0) end++;
+        return end;
+    }
+
+    // DEPOSIT / WITHDRAWAL: extra = request ID, none without one. CHEQUE: extra = cheque id,
+    // followed by the request ID if there is one.
+    static byte[] requestExtra(String requestId) {
+        return requestId == null ? null : requestId.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    static byte[] chequeExtra(long chequeId, String requestId) {
+        byte[] id = requestId == null ? new byte[0] : requestId.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + id.length).putLong(chequeId).put(id).array();
+    }
+
+    long chequeId() {
+        return extra == null || extra.length < 8 ? 0 : ByteBuffer.wrap(extra).getLong();
+    }
+
+    // the client's request ID for a deposit, withdrawal, cleared cheque or transfer; null if none
+    String requestId() {
+        if (extra == null) return null;
+        int from;
+        switch (type) {
+            case DEPOSIT:
+            case WITHDRAWAL:
+                from = 0;
+                break;
+            case CHEQUE:
+                from = 8;
+                break;
+            case TRANSFER:
+                from = nameEnd() + 1;
+                break;
+            default:
+                return null;
+        }
+        return from >= extra.length ? null
+                : new String(extra, from, extra.length - from, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    long transferTargetBalance() {
+        return extra == null || extra.length < 8 ? 0 : ByteBuffer.wrap(extra).getLong();
+    }
+
+    // epoch day the interest was for, and the fraction of a rupee carried after it
+    static byte[] interestExtra(int epochDay, long carried) {
+        return ByteBuffer.allocate(12).putInt(epochDay).putLong(carried).array();
+    }
+
+    int interestDay() {
+        return extra == null || extra.length < 12 ? 0 : ByteBuffer.wrap(extra).getInt();
+    }
+
+    long interestCarried() {
+        return extra == null || extra.length < 12 ? 0 : ByteBuffer.wrap(extra).getLong(4);
+    }
+}
+
+// Append-only, checksummed transaction log on memory-mapped segment files.
+//
+// Record layout: int length, int crc32(payload), payload =
+//   long seq, long timestamp, byte type, long amount, long balanceAfter,
+//   short userLen, user (UTF-8), short extraLen, extra.
+// A length of 0 marks the end of the log and -1 means "continued in the next segment".
+// Positions are global: segmentIndex * segmentSize + offset. Appends are serialized on one
+// lock (a memcpy into the mapped page); on open the log is scanned and cut at the first torn,
+// corrupt or out-of-sequence record, and everything after the cut is zeroed. Whole segments
+// older than a snapshot can be deleted from the front (deleteSegments).
+class TransactionLog implements Closeable {
+
+    // return false to stop the scan
+    interface Visitor {
+        boolean visit(LogRecord record);
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int HEADER = 8;
+    private static final int FIXED_PAYLOAD = 8 + 8 + 1 + 8 + 8 + 2 + 2;
+    private static final int END_OF_SEGMENT = -1;
+
+    private static final class Segment {
+        final int index;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(int index, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final FsyncPolicy fsync;
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private final ScheduledExecutorService syncer;
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+
+    private Segment current;
+    private int writeOffset;
+    private long nextSeq = 1;
+    private volatile long committedPosition;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+
+    // metrics
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder appendNanos = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private static final LatencyHistogram APPEND_TIME =
+            Metrics.histogram("atm_txlog_append_seconds", "Transaction log append latency");
+    private static final LatencyHistogram LOCK_WAIT =
+            Metrics.histogram("atm_txlog_lock_wait_seconds", "Time waiting for the log append lock");
+
+    private TransactionLog(File dir, int segmentSize, FsyncPolicy fsync, long fsyncIntervalMillis) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        if (fsync == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Transaction-Log-Sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (dirty) force();
+                }
+            }, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    public static TransactionLog open(File dir, FsyncPolicy fsync, long fsyncIntervalMillis) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_SIZE, fsync, fsyncIntervalMillis);
+    }
+
+    public static TransactionLog open(File dir, int segmentSize, FsyncPolicy fsync, long fsyncIntervalMillis)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create log directory " + dir);
+        TransactionLog log = new TransactionLog(dir, segmentSize, fsync, fsyncIntervalMillis);
+        log.recoverTail();
+        return log;
+    }
+
+    // maps existing segments and finds the end of valid data
+    private void recoverTail() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith("txlog-") && name.endsWith(".seg");
+            }
+        });
+        List<Integer> indexes = new ArrayList<Integer>();
+        if (files != null) {
+            for (File f : files)
+                indexes.add(Integer.parseInt(f.getName().substring(6, f.getName().length() - 4)));
+        }
+        Collections.sort(indexes);
+
+        if (indexes.isEmpty()) {
+            current = mapSegment(0);
+            segments.add(current);
+            writeOffset = 0;
+            committedPosition = 0;
+            return;
+        }
+
+        boolean first = true; // the oldest segments may have been deleted, so any seq can start it
+        for (int i = 0; i < indexes.size(); i++) {
+            Segment seg = mapSegment(indexes.get(i));
+            segments.add(seg);
+            current = seg;
+            int off = 0;
+            boolean rolled = false;
+            ByteBuffer buf = seg.buffer.duplicate();
+            for (;;) {
+                if (off + HEADER > segmentSize) {
+                    // no room for another header, so append rolled this segment; roll() only
+                    // writes the marker when 4 bytes are left, and an exact fill has none
+                    rolled = true;
+                    break;
+                }
+                int len = buf.getInt(off);
+                if (len == 0) break;
+                if (len == END_OF_SEGMENT) {
+                    rolled = true;
+                    break;
+                }
+                // a record from before an earlier cut can still pass its CRC, but not the seq check
+                if (len < FIXED_PAYLOAD || off + HEADER + len > segmentSize
+                        || crc(buf, off + HEADER, len) != buf.getInt(off + 4)
+                        || !first && buf.getLong(off + HEADER) != nextSeq) {
+                    System.out.println("Transaction log: discarding torn record at segment "
+                            + seg.index + " offset " + off);
+                    break;
+                }
+                nextSeq = buf.getLong(off + HEADER) + 1;
+                first = false;
+                off += HEADER + len;
+            }
+            writeOffset = off;
+            if (!rolled) {
+                // new appends must land on clean bytes: a later crash could otherwise expose
+                // stale records behind them again
+                wipe(seg, off);
+                // anything after a cut point is unreachable
+                for (int j = i + 1; j < indexes.size(); j++)
+                    new File(dir, segmentName(indexes.get(j))).delete();
+                break;
+            }
+            if (i == indexes.size() - 1) {
+                current = mapSegment(seg.index + 1);
+                segments.add(current);
+                writeOffset = 0;
+            }
+        }
+        committedPosition = position(current.index, writeOffset);
+    }
+
+    // zeroes the segment from off to its end, writing only the words that are not zero yet
+    private void wipe(Segment seg, int off) {
+        MappedByteBuffer buf = seg.buffer;
+        boolean changed = false;
+        int p = off;
+        for (; p < segmentSize && (p & 7) != 0; p++) {
+            changed |= buf.get(p) != 0;
+            buf.put(p, (byte) 0);
+        }
+        for (; p + 8 <= segmentSize; p += 8) {
+            if (buf.getLong(p) != 0) {
+                buf.putLong(p, 0L);
+                changed = true;
+            }
+        }
+        for (; p < segmentSize; p++) {
+            changed |= buf.get(p) != 0;
+            buf.put(p, (byte) 0);
+        }
+        if (changed) buf.force();
+    }
+
+    private Segment mapSegment(int index) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(index)), "rw");
+        if (raf.length() < segmentSize) raf.setLength(segmentSize);
+        FileChannel ch = raf.getChannel();
+        return new Segment(index, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+    }
+
+    private static String segmentName(int index) {
+        return String.format("txlog-%08d.seg", index);
+    }
+
+    private long position(int segmentIndex, int offset) {
+        return (long) segmentIndex * segmentSize + offset;
+    }
+
+    // appends one record and returns its sequence number
+    public long append(LogRecordType type, String username, long amount, long balanceAfter, byte[] extra)
+            throws IOException {
+        long start = System.nanoTime();
+        byte[] user = username.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int extraLen = extra == null ? 0 : extra.length;
+        if (user.length > Short.MAX_VALUE || extraLen > Short.MAX_VALUE)
+            throw new IOException("Log record too large");
+        int len = FIXED_PAYLOAD + user.length + extraLen;
+        if (HEADER + len > segmentSize)
+            throw new IOException("Log record larger than a segment");
+
+        // encode outside the lock, seq is patched in once it is assigned
+        ByteBuffer rec = scratch(HEADER + len);
+        rec.putInt(len).putInt(0)
+           .putLong(0L).putLong(System.currentTimeMillis()).put((byte) type.ordinal())
+           .putLong(amount).putLong(balanceAfter)
+           .putShort((short) user.length).put(user)
+           .putShort((short) extraLen);
+        if (extraLen > 0) rec.put(extra);
+
+        long seq;
+        long beforeLock = System.nanoTime();
+        synchronized (this) {
+            LOCK_WAIT.recordSince(beforeLock);
+            if (closed) throw new IOException("Transaction log is closed");
+            if (writeOffset + HEADER + len > segmentSize) roll();
+            seq = nextSeq++;
+            rec.putLong(HEADER, seq);
+            rec.putInt(4, crc(rec, HEADER, len));
+            rec.flip();
+
+            MappedByteBuffer buf = current.buffer;
+            buf.position(writeOffset);
+            buf.put(rec);
+            writeOffset += HEADER + len;
+            committedPosition = position(current.index, writeOffset);
+            dirty = true;
+            if (fsync == FsyncPolicy.ALWAYS) {
+                buf.force();
+                forces.increment();
+                dirty = false;
+            }
+        }
+        long took = System.nanoTime() - start;
+        appends.increment();
+        appendNanos.add(took);
+        APPEND_TIME.record(took);
+        return seq;
+    }
+
+    private ByteBuffer scratch(int size) {
+        ByteBuffer b = scratch.get();
+        if (b == null || b.capacity() < size) {
+            b = ByteBuffer.allocate(Math.max(256, Integer.highestOneBit(size - 1) << 1));
+            scratch.set(b);
+        }
+        b.clear();
+        return b;
+    }
+
+    // called with the lock held
+    private void roll() throws IOException {
+        if (writeOffset + 4 <= segmentSize)
+            current.buffer.putInt(writeOffset, END_OF_SEGMENT);
+        current.buffer.force();
+        current = mapSegment(current.index + 1);
+        segments.add(current);
+        writeOffset = 0;
+    }
+
+    // visits records from the given position up to what was committed when the scan started;
+    // returns the position after the last record visited
+    public long scan(long fromPosition, Visitor visitor) {
+        long end = committedPosition;
+        long pos = fromPosition;
+        LogRecord rec = new LogRecord();
+        for (Segment seg : segments) {
+            long segStart = position(seg.index, 0);
+            if (segStart + segmentSize <= pos) continue;
+            if (segStart >= end) break;
+            ByteBuffer buf = seg.buffer.duplicate();
+            int off = (int) Math.max(0, pos - segStart);
+            while (segStart + off < end && off + HEADER <= segmentSize) {
+                int len = buf.getInt(off);
+                if (len == 0 || len == END_OF_SEGMENT) break;
+                decode(buf, off, len, rec);
+                rec.position = segStart + off;
+                off += HEADER + len;
+                pos = segStart + off;
+                if (!visitor.visit(rec)) return pos;
+            }
+            pos = Math.max(pos, segStart + segmentSize);
+        }
+        return Math.min(pos, end);
+    }
+
+    // decodes the record at a position handed out by scan (LogRecord.position); false if there
+    // is no record there
+    public boolean read(long position, LogRecord rec) {
+        if (position < 0 || position >= committedPosition) return false;
+        int slot = (int) (position / segmentSize) - segments.get(0).index;
+        if (slot < 0 || slot >= segments.size()) return false;
+        Segment seg = segments.get(slot);
+        int off = (int) (position - position(seg.index, 0));
+        if (off + HEADER > segmentSize) return false;
+        ByteBuffer buf = seg.buffer.duplicate();
+        int len = buf.getInt(off);
+        if (len < FIXED_PAYLOAD || off + HEADER + len > segmentSize) return false;
+        decode(buf, off, len, rec);
+        rec.position = position;
+        return true;
+    }
+
+    private static void decode(ByteBuffer buf, int off, int len, LogRecord rec) {
+        int p = off + HEADER;
+        rec.seq = buf.getLong(p);
+        rec.timestampMillis = buf.getLong(p + 8);
+        rec.type = LogRecordType.fromCode(buf.get(p + 16));
+        rec.amount = buf.getLong(p + 17);
+        rec.balanceAfter = buf.getLong(p + 25);
+        int userLen = buf.getShort(p + 33);
+        byte[] user = new byte[userLen];
+        buf.position(p + 35);
+        buf.get(user);
+        rec.username = new String(user, java.nio.charset.StandardCharsets.UTF_8);
+        int extraLen = buf.getShort();
+        if (extraLen > 0) {
+            rec.extra = new byte[extraLen];
+            buf.get(rec.extra);
+        } else {
+            rec.extra = null;
+        }
+    }
+
+    private static int crc(ByteBuffer buf, int off, int len) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buf.duplicate();
+        view.limit(off + len);
+        view.position(off);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    public void force() {
+        Segment seg;
+        synchronized (this) {
+            seg = current;
+            dirty = false;
+        }
+        seg.buffer.force();
+        forces.increment();
+    }
+
+    public long getCommittedPosition() {
+        return committedPosition;
+    }
+
+    // position of the oldest record still on disk; 0 until segments are deleted
+    public long getFirstPosition() {
+        return position(segments.get(0).index, 0);
+    }
+
+    // Deletes whole segments from the front that end at or before beforePosition and hold only
+    // records older than olderThanMillis (the next segment starts before it). The segment being
+    // written is never deleted. Scans already running keep reading their mapping of it.
+    public synchronized int deleteSegments(long beforePosition, long olderThanMillis) throws IOException {
+        int deleted = 0;
+        while (segments.size() > 1) {
+            Segment seg = segments.get(0);
+            Segment next = segments.get(1);
+            if (seg == current || position(next.index, 0) > beforePosition) break;
+            ByteBuffer buf = next.buffer.duplicate();
+            if (buf.getInt(0) <= 0 || buf.getLong(HEADER + 8) >= olderThanMillis) break;
+            segments.remove(0);
+            seg.channel.close();
+            if (!new File(dir, segmentName(seg.index)).delete())
+                throw new IOException("Could not delete log segment " + segmentName(seg.index));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    // start of the last segment whose first record is not newer than millis, so a time-range
+    // scan can skip whole segments
+    public long seekTime(long millis) {
+        long start = 0;
+        for (Segment seg : segments) {
+            ByteBuffer buf = seg.buffer.duplicate();
+            int len = buf.getInt(0);
+            if (len <= 0 || buf.getLong(HEADER + 8) > millis) break;
+            start = position(seg.index, 0);
+        }
+        return start;
+    }
+
+    public long getAppendCount() {
+        return appends.sum();
+    }
+
+    public double getAverageAppendMicros() {
+        long n = appends.sum();
+        return n == 0 ? 0.0 : appendNanos.sum() / (double) n / 1000.0;
+    }
+
+    public long getForceCount() {
+        return forces.sum();
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsync;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        if (syncer != null) syncer.shutdownNow();
+        for (Segment seg : segments) {
+            seg.buffer.force();
+            seg.channel.close();
+        }
+    }
+}
+
+// one account in a balance snapshot
+class SnapshotEntry {
+    final String username;
+    Credential credential;
+    AccountStatus status;
+    long balance;
+    long carriedInterest; // InterestRate.SCALE units
+    int interestDay;      // epoch day of the last accrual, 0 = never
+
+    SnapshotEntry(String username, Credential credential, AccountStatus status, long balance) {
+        this.username = username;
+        this.credential = credential;
+        this.status = status;
+        this.balance = balance;
+    }
+}
+
+// Point-in-time fold of the transaction log: every account's PIN hash, status, balance and
+// interest accrual as of logPosition. Written to a temp file and renamed into place.
+//
+// Version 4 layout: int magic, int version, long logPosition, int partitions, then per
+// partition (long offset, int length, int count, long crc32), then a crc32 of everything
+// before it. Each account goes to section AccountPreloader.partitionOf(user) as
+// short userLen, user (UTF-8), short credLen, credential, byte status, long balance,
+// long carriedInterest, int interestDay, so the sections can be decoded in parallel at
+// start-up. Version 3 is the same without the interest fields. Versions 1 and 2 were one
+// sequential stream with a trailing CRC; version 1 held plain PINs, hashed while loading.
+class BalanceSnapshot {
+    private static final int MAGIC = 0x41544D53; // "ATMS"
+    private static final int VERSION = 4;
+    static final int FIRST_PARTITIONED = 3;
+    static final int PARTITIONS = 32;
+
+    // section table of a partitioned (version 3+) file
+    static final class Index {
+        final int version;
+        final long logPosition;
+        final long[] offset;
+        final int[] length;
+        final int[] count;
+        final long[] crc;
+
+        Index(int version, long logPosition, int partitions) {
+            this.version = version;
+            this.logPosition = logPosition;
+            this.offset = new long[partitions];
+            this.length = new int[partitions];
+            this.count = new int[partitions];
+            this.crc = new long[partitions];
+        }
+
+        int partitions() {
+            return offset.length;
+        }
+
+        long accounts() {
+            long n = 0;
+            for (int c : count) n += c;
+            return n;
+        }
+
+        static int headerSize(int partitions) {
+            return 4 + 4 + 8 + 4 + partitions * (8 + 4 + 4 + 8) + 8;
+        }
+    }
+
+    // receives the decoded accounts of one section
+    interface EntryVisitor {
+        void visit(SnapshotEntry entry);
+    }
+
+    final long logPosition;
+    final Map<String, SnapshotEntry> entries;
+
+    BalanceSnapshot(long logPosition, Map<String, SnapshotEntry> entries) {
+        this.logPosition = logPosition;
+        this.entries = entries;
+    }
+
+    static BalanceSnapshot empty() {
+        return new BalanceSnapshot(0, new LinkedHashMap<String, SnapshotEntry>());
+    }
+
+    // returns null if there is no snapshot or it fails its checksum
+    static BalanceSnapshot read(File file) throws IOException {
+        if (!file.exists()) return null;
+        if (readVersion(file) >= FIRST_PARTITIONED) return readPartitioned(file);
+        CheckedInputStream crcIn = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(crcIn);
+        try {
+            if (in.readInt() != MAGIC) return null;
+            int version = in.readInt();
+            if (version != 2 && version != 1) return null;
+            long logPosition = in.readLong();
+            int count = in.readInt();
+            Map<String, SnapshotEntry> entries = new LinkedHashMap<String, SnapshotEntry>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String user = in.readUTF();
+                Credential credential;
+                if (version == 1) {
+                    credential = Credential.create(in.readInt());
+                } else {
+                    byte[] encoded = new byte[in.readUnsignedShort()];
+                    in.readFully(encoded);
+                    credential = Credential.decode(encoded);
+                }
+                AccountStatus status = AccountStatus.values()[in.readByte()];
+                long balance = in.readLong();
+                entries.put(user, new SnapshotEntry(user, credential, status, balance));
+            }
+            long expected = crcIn.getChecksum().getValue();
+            if (in.readLong() != expected) return null;
+            return new BalanceSnapshot(logPosition, entries);
+        } catch (EOFException torn) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    // magic + version of a snapshot file, 0 if it is not one
+    static int readVersion(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC ? in.readInt() : 0;
+        } catch (EOFException torn) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    // section table of a partitioned snapshot, null if the file is not one or its header is torn
+    static Index readIndex(FileChannel ch) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(4 + 4 + 8 + 4);
+        if (ch.read(head, 0) != head.capacity()) return null;
+        head.flip();
+        if (head.getInt() != MAGIC) return null;
+        int version = head.getInt();
+        if (version < FIRST_PARTITIONED || version > VERSION) return null;
+        long logPosition = head.getLong();
+        int partitions = head.getInt();
+        if (partitions <= 0 || partitions > 1 << 16) return null;
+        ByteBuffer buf = ByteBuffer.allocate(Index.headerSize(partitions));
+        if (ch.read(buf, 0) != buf.capacity()) return null;
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.capacity() - 8);
+        buf.position(head.capacity());
+        Index index = new Index(version, logPosition, partitions);
+        for (int p = 0; p < partitions; p++) {
+            index.offset[p] = buf.getLong();
+            index.length[p] = buf.getInt();
+            index.count[p] = buf.getInt();
+            index.crc[p] = buf.getLong();
+        }
+        return buf.getLong() == crc.getValue() ? index : null;
+    }
+
+    // decodes one section; throws if it fails its checksum
+    static void readSection(FileChannel ch, Index index, int p, EntryVisitor visitor) throws IOException {
+        ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, index.offset[p], index.length[p]);
+        CRC32 crc = new CRC32();
+        crc.update(buf.duplicate());
+        if (crc.getValue() != index.crc[p])
+            throw new IOException("snapshot partition " + p + " fails its checksum");
+        AccountStatus[] statuses = AccountStatus.values();
+        for (int i = 0; i < index.count[p]; i++) {
+            byte[] user = new byte[buf.getShort() & 0xffff];
+            buf.get(user);
+            byte[] encoded = new byte[buf.getShort() & 0xffff];
+            buf.get(encoded);
+            AccountStatus status = statuses[buf.get()];
+            SnapshotEntry e = new SnapshotEntry(new String(user, java.nio.charset.StandardCharsets.UTF_8),
+                    Credential.decode(encoded), status, buf.getLong());
+            if (index.version >= 4) {
+                e.carriedInterest = buf.getLong();
+                e.interestDay = buf.getInt();
+            }
+            visitor.visit(e);
+        }
+    }
+
+    private static BalanceSnapshot readPartitioned(File file) throws IOException {
+        FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+        try {
+            Index index = readIndex(ch);
+            if (index == null) return null;
+            final Map<String, SnapshotEntry> entries =
+                    new LinkedHashMap<String, SnapshotEntry>((int) Math.min(1 << 30, index.accounts() * 4 / 3 + 1));
+            for (int p = 0; p < index.partitions(); p++) {
+                readSection(ch, index, p, new EntryVisitor() {
+                    public void visit(SnapshotEntry e) {
+                        entries.put(e.username, e);
+                    }
+                });
+            }
+            return new BalanceSnapshot(index.logPosition, entries);
+        } catch (IOException | java.nio.BufferUnderflowException | IndexOutOfBoundsException corrupt) {
+            return null;
+        } finally {
+            ch.close();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void write(File file) throws IOException {
+        List<SnapshotEntry>[] parts = new List[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++)
+            parts[p] = new ArrayList<SnapshotEntry>(entries.size() / PARTITIONS + 16);
+        for (SnapshotEntry e : entries.values())
+            parts[AccountPreloader.partitionOf(e.username, PARTITIONS)].add(e);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            Index index = new Index(VERSION, logPosition, PARTITIONS);
+            int headerSize = Index.headerSize(PARTITIONS);
+            fos.write(new byte[headerSize]); // filled in below
+            long offset = headerSize;
+            BufferedOutputStream buffered = new BufferedOutputStream(fos, 1 << 16);
+            for (int p = 0; p < PARTITIONS; p++) {
+                CheckedOutputStream crcOut = new CheckedOutputStream(buffered, new CRC32());
+                DataOutputStream out = new DataOutputStream(crcOut);
+                for (SnapshotEntry e : parts[p]) {
+                    byte[] user = e.username.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                    byte[] encoded = e.credential.encode();
+                    out.writeShort(user.length);
+                    out.write(user);
+                    out.writeShort(encoded.length);
+                    out.write(encoded);
+                    out.writeByte(e.status.ordinal());
+                    out.writeLong(e.balance);
+                    out.writeLong(e.carriedInterest);
+                    out.writeInt(e.interestDay);
+                }
+                out.flush();
+                index.offset[p] = offset;
+                index.length[p] = out.size();
+                index.count[p] = parts[p].size();
+                index.crc[p] = crcOut.getChecksum().getValue();
+                offset += out.size();
+            }
+            buffered.flush();
+
+            ByteBuffer head = ByteBuffer.allocate(headerSize);
+            head.putInt(MAGIC).putInt(VERSION).putLong(logPosition).putInt(PARTITIONS);
+            for (int p = 0; p < PARTITIONS; p++)
+                head.putLong(index.offset[p]).putInt(index.length[p]).putInt(index.count[p]).putLong(index.crc[p]);
+            CRC32 crc = new CRC32();
+            crc.update(head.array(), 0, headerSize - 8);
+            head.putLong(crc.getValue());
+            head.flip();
+            FileChannel ch = fos.getChannel();
+            while (head.hasRemaining())
+                ch.write(head, head.position());
+            ch.force(true);
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not replace snapshot " + file);
+        }
+    }
+
+    // applies one log record; money records are deltas so replay order does not matter
+    void apply(LogRecord r) {
+        if (r.type == null) return;
+        SnapshotEntry e = entries.get(r.username);
+        switch (r.type) {
+            case OPEN:
+                if (e == null)
+                    entries.put(r.username, new SnapshotEntry(r.username, r.credential(), AccountStatus.ACTIVE, r.amount));
+                return;
+            case DEPOSIT:
+            case CHEQUE:
+                if (e != null) e.balance += r.amount;
+                return;
+            case WITHDRAWAL:
+                if (e != null) e.balance -= r.amount;
+                return;
+            case PIN_CHANGE:
+                if (e != null) e.credential = r.credential();
+                return;
+            case STATUS:
+                if (e != null) e.status = AccountStatus.values()[(int) r.amount];
+                return;
+            case TRANSFER:
+                SnapshotEntry target = entries.get(r.transferTarget());
+                if (e != null) e.balance -= r.amount;
+                if (target != null) target.balance += r.amount;
+                return;
+            case INTEREST:
+                if (e != null) {
+                    e.balance += r.amount;
+                    e.carriedInterest = r.interestCarried();
+                    e.interestDay = r.interestDay();
+                }
+                return;
+            default:
+        }
+    }
+}
+
+// What the log tail after a snapshot changes, per user. Folded before the snapshot is loaded so
+// its partitions can be loaded in any order and every account comes out current.
+class LogDelta {
+    static final class Change {
+        long balance;
+        Credential credential;
+        AccountStatus status;
+        int interestDay; // 0 = no accrual in the tail
+        long carriedInterest;
+    }
+
+    final Map<String, SnapshotEntry> opened = new LinkedHashMap<String, SnapshotEntry>();
+    final Map<String, Change> changes = new HashMap<String, Change>();
+    long records;
+
+    void apply(LogRecord r) {
+        if (r.type == null) return;
+        records++;
+        switch (r.type) {
+            case OPEN:
+                if (!opened.containsKey(r.username))
+                    opened.put(r.username, new SnapshotEntry(r.username, r.credential(), AccountStatus.ACTIVE, r.amount));
+                return;
+            case DEPOSIT:
+            case CHEQUE:
+                add(r.username, r.amount);
+                return;
+            case WITHDRAWAL:
+                add(r.username, -r.amount);
+                return;
+            case TRANSFER:
+                add(r.username, -r.amount);
+                add(r.transferTarget(), r.amount);
+                return;
+            case PIN_CHANGE: {
+                SnapshotEntry o = opened.get(r.username);
+                if (o != null) o.credential = r.credential();
+                else change(r.username).credential = r.credential();
+                return;
+            }
+            case STATUS: {
+                AccountStatus status = AccountStatus.values()[(int) r.amount];
+                SnapshotEntry o = opened.get(r.username);
+                if (o != null) o.status = status;
+                else change(r.username).status = status;
+                return;
+            }
+            case INTEREST: {
+                add(r.username, r.amount);
+                SnapshotEntry o = opened.get(r.username);
+                if (o != null) {
+                    o.carriedInterest = r.interestCarried();
+                    o.interestDay = r.interestDay();
+                } else {
+                    Change c = change(r.username);
+                    c.carriedInterest = r.interestCarried();
+                    c.interestDay = r.interestDay();
+                }
+                return;
+            }
+            default:
+        }
+    }
+
+    // snapshot entry brought up to the end of the log
+    SnapshotEntry merge(SnapshotEntry e) {
+        Change c = changes.get(e.username);
+        if (c != null) {
+            e.balance += c.balance;
+            if (c.credential != null) e.credential = c.credential;
+            if (c.status != null) e.status = c.status;
+            if (c.interestDay != 0) {
+                e.carriedInterest = c.carriedInterest;
+                e.interestDay = c.interestDay;
+            }
+        }
+        return e;
+    }
+
+    private void add(String user, long amount) {
+        if (user == null) return;
+        SnapshotEntry o = opened.get(user);
+        if (o != null) o.balance += amount;
+        else change(user).balance += amount;
+    }
+
+    private Change change(String user) {
+        Change c = changes.get(user);
+        if (c == null) changes.put(user, c = new Change());
+        return c;
+    }
+}
+
+// Loads a whole customer base at start-up, one partition per task on a temporary pool, while
+// the ATM is already serving. A lookup of an account whose partition is not in yet waits for
+// that partition only (see AccountRegistry.find), and loads it itself if no loader thread has
+// picked it up, so early customers do not queue behind the whole base. Also keeps the
+// start-up timings: time to first login and time until every partition is loaded.
+class AccountPreloader {
+
+    // streams every account of one partition into the sink
+    interface PartitionSource {
+        void load(int partition, int partitions, AccountRegistry.Visitor sink) throws Exception;
+    }
+
+    private final String source;
+    private final int partitions;
+    private final CountDownLatch[] loaded;
+    private final AtomicIntegerArray claimed;
+    private final long startNanos;
+    private final AtomicLong accounts = new AtomicLong();
+    private final AtomicInteger failedPartitions = new AtomicInteger();
+    private final AtomicLong firstLoginNanos = new AtomicLong();
+    private final CompletableFuture<AccountPreloader> done = new CompletableFuture<AccountPreloader>();
+    private volatile long loadedNanos;
+    private volatile PartitionSource from;
+    private volatile AccountRegistry.Visitor sink;
+
+    AccountPreloader(String source, int partitions, long startNanos) {
+        this.source = source;
+        this.partitions = partitions;
+        this.startNanos = startNanos;
+        this.claimed = new AtomicIntegerArray(partitions);
+        this.loaded = new CountDownLatch[partitions];
+        for (int p = 0; p < partitions; p++)
+            loaded[p] = new CountDownLatch(1);
+    }
+
+    // same split as the snapshot sections and the DB preload query (MOD(CRC32(username), n))
+    static int partitionOf(String username, int partitions) {
+        CRC32 crc = new CRC32();
+        crc.update(username.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % partitions);
+    }
+
+    // nothing to load, e.g. a sequential recovery that already finished
+    static AccountPreloader finished(String source, long accounts, long startNanos) {
+        AccountPreloader p = new AccountPreloader(source, 1, startNanos);
+        p.accounts.set(accounts);
+        p.claimed.set(0, 1);
+        p.partitionDone(0);
+        return p;
+    }
+
+    void start(PartitionSource from, final AccountRegistry registry, int threads) {
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, partitions)),
+                new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Startup-Loader-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.sink = new AccountRegistry.Visitor() {
+            public void visit(AccountRecord record) {
+                registry.put(record);
+                accounts.incrementAndGet();
+            }
+        };
+        this.from = from;
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            pool.execute(new Runnable() {
+                public void run() {
+                    loadPartition(partition);
+                }
+            });
+        }
+        pool.shutdown();
+    }
+
+    // whoever claims a partition first loads it
+    private boolean loadPartition(int partition) {
+        if (!claimed.compareAndSet(partition, 0, 1)) return false;
+        try {
+            from.load(partition, partitions, sink);
+        } catch (Exception e) {
+            failedPartitions.incrementAndGet();
+            System.out.println("Startup: " + source + " partition " + partition + " failed: " + e);
+        } finally {
+            partitionDone(partition);
+        }
+        return true;
+    }
+
+    private void partitionDone(int p) {
+        loaded[p].countDown();
+        for (CountDownLatch l : loaded)
+            if (l.getCount() > 0) return;
+        synchronized (this) {
+            if (loadedNanos != 0) return;
+            loadedNanos = System.nanoTime();
+        }
+        done.complete(this);
+    }
+
+    public boolean isLoaded() {
+        return loadedNanos != 0;
+    }
+
+    // blocks until the username's partition is in; false if it already was
+    boolean awaitPartition(String username) {
+        if (loadedNanos != 0) return false;
+        int p = partitionOf(username, partitions);
+        CountDownLatch latch = loaded[p];
+        if (latch.getCount() == 0) return false;
+        if (from != null && loadPartition(p)) return true;
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    void onLogin() {
+        if (firstLoginNanos.get() == 0 && firstLoginNanos.compareAndSet(0, System.nanoTime()))
+            System.out.println(String.format("Startup: first login after %.1fms (%d accounts loaded so far)",
+                    getFirstLoginMillis(), getAccountsLoaded()));
+    }
+
+    public CompletableFuture<AccountPreloader> done() {
+        return done;
+    }
+
+    public String getSource() { return source; }
+    public long getAccountsLoaded() { return accounts.get(); }
+    public int getFailedPartitions() { return failedPartitions.get(); }
+
+    public double getFirstLoginMillis() {
+        long t = firstLoginNanos.get();
+        return t == 0 ? 0 : (t - startNanos) / 1e6;
+    }
+
+    public double getLoadedMillis() {
+        long t = loadedNanos;
+        return t == 0 ? 0 : (t - startNanos) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        double ms = getLoadedMillis();
+        return String.format("Startup: %d account(s) from %s in %d partition(s), fully loaded after %.1fms (%.0f accounts/s)%s",
+                getAccountsLoaded(), source, partitions, ms, ms == 0 ? 0.0 : getAccountsLoaded() * 1000.0 / ms,
+                getFailedPartitions() == 0 ? "" : ", " + getFailedPartitions() + " partition(s) FAILED");
+    }
+}
+
+// Local persistence engine: the transaction log plus periodic balance snapshots and the
+// per-user transaction index. recover() rebuilds accounts from the latest snapshot and the log
+// tail after it. Snapshots are built by folding the log itself (not by reading live balances),
+// so they are always consistent with a log position even while deposits are running.
+class LocalStore implements Closeable {
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String INDEX_FILE = "txindex.bin";
+    private static final long INDEX_CATCH_UP_MS = 1000;
+
+    private final File dir;
+    private final TransactionLog log;
+    private final TransactionIndex index;
+    private final ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+    private volatile long lastSnapshotPosition;
+    private volatile long lastSnapshotMillis;
+    private volatile long logRetentionMillis; // 0 = keep every segment
+
+    public LocalStore(File dir, FsyncPolicy fsync, long fsyncIntervalMillis, long snapshotIntervalMillis)
+            throws IOException {
+        this.dir = dir;
+        this.log = TransactionLog.open(new File(dir, "txlog"), fsync, fsyncIntervalMillis);
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Balance-Snapshotter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        snapshotter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if (log.getCommittedPosition() != lastSnapshotPosition) snapshot();
+                } catch (IOException e) {
+                    System.out.println("Balance snapshot failed: " + e.getMessage());
+                }
+            }
+        }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+
+        // the saved index covers the log up to where it was closed; the rest is read in the
+        // background here (queries that come first catch up themselves)
+        this.index = new TransactionIndex(log);
+        final boolean loaded = index.load(new File(dir, INDEX_FILE));
+        snapshotter.execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                long added = index.catchUp();
+                System.out.println(String.format("Transaction index: %d entries for %d user(s), %s %d in %.1fms",
+                        index.getEntries(), index.getUsers(), loaded ? "loaded, indexed" : "rebuilt from the log,",
+                        added, (System.nanoTime() - start) / 1e6));
+            }
+        });
+        snapshotter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                index.catchUp();
+            }
+        }, INDEX_CATCH_UP_MS, INDEX_CATCH_UP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public TransactionLog log() {
+        return log;
+    }
+
+    public TransactionIndex index() {
+        return index;
+    }
+
+    // loads snapshot + log tail into the registry, returns the number of accounts restored
+    public int recover(AccountRegistry registry) throws IOException {
+        long start = System.nanoTime();
+        BalanceSnapshot state = loadSnapshot();
+        final BalanceSnapshot s = state;
+        final long[] replayed = new long[1];
+        log.scan(state.logPosition, new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                s.apply(r);
+                replayed[0]++;
+                return true;
+            }
+        });
+        for (SnapshotEntry e : state.entries.values())
+            registry.put(toRecord(e));
+        System.out.println(String.format("Recovered %d account(s) from snapshot@%d + %d log record(s) in %.1fms",
+                state.entries.size(), state.logPosition, replayed[0], (System.nanoTime() - start) / 1e6));
+        return state.entries.size();
+    }
+
+    // Warm start from a partitioned snapshot: the log tail after the snapshot is folded first
+    // (it is short), then the snapshot partitions are decoded in parallel straight into the
+    // registry, each account merged with its tail changes, so an account is final as soon as it
+    // is visible. Older snapshot versions fall back to the sequential recover().
+    public AccountPreloader recoverParallel(final AccountRegistry registry, int threads) throws IOException {
+        long start = System.nanoTime();
+        File file = new File(dir, SNAPSHOT_FILE);
+        final FileChannel ch;
+        final BalanceSnapshot.Index index;
+        if (file.exists() && BalanceSnapshot.readVersion(file) >= BalanceSnapshot.FIRST_PARTITIONED) {
+            ch = new RandomAccessFile(file, "r").getChannel();
+            index = BalanceSnapshot.readIndex(ch);
+            if (index == null) ch.close();
+        } else {
+            ch = null;
+            index = null;
+        }
+        if (index == null)
+            return AccountPreloader.finished("log", recover(registry), start);
+
+        final LogDelta delta = new LogDelta();
+        log.scan(index.logPosition, new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                delta.apply(r);
+                return true;
+            }
+        });
+        System.out.println(String.format("Startup: snapshot@%d with %d account(s), %d log record(s) after it",
+                index.logPosition, index.accounts(), delta.records));
+        // accounts opened after the snapshot are complete in the delta
+        for (SnapshotEntry e : delta.opened.values())
+            registry.put(toRecord(e));
+
+        final AccountPreloader preloader = new AccountPreloader("snapshot", index.partitions(), start);
+        preloader.start(new AccountPreloader.PartitionSource() {
+            public void load(int partition, int partitions, final AccountRegistry.Visitor sink) throws Exception {
+                try {
+                    BalanceSnapshot.readSection(ch, index, partition, new BalanceSnapshot.EntryVisitor() {
+                        public void visit(SnapshotEntry e) {
+                            sink.visit(toRecord(delta.merge(e)));
+                        }
+                    });
+                } catch (IOException | RuntimeException corrupt) {
+                    // rebuild just this partition from the full log, if it is still all there
+                    if (log.getFirstPosition() > 0) throw new IOException(corrupt.getMessage()
+                            + " and the log before position " + log.getFirstPosition() + " was deleted", corrupt);
+                    System.out.println("Startup: " + corrupt.getMessage() + ", replaying the full log for it");
+                    final BalanceSnapshot full = BalanceSnapshot.empty();
+                    log.scan(0, new TransactionLog.Visitor() {
+                        public boolean visit(LogRecord r) {
+                            full.apply(r);
+                            return true;
+                        }
+                    });
+                    for (SnapshotEntry e : full.entries.values())
+                        if (AccountPreloader.partitionOf(e.username, partitions) == partition
+                                && !delta.opened.containsKey(e.username))
+                            sink.visit(toRecord(e));
+                }
+            }
+        }, registry, threads);
+        preloader.done().whenComplete(new BiConsumer<AccountPreloader, Throwable>() {
+            public void accept(AccountPreloader p, Throwable t) {
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        return preloader;
+    }
+
+    private static AccountRecord toRecord(SnapshotEntry e) {
+        AccountRecord record = new AccountRecord(e.username, e.credential, new SavingsAccount(Math.toIntExact(e.balance)));
+        record.setStatus(e.status);
+        record.setInterest(e.interestDay, e.carriedInterest);
+        return record;
+    }
+
+    // Folds the log since the last snapshot into a new one. With a log retention set, segments
+    // are then deleted up to the snapshot this one was built on, which has been on disk for a
+    // whole interval already, once they are older than the retention (statement search and
+    // history exports read the log, so old segments are kept by default).
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            final BalanceSnapshot base = loadSnapshot();
+            long end = log.scan(base.logPosition, new TransactionLog.Visitor() {
+                public boolean visit(LogRecord r) {
+                    base.apply(r);
+                    return true;
+                }
+            });
+            new BalanceSnapshot(end, base.entries).write(new File(dir, SNAPSHOT_FILE));
+            lastSnapshotPosition = end;
+            lastSnapshotMillis = System.currentTimeMillis();
+            long retention = logRetentionMillis;
+            if (retention > 0) {
+                int deleted = log.deleteSegments(base.logPosition, lastSnapshotMillis - retention);
+                if (deleted > 0)
+                    System.out.println("Transaction log: deleted " + deleted + " segment(s) covered by the snapshot");
+            }
+        }
+    }
+
+    private BalanceSnapshot loadSnapshot() throws IOException {
+        BalanceSnapshot snap = BalanceSnapshot.read(new File(dir, SNAPSHOT_FILE));
+        if (snap == null) {
+            // the full log can only stand in for the snapshot while no segment was deleted
+            if (log.getFirstPosition() > 0)
+                throw new IOException("Balance snapshot missing or unreadable and the log before position "
+                        + log.getFirstPosition() + " was deleted; restore " + SNAPSHOT_FILE + " from a backup");
+            if (new File(dir, SNAPSHOT_FILE).exists())
+                System.out.println("Balance snapshot unreadable, replaying the full log");
+            return BalanceSnapshot.empty();
+        }
+        return snap;
+    }
+
+    // log segments older than this and covered by a snapshot are deleted; 0 keeps them all
+    public void setLogRetentionMillis(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("log retention must not be negative");
+        this.logRetentionMillis = millis;
+    }
+
+    public long getLastSnapshotPosition() {
+        return lastSnapshotPosition;
+    }
+
+    public long getLastSnapshotMillis() {
+        return lastSnapshotMillis;
+    }
+
+    // final snapshot and index on clean shutdown make the next start a pure snapshot load
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdownNow();
+        try {
+            snapshot();
+            index.catchUp();
+            index.save(new File(dir, INDEX_FILE));
+        } finally {
+            log.close();
+        }
+    }
+}
+
+// Per-user, time-ordered index over the transaction log, for statement queries. For each
+// customer it keeps the log positions of their statement entries (opening, deposits,
+// withdrawals, cheques, transfers out and in, interest) in append order; amount, type and
+// balance after stay in the log record, which is read by position. Positions are stored as
+// varint deltas in blocks of 64, with each block's first position and timestamp kept aside, so
+// an entry costs a few bytes and finding a time or a cursor is a binary search plus one block,
+// however long the log is. catchUp() folds in what was appended since the last call; the index
+// is saved on close, so a restart only reads the log written after it.
+class TransactionIndex {
+    static final int BLOCK = 64;
+    // record timestamps are taken just before the append lock, so allow a little disorder
+    static final long CLOCK_SKEW_MS = 1000;
+    private static final int MAGIC = 0x54584958; // "TXIX"
+    private static final int VERSION = 1;
+
+    // one customer's entries
+    static final class UserIndex {
+        private int count;
+        private long lastPosition;
+        private long[] blockPosition = new long[1];
+        private long[] blockTime = new long[1];
+        private int[] blockOffset = new int[1]; // where the block's deltas start
+        private byte[] deltas = new byte[16];
+        private int deltaLength;
+
+        synchronized void add(long position, long timestampMillis) {
+            if (count % BLOCK == 0) {
+                int b = count / BLOCK;
+                if (b == blockPosition.length) {
+                    blockPosition = Arrays.copyOf(blockPosition, b * 2);
+                    blockTime = Arrays.copyOf(blockTime, b * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, b * 2);
+                }
+                blockPosition[b] = position;
+                blockTime[b] = timestampMillis;
+                blockOffset[b] = deltaLength;
+            } else {
+                if (deltaLength + 10 > deltas.length)
+                    deltas = Arrays.copyOf(deltas, Math.max(deltas.length * 2, deltaLength + 10));
+                long d = position - lastPosition;
+                while ((d & ~0x7FL) != 0) {
+                    deltas[deltaLength++] = (byte) ((d & 0x7F) | 0x80);
+                    d >>>= 7;
+                }
+                deltas[deltaLength++] = (byte) d;
+            }
+            lastPosition = position;
+            count++;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized int blocks() {
+            return (count + BLOCK - 1) / BLOCK;
+        }
+
+        // decodes block b into out and returns how many positions it holds
+        synchronized int block(int b, long[] out) {
+            int n = Math.min(BLOCK, count - b * BLOCK);
+            if (n <= 0) return 0;
+            long p = blockPosition[b];
+            out[0] = p;
+            int off = blockOffset[b];
+            for (int i = 1; i < n; i++) {
+                long d = 0;
+                int shift = 0;
+                byte x;
+                do {
+                    x = deltas[off++];
+                    d |= (long) (x & 0x7F) << shift;
+                    shift += 7;
+                } while (x < 0);
+                p += d;
+                out[i] = p;
+            }
+            return n;
+        }
+
+        // last block whose first entry is at or before millis (0 if none)
+        synchronized int blockAtTime(long millis) {
+            return lastAtOrBefore(blockTime, blocks(), millis);
+        }
+
+        // last block whose first entry is at or before position (0 if none)
+        synchronized int blockAtPosition(long position) {
+            return lastAtOrBefore(blockPosition, blocks(), position);
+        }
+
+        private static int lastAtOrBefore(long[] keys, int n, long key) {
+            int lo = 0, hi = n - 1, found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        synchronized void write(DataOutputStream out) throws IOException {
+            int blocks = blocks();
+            out.writeInt(count);
+            out.writeLong(lastPosition);
+            for (int b = 0; b < blocks; b++) {
+                out.writeLong(blockPosition[b]);
+                out.writeLong(blockTime[b]);
+                out.writeInt(blockOffset[b]);
+            }
+            out.writeInt(deltaLength);
+            out.write(deltas, 0, deltaLength);
+        }
+
+        static UserIndex read(DataInputStream in) throws IOException {
+            UserIndex u = new UserIndex();
+            u.count = in.readInt();
+            u.lastPosition = in.readLong();
+            int blocks = u.blocks();
+            u.blockPosition = new long[Math.max(1, blocks)];
+            u.blockTime = new long[Math.max(1, blocks)];
+            u.blockOffset = new int[Math.max(1, blocks)];
+            for (int b = 0; b < blocks; b++) {
+                u.blockPosition[b] = in.readLong();
+                u.blockTime[b] = in.readLong();
+                u.blockOffset[b] = in.readInt();
+            }
+            u.deltaLength = in.readInt();
+            u.deltas = new byte[Math.max(16, u.deltaLength)];
+            in.readFully(u.deltas, 0, u.deltaLength);
+            return u;
+        }
+    }
+
+    private static final Counter ROWS_READ =
+            Metrics.counter("atm_txindex_rows_read_total", "Log records read by statement queries");
+    private static final LatencyHistogram CATCH_UP_TIME =
+            Metrics.histogram("atm_txindex_catch_up_seconds", "Time to index newly appended log records");
+
+    private final TransactionLog log;
+    private final ConcurrentHashMap<String, UserIndex> users = new ConcurrentHashMap<String, UserIndex>();
+    private final AtomicLong entries = new AtomicLong();
+    private volatile long indexedPosition; // everything before it is indexed
+
+    TransactionIndex(TransactionLog log) {
+        this.log = log;
+    }
+
+    // the entry type as the given user sees the record, null if it is not a statement entry
+    static TxType typeFor(String username, LogRecord r) {
+        switch (r.type) {
+            case OPEN:
+                return TxType.OPEN;
+            case DEPOSIT:
+                return TxType.DEPOSIT;
+            case WITHDRAWAL:
+                return TxType.WITHDRAWAL;
+            case CHEQUE:
+                return TxType.CHEQUE;
+            case TRANSFER:
+                return username.equals(r.username) ? TxType.TRANSFER : TxType.TRANSFER_IN;
+            case INTEREST:
+                return r.amount == 0 ? null : TxType.INTEREST; // fraction carried, nothing credited
+            default:
+                return null;
+        }
+    }
+
+    // indexes what was appended since the last call; returns the number of new entries
+    public synchronized long catchUp() {
+        long start = System.nanoTime();
+        final long before = entries.get();
+        indexedPosition = log.scan(indexedPosition, new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                if (typeFor(r.username, r) == null) return true;
+                add(r.username, r.position, r.timestampMillis);
+                if (r.type == LogRecordType.TRANSFER) {
+                    String target = r.transferTarget();
+                    if (target != null && !target.equals(r.username)) add(target, r.position, r.timestampMillis);
+                }
+                return true;
+            }
+        });
+        CATCH_UP_TIME.recordSince(start);
+        return entries.get() - before;
+    }
+
+    private void add(String username, long position, long timestampMillis) {
+        UserIndex u = users.get(username);
+        if (u == null) {
+            u = new UserIndex();
+            UserIndex raced = users.putIfAbsent(username, u);
+            if (raced != null) u = raced;
+        }
+        u.add(position, timestampMillis);
+        entries.incrementAndGet();
+    }
+
+    // Visits the user's records that match the query, in the query's order, starting after
+    // the cursor position (-1 = from the start). Each record is as written to the log; see
+    // typeFor for how the user sees it. Stop by returning false.
+    void scan(String username, TransactionQuery query, long cursor, TransactionLog.Visitor visitor) {
+        if (indexedPosition < log.getCommittedPosition()) catchUp(); // read your own writes
+        UserIndex u = users.get(username);
+        if (u == null) return;
+        long[] block = new long[BLOCK];
+        LogRecord r = new LogRecord();
+        int blocks = u.blocks();
+        long from = query.fromMillis - CLOCK_SKEW_MS;
+        long to = query.toMillis > Long.MAX_VALUE - CLOCK_SKEW_MS ? Long.MAX_VALUE : query.toMillis + CLOCK_SKEW_MS;
+        if (!query.newestFirst) {
+            for (int b = cursor >= 0 ? u.blockAtPosition(cursor) : u.blockAtTime(from); b < blocks; b++) {
+                int n = u.block(b, block);
+                for (int i = 0; i < n; i++) {
+                    if (block[i] <= cursor || !log.read(block[i], r)) continue;
+                    ROWS_READ.increment();
+                    if (r.timestampMillis >= to) return; // past the range
+                    if (query.matches(typeFor(username, r), r.amount, r.timestampMillis) && !visitor.visit(r)) return;
+                }
+            }
+        } else {
+            for (int b = cursor >= 0 ? u.blockAtPosition(cursor) : u.blockAtTime(to); b >= 0; b--) {
+                int n = u.block(b, block);
+                for (int i = n - 1; i >= 0; i--) {
+                    if (cursor >= 0 && block[i] >= cursor || !log.read(block[i], r)) continue;
+                    ROWS_READ.increment();
+                    if (r.timestampMillis < from) return; // before the range
+                    if (query.matches(typeFor(username, r), r.amount, r.timestampMillis) && !visitor.visit(r)) return;
+                }
+            }
+        }
+    }
+
+    // one page of up to limit matching entries; the page's cursor continues after its last row
+    TransactionPage page(final String username, TransactionQuery query, long cursor, final int limit) {
+        final List<TransactionRow> rows = new ArrayList<TransactionRow>(Math.min(limit, 64));
+        final boolean[] more = new boolean[1];
+        scan(username, query, cursor, new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                if (rows.size() == limit) {
+                    more[0] = true;
+                    return false;
+                }
+                rows.add(TransactionRow.of(username, r));
+                return true;
+            }
+        });
+        return new TransactionPage(rows, more[0] ? rows.get(rows.size() - 1).getPosition() : -1);
+    }
+
+    // how many entries the user has in total
+    public int size(String username) {
+        UserIndex u = users.get(username);
+        return u == null ? 0 : u.size();
+    }
+
+    public long getEntries() {
+        return entries.get();
+    }
+
+    public int getUsers() {
+        return users.size();
+    }
+
+    public long getIndexedPosition() {
+        return indexedPosition;
+    }
+
+    // false (and an empty index) if the file is missing, damaged or ahead of the log
+    synchronized boolean load(File file) {
+        if (!file.exists()) return false;
+        CRC32 crc = new CRC32();
+        try {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 1 << 16), crc));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not an index file");
+                long position = in.readLong();
+                int n = in.readInt();
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    String username = in.readUTF();
+                    UserIndex u = UserIndex.read(in);
+                    users.put(username, u);
+                    total += u.count;
+                }
+                int expected = (int) crc.getValue();
+                if (in.readInt() != expected) throw new IOException("checksum mismatch");
+                if (position > log.getCommittedPosition()) throw new IOException("index is ahead of the log");
+                indexedPosition = position;
+                entries.set(total);
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException corrupt) {
+            System.out.println("Transaction index unreadable (" + corrupt.getMessage() + "), rebuilding it from the log");
+            users.clear();
+            indexedPosition = 0;
+            entries.set(0);
+            return false;
+        }
+    }
+
+    synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(indexedPosition);
+            out.writeInt(users.size());
+            for (Map.Entry<String, UserIndex> e : users.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not replace " + file);
+        }
+    }
+}
+
+// What AtmEngine.queryTransactions looks for: entries in [fromMillis, toMillis) of the given
+// types (empty = all) with an amount in [minAmount, maxAmount], oldest or newest first.
+class TransactionQuery {
+    final long fromMillis;
+    final long toMillis;
+    final Set<TxType> types;
+    final long minAmount;
+    final long maxAmount;
+    final boolean newestFirst;
+
+    TransactionQuery(long fromMillis, long toMillis, Set<TxType> types, long minAmount, long maxAmount,
+                     boolean newestFirst) {
+        if (fromMillis > toMillis || minAmount > maxAmount)
+            throw new IllegalArgumentException("empty range");
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.types = types == null || types.isEmpty() ? EnumSet.allOf(TxType.class) : EnumSet.copyOf(types);
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+        this.newestFirst = newestFirst;
+    }
+
+    // the whole history, newest first
+    static TransactionQuery all() {
+        return new TransactionQuery(0, Long.MAX_VALUE, null, 0, Long.MAX_VALUE, true);
+    }
+
+    boolean matches(TxType type, long amount, long timestampMillis) {
+        return type != null && types.contains(type) && amount >= minAmount && amount <= maxAmount
+                && timestampMillis >= fromMillis && timestampMillis < toMillis;
+    }
+}
+
+// one statement entry, as the account owner sees it
+class TransactionRow {
+    private final long position;        // in the transaction log, unique and in append order
+    private final long timestampMillis;
+    private final TxType type;
+    private final long amount;
+    private final long balanceAfter;
+    private final String counterparty;  // other account of a transfer, else null
+
+    TransactionRow(long position, long timestampMillis, TxType type, long amount, long balanceAfter,
+                   String counterparty) {
+        this.position = position;
+        this.timestampMillis = timestampMillis;
+        this.type = type;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+        this.counterparty = counterparty;
+    }
+
+    static TransactionRow of(String username, LogRecord r) {
+        TxType type = TransactionIndex.typeFor(username, r);
+        if (type == TxType.TRANSFER_IN)
+            return new TransactionRow(r.position, r.timestampMillis, type, r.amount, r.transferTargetBalance(), r.username);
+        return new TransactionRow(r.position, r.timestampMillis, type, r.amount, r.balanceAfter,
+                type == TxType.TRANSFER ? r.transferTarget() : null);
+    }
+
+    public long getPosition() { return position; }
+    public long getTimestampMillis() { return timestampMillis; }
+    public TxType getType() { return type; }
+    public long getAmount() { return amount; }
+    public long getBalanceAfter() { return balanceAfter; }
+    public String getCounterparty() { return counterparty; }
+
+    @Override
+    public String toString() {
+        String when = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), java.time.ZoneId.systemDefault())
+                .toString().replace('T', ' ');
+        String line = MiniStatement.format(type, amount, balanceAfter);
+        if (counterparty != null) line += (type == TxType.TRANSFER ? " to " : " from ") + counterparty;
+        return when.substring(0, Math.min(16, when.length())) + "  " + line;
+    }
+}
+
+// One page of a transaction query. The cursor is opaque to callers: pass it back to get the
+// next page; it is null on the last page.
+class TransactionPage {
+    private final List<TransactionRow> rows;
+    private final long next; // position of the last row when there is more, else -1
+
+    TransactionPage(List<TransactionRow> rows, long next) {
+        this.rows = Collections.unmodifiableList(rows);
+        this.next = next;
+    }
+
+    public List<TransactionRow> getRows() {
+        return rows;
+    }
+
+    public Stream<TransactionRow> stream() {
+        return rows.stream();
+    }
+
+    public boolean hasMore() {
+        return next >= 0;
+    }
+
+    public String getNextCursor() {
+        return next < 0 ? null : Long.toString(next, 36);
+    }
+
+    // -1 for no cursor (the first page)
+    static long decodeCursor(String cursor) throws AtmException {
+        if (cursor == null) return -1;
+        try {
+            long position = Long.parseLong(cursor, 36);
+            if (position < 0) throw new NumberFormatException();
+            return position;
+        } catch (NumberFormatException e) {
+            throw new AtmException("Invalid page cursor.");
+        }
+    }
+}
+
+// output formats for history export
+enum ExportFormat {
+    CSV(".csv"),
+    JSONL(".jsonl"),
+    BINARY(".bin");
+
+    final String extension;
+
+    ExportFormat(String extension) {
+        this.extension = extension;
+    }
+}
+
+// progress callbacks from an export job (called on the export thread)
+interface ExportListener {
+    void onProgress(long recordsWritten, double fraction);
+
+    void onFinished(ExportJob job);
+}
+
+// handle on a running export: progress, cancellation and the outcome
+class ExportJob {
+    private final File target;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final CompletableFuture<Long> done = new CompletableFuture<Long>();
+    private volatile long recordsWritten;
+    private volatile double fraction;
+
+    ExportJob(File target) {
+        this.target = target;
+    }
+
+    public File getTarget() { return target; }
+    public long getRecordsWritten() { return recordsWritten; }
+    public double getFraction() { return fraction; }
+    public boolean isCancelled() { return cancelled.get(); }
+
+    // completes with the number of records written; a cancelled job leaves no file behind
+    public CompletableFuture<Long> result() {
+        return done;
+    }
+
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    // how far the history source has got, 0..1
+    void progress(double f) {
+        fraction = f;
+    }
+
+    // records encoded so far, counted by the exporter
+    void written(long n) {
+        recordsWritten = n;
+    }
+
+    void complete(long written) {
+        recordsWritten = written;
+        fraction = 1.0;
+        done.complete(written);
+    }
+
+    void fail(Throwable t) {
+        done.completeExceptionally(t);
+    }
+}
+
+// where export records come from: the persistent log, or the in-memory ring as a fallback
+interface HistorySource {
+    // visits the user's records with fromMillis <= timestamp < toMillis in log order
+    void scan(String username, long fromMillis, long toMillis, ExportJob job, TransactionLog.Visitor visitor);
+}
+
+// Streaming history export. Runs on its own thread, pages through the transaction log one
+// record at a time and encodes into a reused 64KB buffer that is written to a FileChannel
+// (optionally through gzip), so memory use is constant whatever the history size. Output
+// goes to a .part file that is renamed on success and removed on cancel or failure.
+class HistoryExporter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int PROGRESS_EVERY = 4096;
+    private static final int BINARY_MAGIC = 0x41544D58; // "ATMX"
+
+    private final ExecutorService executor;
+
+    public HistoryExporter() {
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "History-Export");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public ExportJob export(final HistorySource source, final String username, final File target,
+                            final ExportFormat format, final boolean gzip,
+                            final long fromMillis, final long toMillis, final ExportListener listener) {
+        final ExportJob job = new ExportJob(target);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    long n = write(source, username, target, format, gzip, fromMillis, toMillis, job, listener);
+                    job.complete(n);
+                } catch (Throwable t) {
+                    job.fail(t);
+                }
+                if (listener != null) listener.onFinished(job);
+            }
+        });
+        return job;
+    }
+
+    private long write(HistorySource source, String username, File target, ExportFormat format, boolean gzip,
+                       long fromMillis, long toMillis, final ExportJob job, final ExportListener listener)
+            throws IOException {
+        File part = new File(target.getPath() + ".part");
+        FileOutputStream fos = new FileOutputStream(part);
+        WritableByteChannel out = null;
+        final long[] written = new long[1];
+        final IOException[] failure = new IOException[1];
+        boolean ok = false;
+        try {
+            FileChannel file = fos.getChannel();
+            out = gzip
+                    ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(file), BUFFER_SIZE))
+                    : file;
+            final RecordEncoder encoder = new RecordEncoder(out, format);
+            encoder.header(username);
+            source.scan(username, fromMillis, toMillis, job, new TransactionLog.Visitor() {
+                public boolean visit(LogRecord r) {
+                    if (job.isCancelled()) return false;
+                    try {
+                        encoder.record(r);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return false;
+                    }
+                    job.written(++written[0]);
+                    if (written[0] % PROGRESS_EVERY == 0 && listener != null)
+                        listener.onProgress(written[0], job.getFraction());
+                    return true;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            if (job.isCancelled()) throw new CancellationException("Export cancelled");
+            encoder.finish();
+            out.close();
+            ok = true;
+        } finally {
+            if (!ok && out != null) {
+                try { out.close(); } catch (IOException ignored) {}
+            }
+            fos.close();
+            if (!ok) part.delete();
+        }
+        if (target.exists() && !target.delete())
+            throw new IOException("Cannot replace " + target);
+        if (!part.renameTo(target))
+            throw new IOException("Cannot rename " + part + " to " + target);
+        return written[0];
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // encodes records into one reused buffer and drains it to the channel when full
+    private static final class RecordEncoder {
+        private final WritableByteChannel out;
+        private final ExportFormat format;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final StringBuilder line = new StringBuilder(128);
+
+        RecordEncoder(WritableByteChannel out, ExportFormat format) {
+            this.out = out;
+            this.format = format;
+        }
+
+        void header(String username) throws IOException {
+            switch (format) {
+                case CSV:
+                    text("seq,time,type,amount,balance_after\n");
+                    break;
+                case BINARY:
+                    byte[] user = username.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                    ensure(10 + user.length);
+                    buf.putInt(BINARY_MAGIC).putInt(1).putShort((short) user.length).put(user);
+                    break;
+                default:
+            }
+        }
+
+        void record(LogRecord r) throws IOException {
+            switch (format) {
+                case CSV:
+                    line.setLength(0);
+                    line.append(r.seq).append(',').append(Instant.ofEpochMilli(r.timestampMillis)).append(',')
+                        .append(r.type).append(',').append(r.amount).append(',').append(r.balanceAfter).append('\n');
+                    text(line);
+                    break;
+                case JSONL:
+                    line.setLength(0);
+                    line.append("{\"seq\":").append(r.seq)
+                        .append(",\"time\":\"").append(Instant.ofEpochMilli(r.timestampMillis))
+                        .append("\",\"type\":\"").append(r.type)
+                        .append("\",\"amount\":").append(r.amount)
+                        .append(",\"balanceAfter\":").append(r.balanceAfter).append("}\n");
+                    text(line);
+                    break;
+                case BINARY:
+                    // seq, time, type, amount, balance after: 33 bytes per record
+                    ensure(33);
+                    buf.putLong(r.seq).putLong(r.timestampMillis).put((byte) r.type.ordinal())
+                       .putLong(r.amount).putLong(r.balanceAfter);
+                    break;
+                default:
+            }
+        }
+
+        void finish() throws IOException {
+            drain();
+        }
+
+        private void text(CharSequence s) throws IOException {
+            byte[] bytes = s.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            ensure(bytes.length);
+            buf.put(bytes);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) drain();
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                out.write(buf);
+            buf.clear();
+        }
+    }
+}
+
+// history straight from the local transaction log, through the per-user index, so an export
+// reads only the user's own records
+class LogHistorySource implements HistorySource {
+    private final TransactionIndex index;
+
+    LogHistorySource(TransactionIndex index) {
+        this.index = index;
+    }
+
+    public void scan(final String username, long fromMillis, long toMillis, final ExportJob job,
+                     final TransactionLog.Visitor visitor) {
+        final double total = Math.max(1, index.size(username));
+        final long[] seen = new long[1];
+        index.scan(username, new TransactionQuery(fromMillis, toMillis, null, 0, Long.MAX_VALUE, false), -1,
+                new TransactionLog.Visitor() {
+                    public boolean visit(LogRecord r) {
+                        job.progress(Math.min(1.0, ++seen[0] / total));
+                        if (r.type == LogRecordType.TRANSFER && !username.equals(r.username)) {
+                            // the receiving side of a transfer, seen from the target's account
+                            r.type = LogRecordType.TRANSFER_IN;
+                            r.username = username;
+                            r.balanceAfter = r.transferTargetBalance();
+                        }
+                        return visitor.visit(r);
+                    }
+                });
+    }
+}
+
+// fallback when there is no local store: whatever the mini statement ring still holds
+class StatementHistorySource implements HistorySource {
+    private final AccountRegistry registry;
+
+    StatementHistorySource(AccountRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void scan(String username, final long fromMillis, final long toMillis, final ExportJob job,
+                     final TransactionLog.Visitor visitor) {
+        AccountRecord record = registry.get(username);
+        if (record == null) return;
+        final MiniStatement statement = record.getAccount().getStatement();
+        final LogRecord r = new LogRecord();
+        r.username = username;
+        statement.forEachRecent(statement.capacity(), new MiniStatement.Visitor() {
+            public void visit(TxType type, long amount, long balanceAfter, long timestampMillis) {
+                if (job.isCancelled() || timestampMillis < fromMillis || timestampMillis >= toMillis) return;
+                r.seq++;
+                r.timestampMillis = timestampMillis;
+                r.type = LogRecordType.valueOf(type.name());
+                r.amount = amount;
+                r.balanceAfter = balanceAfter;
+                visitor.visit(r);
+            }
+        });
+    }
+}
+
+// lifecycle state of a customer account
+enum AccountStatus {
+    ACTIVE, LOCKED, CLOSED
+}
+
+// Salted PBKDF2-HMAC-SHA256 hash of a PIN. The cost is tunable with -Datm.pinIterations.
+// A successful verification is remembered for a while as a keyed HMAC of the PIN (a process
+// secret that is never stored), so repeated checks of the same PIN cost one HMAC instead of
+// a full PBKDF2 run. A PIN change installs a new Credential, which drops that cache.
+final class Credential {
+    static final int DEFAULT_ITERATIONS = Integer.getInteger("atm.pinIterations", 20_000);
+    static final long VERIFIED_TTL_MS = Long.getLong("atm.pinCacheTtlMs", 15 * 60_000L);
+
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final byte FORMAT = 1;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] PROCESS_KEY = new byte[32];
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>();
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2 = new ThreadLocal<SecretKeyFactory>();
+
+    private static final LatencyHistogram HASH_TIME =
+            Metrics.histogram("atm_pin_hash_seconds", "Cost of one PBKDF2 PIN hash");
+    private static final Counter CACHE_HITS =
+            Metrics.counter("atm_pin_cache_hits_total", "PIN checks answered by the verified cache");
+
+    static {
+        RANDOM.nextBytes(PROCESS_KEY);
+    }
+
+    // last successful verification
+    private static final class Verified {
+        final byte[] tag;
+        final long untilNanos;
+
+        Verified(byte[] tag, long untilNanos) {
+            this.tag = tag;
+            this.untilNanos = untilNanos;
+        }
+    }
+
+    final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+    private volatile Verified verified;
+
+    private Credential(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    static Credential create(int pin) {
+        return create(pin, DEFAULT_ITERATIONS);
+    }
+
+    static Credential create(int pin, int iterations) {
+        if (iterations <= 0) throw new IllegalArgumentException("iterations must be positive");
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new Credential(iterations, salt, pbkdf2(pin, salt, iterations));
+    }
+
+    // answered from the verified cache when possible
+    boolean verifyCached(int pin) {
+        Verified v = verified;
+        if (v == null || System.nanoTime() - v.untilNanos > 0) return false;
+        if (!MessageDigest.isEqual(v.tag, tag(pin))) return false;
+        CACHE_HITS.increment();
+        return true;
+    }
+
+    // full PBKDF2 check, constant-time compare
+    boolean verifySlow(int pin) {
+        if (!MessageDigest.isEqual(hash, pbkdf2(pin, salt, iterations))) return false;
+        verified = new Verified(tag(pin), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VERIFIED_TTL_MS));
+        return true;
+    }
+
+    boolean verify(int pin) {
+        return verifyCached(pin) || verifySlow(pin);
+    }
+
+    private static byte[] pbkdf2(int pin, byte[] salt, int iterations) {
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(Integer.toString(pin).toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            SecretKeyFactory factory = PBKDF2.get();
+            if (factory == null) {
+                factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256"); // provider lookup is not free
+                PBKDF2.set(factory);
+            }
+            return factory.generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 not available", e);
+        } finally {
+            spec.clearPassword();
+            HASH_TIME.recordSince(start);
+        }
+    }
+
+    // HMAC(process key, salt || pin): cheap, and useless outside this process
+    private byte[] tag(int pin) {
+        Mac mac = MAC.get();
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(PROCESS_KEY, "HmacSHA256"));
+                MAC.set(mac);
+            }
+            mac.update(salt);
+            return mac.doFinal(LogRecord.intBytes(pin));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    // binary form used in the transaction log and snapshots
+    byte[] encode() {
+        return ByteBuffer.allocate(1 + 4 + 1 + salt.length + 1 + hash.length)
+                .put(FORMAT).putInt(iterations)
+                .put((byte) salt.length).put(salt)
+                .put((byte) hash.length).put(hash).array();
+    }
+
+    static Credential decode(byte[] bytes) {
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        if (b.get() != FORMAT) throw new IllegalArgumentException("Unknown credential format");
+        int iterations = b.getInt();
+        byte[] salt = new byte[b.get()];
+        b.get(salt);
+        byte[] hash = new byte[b.get()];
+        b.get(hash);
+        return new Credential(iterations, salt, hash);
+    }
+
+    // text form for the users.pin column
+    String toDbString() {
+        java.util.Base64.Encoder enc = java.util.Base64.getEncoder().withoutPadding();
+        return "pbkdf2-sha256$" + iterations + "$" + enc.encodeToString(salt) + "$" + enc.encodeToString(hash);
+    }
+
+    // reads toDbString(); rows written before hashing hold the plain PIN, which is hashed here
+    static Credential fromDbString(String s) {
+        String[] parts = s.split("\\$");
+        if (parts.length == 4 && parts[0].equals("pbkdf2-sha256")) {
+            java.util.Base64.Decoder dec = java.util.Base64.getDecoder();
+            return new Credential(Integer.parseInt(parts[1]), dec.decode(parts[2]), dec.decode(parts[3]));
+        }
+        return create(Integer.parseInt(s.trim()));
+    }
+}
+
+// Throttles PIN guessing. Per user: after MAX_FAILURES wrong PINs the user is locked out, for
+// twice as long on every repeat (capped). Globally: when wrong PINs across all users exceed a
+// per-second budget (credential spraying), attempts for unknown usernames and for users with
+// recent wrong PINs are refused until the next second; customers with a clean record, and a
+// PIN the credential cache has already seen, still get in. At most one PBKDF2 run per core is
+// in flight, so a login storm queues instead of starving the rest of the ATM of CPU.
+class LoginLimiter {
+    private static final int MAX_TRACKED = 100_000;
+
+    private static final Counter FAILURES = Metrics.counter("atm_login_failures_total", "Wrong PIN attempts");
+    private static final Counter LOCKOUTS = Metrics.counter("atm_login_lockouts_total", "Users locked out after repeated wrong PINs");
+    private static final Counter THROTTLED = Metrics.counter("atm_login_throttled_total", "Attempts refused by the limiter");
+
+    // failure history of one username
+    private static final class Attempts {
+        int failures;
+        int lockouts;
+        long lockedUntilMillis;
+        long lastFailureMillis;
+    }
+
+    private final int maxFailures;
+    private final long baseLockoutMillis;
+    private final long maxLockoutMillis;
+    private final long failureWindowMillis;
+    private final int globalFailuresPerSecond;
+    private final Semaphore hashSlots;
+    private final ConcurrentHashMap<String, Attempts> attempts = new ConcurrentHashMap<String, Attempts>();
+    // (epoch second << 32) | wrong PINs in that second, updated with one CAS
+    private final AtomicLong window = new AtomicLong();
+
+    LoginLimiter() {
+        this(5, 30_000, 15 * 60_000, 15 * 60_000, 200, Runtime.getRuntime().availableProcessors());
+    }
+
+    LoginLimiter(int maxFailures, long baseLockoutMillis, long maxLockoutMillis, long failureWindowMillis,
+                 int globalFailuresPerSecond, int hashConcurrency) {
+        this.maxFailures = maxFailures;
+        this.baseLockoutMillis = baseLockoutMillis;
+        this.maxLockoutMillis = maxLockoutMillis;
+        this.failureWindowMillis = failureWindowMillis;
+        this.globalFailuresPerSecond = globalFailuresPerSecond;
+        this.hashSlots = new Semaphore(Math.max(1, hashConcurrency));
+    }
+
+    // throws if this user is currently locked out
+    void checkAllowed(String username) throws AtmException {
+        Attempts a = attempts.get(username);
+        if (a != null) {
+            long wait;
+            synchronized (a) {
+                wait = a.lockedUntilMillis - System.currentTimeMillis();
+            }
+            if (wait > 0) {
+                THROTTLED.increment();
+                throw new AtmException("Too many wrong PINs. Try again in " + ((wait + 999) / 1000) + " s.");
+            }
+        }
+    }
+
+    // cache hit first, then the global budget for unknown or failing users, then the full hash
+    // under a concurrency cap; known = the username exists
+    boolean verify(String username, boolean known, Credential credential, int pin) throws AtmException {
+        if (credential.verifyCached(pin)) return true;
+        if ((!known || attempts.containsKey(username)) && overBudget()) {
+            THROTTLED.increment();
+            throw new AtmException("ATM is busy, please try again shortly.");
+        }
+        try {
+            hashSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AtmException("Interrupted while checking PIN.");
+        }
+        try {
+            return credential.verifySlow(pin);
+        } finally {
+            hashSlots.release();
+        }
+    }
+
+    private boolean overBudget() {
+        long w = window.get();
+        return w >>> 32 == System.currentTimeMillis() / 1000 && (int) w >= globalFailuresPerSecond;
+    }
+
+    void onFailure(String username) {
+        FAILURES.increment();
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        for (;;) {
+            long w = window.get();
+            long next = w >>> 32 == second ? w + 1 : second << 32 | 1;
+            if (window.compareAndSet(w, next)) break;
+        }
+
+        if (attempts.size() >= MAX_TRACKED) {
+            sweep(now);
+            if (attempts.size() >= MAX_TRACKED && !attempts.containsKey(username))
+                return; // under a spray attack the global budget still applies
+        }
+        Attempts a = attempts.get(username);
+        if (a == null) {
+            Attempts fresh = new Attempts();
+            a = attempts.putIfAbsent(username, fresh);
+            if (a == null) a = fresh;
+        }
+        synchronized (a) {
+            if (now - a.lastFailureMillis > failureWindowMillis) a.failures = 0;
+            a.lastFailureMillis = now;
+            if (++a.failures >= maxFailures) {
+                a.failures = 0;
+                a.lockouts++;
+                long lockout = baseLockoutMillis << Math.min(20, a.lockouts - 1);
+                a.lockedUntilMillis = now + Math.min(maxLockoutMillis, lockout);
+                LOCKOUTS.increment();
+            }
+        }
+    }
+
+    void onSuccess(String username) {
+        if (!attempts.isEmpty()) attempts.remove(username);
+    }
+
+    boolean isLockedOut(String username) {
+        Attempts a = attempts.get(username);
+        if (a == null) return false;
+        synchronized (a) {
+            return a.lockedUntilMillis > System.currentTimeMillis();
+        }
+    }
+
+    // forget users whose failures have aged out and who are not locked
+    private void sweep(long now) {
+        Iterator<Map.Entry<String, Attempts>> it = attempts.entrySet().iterator();
+        while (it.hasNext()) {
+            Attempts a = it.next().getValue();
+            synchronized (a) {
+                if (a.lockedUntilMillis <= now && now - a.lastFailureMillis > failureWindowMillis) it.remove();
+            }
+        }
+    }
+}
+
+// Everything the ATM knows about one customer: the account, credentials and status.
+// Replaces the two hand-synchronized maps (accounts + PINs) with one record per user.
+class AccountRecord {
+    private final String username;
+    private final SavingsAccount account;
+    private volatile Credential credential;
+    private volatile AccountStatus status = AccountStatus.ACTIVE;
+
+    // write-behind bookkeeping, see BalanceWriteBehind
+    private static final int CLEAN = 0, QUEUED = 1, WRITING = 2;
+    private static final AtomicIntegerFieldUpdater<AccountRecord> DIRTY =
+            AtomicIntegerFieldUpdater.newUpdater(AccountRecord.class, "dirty");
+    private volatile int dirty;
+    // version of the users row this process last read or wrote, -1 until it knows one (a record
+    // rebuilt from the local log after a restart); flusher only
+    long dbVersion = -1;
+
+    // operations in flight on a bounded registry, -1 once evicted; see AccountRegistry
+    private static final AtomicIntegerFieldUpdater<AccountRecord> PINS =
+            AtomicIntegerFieldUpdater.newUpdater(AccountRecord.class, "pins");
+    private volatile int pins;
+
+    // interest accrual, written by the end-of-day run only
+    private volatile int interestDay;      // epoch day of the last accrual, 0 = never
+    private volatile long carriedInterest; // fraction of a rupee not yet credited, InterestRate.SCALE units
+
+    AccountRecord(String username, Credential credential, SavingsAccount account) {
+        this.username = username;
+        this.credential = credential;
+        this.account = account;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public SavingsAccount getAccount() {
+        return account;
+    }
+
+    // unthrottled check, the engine goes through its LoginLimiter instead
+    public boolean pinMatches(int candidate) {
+        return credential.verify(candidate);
+    }
+
+    public Credential getCredential() {
+        return credential;
+    }
+
+    public void setCredential(Credential credential) {
+        this.credential = credential;
+    }
+
+    public AccountStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(AccountStatus status) {
+        this.status = status;
+    }
+
+    public boolean isActive() {
+        return status == AccountStatus.ACTIVE;
+    }
+
+    public int getInterestDay() {
+        return interestDay;
+    }
+
+    public long getCarriedInterest() {
+        return carriedInterest;
+    }
+
+    void setInterest(int epochDay, long carried) {
+        this.carriedInterest = carried;
+        this.interestDay = epochDay;
+    }
+
+    // true for the caller that has to queue the record for the next flush
+    boolean markDirty() {
+        for (;;) {
+            int d = dirty;
+            if (d == QUEUED) return false;
+            if (DIRTY.compareAndSet(this, d, QUEUED)) return true;
+        }
+    }
+
+    // flusher took the record off the queue; set before the balance is read, so a later
+    // change queues it again
+    void startWrite() {
+        dirty = WRITING;
+    }
+
+    // the row is committed; clean unless it changed meanwhile
+    void finishWrite() {
+        DIRTY.compareAndSet(this, WRITING, CLEAN);
+    }
+
+    // queued or being written: the DB row may still be behind memory
+    boolean isDirty() {
+        return dirty != CLEAN;
+    }
+
+    boolean pin() {
+        for (;;) {
+            int p = pins;
+            if (p < 0) return false;
+            if (PINS.compareAndSet(this, p, p + 1)) return true;
+        }
+    }
+
+    void unpin() {
+        PINS.decrementAndGet(this);
+    }
+
+    boolean isPinned() {
+        return pins != 0;
+    }
+
+    // claims an idle, clean record for eviction; nothing can pin it afterwards
+    boolean tryEvict() {
+        if (!PINS.compareAndSet(this, 0, -1)) return false;
+        if (isDirty()) {
+            pins = 0;
+            return false;
+        }
+        return true;
+    }
+}
+
+// loads one account from the backing store, null if there is no such user
+interface AccountLoader {
+    AccountRecord load(String username) throws SQLException;
+}
+
+// Approximate access frequency per key for eviction decisions (the TinyLFU sketch): a
+// count-min sketch of 4-bit counters, 4 rows, halved every sampleSize increments so old
+// popularity fades. Updates are unsynchronized; a lost increment only makes it a bit less exact.
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    FrequencySketch(long expectedKeys) {
+        int width = Integer.highestOneBit((int) Math.max(64, Math.min(1 << 22, expectedKeys)) * 2 - 1);
+        this.table = new byte[width * DEPTH];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    void increment(String key) {
+        int h = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int idx = slot(h, i);
+            if (table[idx] < 15) {
+                table[idx]++;
+                added = true;
+            }
+        }
+        if (added && additions.incrementAndGet() == sampleSize) age();
+    }
+
+    int frequency(String key) {
+        int h = spread(key.hashCode());
+        int min = 15;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, table[slot(h, i)]);
+        return min;
+    }
+
+    private void age() {
+        for (int i = 0; i < table.length; i++)
+            table[i] >>= 1;
+        additions.set(0);
+    }
+
+    private int slot(int h, int row) {
+        int x = (h ^ SEEDS[row]) * 0x9e3779b9;
+        return row * (mask + 1) + ((x ^ (x >>> 15)) & mask);
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Concurrent account registry. Keys are spread over a power-of-two number of
+// ConcurrentHashMap shards so reads stay lock-free and a resize at millions of accounts only
+// rehashes one shard at a time. Creation is an atomic create-if-absent.
+//
+// With a loader the registry is a bounded read-through cache over the backing store: a miss
+// loads the account (one load per user at a time), and once more than maxResident accounts are
+// in memory the least frequently used of a few sampled records is dropped. Frequencies come
+// from a FrequencySketch that also remembers keys that are no longer resident. Records with
+// operations in flight (acquire/release) or with balances not yet written to the DB are
+// never evicted.
+class AccountRegistry {
+
+    // receives every record during a walk
+    interface Visitor {
+        void visit(AccountRecord record);
+    }
+
+    private static final int DEFAULT_SHARDS = 16;
+    private static final int EVICTION_SAMPLE = 8;
+    private static final int MAX_EVICTIONS_PER_LOAD = 4;
+
+    private static final Counter HITS = Metrics.counter("atm_registry_hits_total", "Account lookups served from memory");
+    private static final Counter MISSES = Metrics.counter("atm_registry_misses_total", "Account lookups that went to the backing store");
+    private static final Counter LOAD_FAILURES = Metrics.counter("atm_registry_load_failures_total", "Account loads that failed");
+    private static final Counter EVICTIONS = Metrics.counter("atm_registry_evictions_total", "Accounts dropped from memory");
+    private static final LatencyHistogram LOAD_TIME =
+            Metrics.histogram("atm_registry_load_seconds", "Loading one account from the backing store");
+
+    private final ConcurrentHashMap<String, AccountRecord>[] shards;
+    private final int shardMask;
+
+    // read-through / eviction, unused when loader is null
+    private final AccountLoader loader;
+    private final long maxResident;
+    private final FrequencySketch sketch;
+    private final ConcurrentHashMap<String, CompletableFuture<AccountRecord>> loading;
+    private final Iterator<AccountRecord>[] hands; // per shard, guarded by the shard map
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile AccountPreloader preloader; // start-up load still running
+
+    public AccountRegistry() {
+        this(DEFAULT_SHARDS, 1024);
+    }
+
+    public AccountRegistry(int shardCount, int expectedAccounts) {
+        this(shardCount, expectedAccounts, null, Long.MAX_VALUE);
+    }
+
+    public AccountRegistry(AccountLoader loader, long maxResident) {
+        this(DEFAULT_SHARDS, (int) Math.min(1 << 20, maxResident), loader, maxResident);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AccountRegistry(int shardCount, int expectedAccounts, AccountLoader loader, long maxResident) {
+        if (shardCount <= 0 || Integer.bitCount(shardCount) != 1)
+            throw new IllegalArgumentException("shardCount must be a power of two");
+        if (maxResident <= 0)
+            throw new IllegalArgumentException("maxResident must be positive");
+        this.shards = new ConcurrentHashMap[shardCount];
+        this.shardMask = shardCount - 1;
+        int perShard = Math.max(16, expectedAccounts / shardCount);
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new ConcurrentHashMap<String, AccountRecord>(perShard);
+        this.loader = loader;
+        this.maxResident = loader == null ? Long.MAX_VALUE : maxResident; // nothing to reload from otherwise
+        this.sketch = loader == null ? null : new FrequencySketch(maxResident);
+        this.loading = loader == null ? null : new ConcurrentHashMap<String, CompletableFuture<AccountRecord>>();
+        this.hands = new Iterator[shardCount];
+    }
+
+    // resident record, loaded from the backing store on a miss; null if unknown or the load
+    // failed (see find for the difference)
+    public AccountRecord get(String username) {
+        try {
+            return find(username);
+        } catch (AtmException e) {
+            return null;
+        }
+    }
+
+    public AccountRecord find(String username) throws AtmException {
+        AccountRecord r = shard(username).get(username);
+        if (r == null) {
+            AccountPreloader p = preloader;
+            if (p != null && p.awaitPartition(username)) r = shard(username).get(username);
+        }
+        if (loader == null) return r;
+        sketch.increment(username);
+        if (r != null) {
+            hits.increment();
+            HITS.increment();
+            return r;
+        }
+        misses.increment();
+        MISSES.increment();
+        try {
+            return load(username);
+        } catch (SQLException e) {
+            LOAD_FAILURES.increment();
+            System.out.println("Account load failed for " + username + ": " + e.getMessage());
+            throw new AtmException("Account service unavailable. Please try again.");
+        }
+    }
+
+    // record with an operation in flight: it stays resident until release()
+    public AccountRecord acquire(String username) throws AtmException {
+        for (;;) {
+            AccountRecord r = find(username);
+            if (r == null || loader == null || r.pin()) return r;
+            Thread.yield(); // lost a race with eviction, the next find reloads it
+        }
+    }
+
+    public void release(AccountRecord record) {
+        if (loader != null && record != null) record.unpin();
+    }
+
+    public boolean contains(String username) {
+        return get(username) != null;
+    }
+
+    // returns the new record, or null if the username is already taken; on a bounded registry
+    // the record comes back acquired, so it cannot be evicted before its first flush
+    public AccountRecord createIfAbsent(String username, Credential credential, int openingBalance) {
+        AccountRecord record = new AccountRecord(username, credential, new SavingsAccount(openingBalance));
+        if (loader != null) record.pin();
+        if (shard(username).putIfAbsent(username, record) != null) return null;
+        evictIfNeeded(record);
+        return record;
+    }
+
+    private AccountRecord load(String username) throws SQLException {
+        CompletableFuture<AccountRecord> mine = new CompletableFuture<AccountRecord>();
+        CompletableFuture<AccountRecord> inFlight = loading.putIfAbsent(username, mine);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+                throw e;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            ConcurrentHashMap<String, AccountRecord> shard = shard(username);
+            AccountRecord r = shard.get(username); // created or loaded while we were getting here
+            if (r == null) {
+                r = loader.load(username);
+                if (r != null) {
+                    AccountRecord prev = shard.putIfAbsent(username, r);
+                    if (prev != null) r = prev;
+                    else evictIfNeeded(r);
+                }
+            }
+            mine.complete(r);
+            return r;
+        } catch (SQLException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(username, mine);
+            LOAD_TIME.recordSince(start);
+        }
+    }
+
+    // sampled LFU: walk a few records from a rotating position in a random shard and drop the
+    // least frequently used one that is idle and clean
+    private void evictIfNeeded(AccountRecord keep) {
+        for (int round = 0; round < MAX_EVICTIONS_PER_LOAD && size() > maxResident; round++) {
+            int s = ThreadLocalRandom.current().nextInt(shards.length);
+            ConcurrentHashMap<String, AccountRecord> shard = shards[s];
+            AccountRecord victim = null;
+            int best = Integer.MAX_VALUE;
+            synchronized (shard) {
+                Iterator<AccountRecord> hand = hands[s];
+                for (int k = 0; k < EVICTION_SAMPLE; k++) {
+                    if (hand == null || !hand.hasNext()) {
+                        hand = shard.values().iterator();
+                        if (!hand.hasNext()) break;
+                    }
+                    AccountRecord c = hand.next();
+                    if (c == keep || c.isPinned() || c.isDirty()) continue;
+                    int f = sketch.frequency(c.getUsername());
+                    if (f < best) {
+                        best = f;
+                        victim = c;
+                    }
+                }
+                hands[s] = hand;
+            }
+            if (victim != null && victim.tryEvict() && shard.remove(victim.getUsername(), victim)) {
+                evictions.increment();
+                EVICTIONS.increment();
+            }
+        }
+    }
+
+    public boolean isBounded() {
+        return loader != null;
+    }
+
+    // while set, a lookup that misses waits for the account's start-up partition first
+    void setPreloader(AccountPreloader preloader) {
+        this.preloader = preloader;
+    }
+
+    public long getMaxResident() { return maxResident; }
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+
+    public double getHitRate() {
+        long h = hits.sum(), m = misses.sum();
+        return h + m == 0 ? 0.0 : h / (double) (h + m);
+    }
+
+    @Override
+    public String toString() {
+        return isBounded()
+                ? String.format("registry[resident=%d/%d hits=%d misses=%d hitRate=%.1f%% evictions=%d]",
+                        size(), maxResident, getHitCount(), getMissCount(), 100 * getHitRate(), getEvictionCount())
+                : "registry[resident=" + size() + "]";
+    }
+
+    // unconditional insert/replace, used when restoring known state
+    public void put(AccountRecord record) {
+        shard(record.getUsername()).put(record.getUsername(), record);
+    }
+
+    public AccountRecord remove(String username) {
+        return shard(username).remove(username);
+    }
+
+    public long size() {
+        long n = 0;
+        for (ConcurrentHashMap<String, AccountRecord> shard : shards)
+            n += shard.mappingCount();
+        return n;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    // weakly consistent walk over one shard, for partitioned batch jobs; resident records only
+    public void forEachInShard(int shard, Visitor visitor) {
+        for (AccountRecord record : shards[shard].values())
+            visitor.visit(record);
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < shards.length; i++)
+            forEachInShard(i, visitor);
+    }
+
+    private ConcurrentHashMap<String, AccountRecord> shard(String username) {
+        int h = username.hashCode();
+        h ^= (h >>> 16) ^ (h >>> 7); // CHM uses the low bits itself, pick shards with mixed bits
+        return shards[(h >>> 8) & shardMask];
+    }
+}
+
+// clearing state of a deposited cheque
+enum ChequeStatus {
+    PENDING, CLEARING, CLEARED, CANCELLED, FAILED
+}
+
+// A deposited cheque waiting to clear. The owner is captured at submission time.
+class Cheque {
+    private final long id;
+    private final String username;
+    private final int amount;
+    private final long submittedAtMillis;
+    private final long dueAtMillis;
+    private final String requestId; // client's request ID, null if none
+    private final AtomicReference<ChequeStatus> status = new AtomicReference<ChequeStatus>(ChequeStatus.PENDING);
+    private final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+    volatile ScheduledFuture<?> task;
+
+    Cheque(long id, String username, int amount, long submittedAtMillis, long dueAtMillis) {
+        this(id, username, amount, submittedAtMillis, dueAtMillis, null);
+    }
+
+    Cheque(long id, String username, int amount, long submittedAtMillis, long dueAtMillis, String requestId) {
+        this.id = id;
+        this.username = username;
+        this.amount = amount;
+        this.submittedAtMillis = submittedAtMillis;
+        this.dueAtMillis = dueAtMillis;
+        this.requestId = requestId;
+    }
+
+    // a cheque that cleared before a restart, rebuilt from its CHEQUE log record
+    static Cheque cleared(long id, String username, int amount, long clearedAtMillis, String requestId, int balance) {
+        Cheque c = new Cheque(id, username, amount, clearedAtMillis, clearedAtMillis, requestId);
+        c.transition(ChequeStatus.PENDING, ChequeStatus.CLEARED);
+        c.complete(balance);
+        return c;
+    }
+
+    public long getId() { return id; }
+    public String getUsername() { return username; }
+    public int getAmount() { return amount; }
+    public long getSubmittedAtMillis() { return submittedAtMillis; }
+    public long getDueAtMillis() { return dueAtMillis; }
+    public String getRequestId() { return requestId; }
+    public ChequeStatus getStatus() { return status.get(); }
+
+    // completes with the balance after clearing, or exceptionally if cancelled/failed
+    public CompletableFuture<Integer> result() {
+        return result;
+    }
+
+    boolean transition(ChequeStatus from, ChequeStatus to) {
+        return status.compareAndSet(from, to);
+    }
+
+    void complete(int balance) {
+        result.complete(balance);
+    }
+
+    void fail(AtmException e) {
+        result.completeExceptionally(e);
+    }
+}
+
+// Cheque clearing subsystem. Pending cheques are written to an append-only file (fsynced on
+// submit) and cleared by a small scheduled pool after the clearing delay, so thousands of
+// cheques cost a queue entry each rather than a sleeping thread. On restart recover()
+// reschedules whatever was still in flight. The actual credit is done by the settler.
+class ChequeClearingService {
+
+    interface Settler {
+        // credits a cleared cheque and returns the new balance
+        int settle(Cheque cheque) throws AtmException;
+
+        // ids of the cheques credited since fromMillis, with the time each was credited; lets
+        // recover() tell a cheque that cleared just before a crash from one still pending
+        Map<Long, Long> creditedSince(long fromMillis);
+    }
+
+    private static final long RETENTION_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final Settler settler;
+    private final File queueFile;
+    private final long clearingDelayMillis;
+    private final int maxPending;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ConcurrentHashMap<Long, Cheque> cheques = new ConcurrentHashMap<Long, Cheque>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Object fileLock = new Object();
+    private FileOutputStream out;
+
+    // metrics
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder cleared = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder clearingLagMillis = new LongAdder();
+    private static final Counter CLEARED =
+            Metrics.counter("atm_cheques_cleared_total", "Cheques credited");
+    private static final Counter FAILED =
+            Metrics.counter("atm_cheques_failed_total", "Cheques that could not be credited");
+    private static final LatencyHistogram CLEARING_LAG =
+            Metrics.histogram("atm_cheque_clearing_lag_seconds", "How far past its due time a cheque cleared");
+
+    public ChequeClearingService(Settler settler, File queueFile, int workers,
+                                 long clearingDelayMillis, int maxPending) {
+        this.settler = settler;
+        this.queueFile = queueFile;
+        this.clearingDelayMillis = clearingDelayMillis;
+        this.maxPending = maxPending;
+        this.scheduler = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Cheque-Clearing-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        Metrics.gauge("atm_cheque_queue_depth", "Cheques waiting to clear", new Gauge() {
+            public long value() {
+                return pending.get();
+            }
+        });
+        Metrics.gauge("atm_cheque_scheduler_queue", "Tasks queued on the clearing workers", new Gauge() {
+            public long value() {
+                return scheduler.getQueue().size();
+            }
+        });
+    }
+
+    // replays the queue file: reschedules pending cheques and compacts the file down to them
+    public synchronized int recover() throws IOException {
+        Map<Long, Cheque> open = new LinkedHashMap<Long, Cheque>();
+        long maxId = 0;
+        if (queueFile.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(queueFile), java.nio.charset.StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t");
+                    try {
+                        long id = Long.parseLong(f[1]);
+                        maxId = Math.max(maxId, id);
+                        if ("S".equals(f[0]) && f.length >= 6) {
+                            open.put(id, new Cheque(id, URLDecoder.decode(f[2], "UTF-8"),
+                                    Integer.parseInt(f[3]), Long.parseLong(f[4]), Long.parseLong(f[5]),
+                                    f.length > 6 ? URLDecoder.decode(f[6], "UTF-8") : null));
+                        } else {
+                            open.remove(id); // cleared / cancelled / failed
+                        }
+                    } catch (RuntimeException torn) {
+                        // half written last line from a crash
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        nextId.set(Math.max(nextId.get(), maxId + 1));
+
+        // credited but the marker never made it to disk: already paid, must not clear again
+        if (!open.isEmpty()) {
+            long from = Long.MAX_VALUE;
+            for (Cheque c : open.values())
+                from = Math.min(from, c.getSubmittedAtMillis());
+            Map<Long, Long> credited = settler.creditedSince(from);
+            Iterator<Cheque> it = open.values().iterator();
+            while (it.hasNext()) {
+                Cheque c = it.next();
+                Long at = credited.get(c.getId());
+                if (at != null && at >= c.getSubmittedAtMillis()) {
+                    System.out.println("Cheque #" + c.getId() + " was already credited, not clearing it again");
+                    it.remove();
+                }
+            }
+        }
+
+        // compact: rewrite only the cheques still in flight, then swap the file in
+        File tmp = new File(queueFile.getPath() + ".tmp");
+        FileOutputStream compact = new FileOutputStream(tmp);
+        try {
+            for (Cheque c : open.values())
+                compact.write(submitLine(c));
+            compact.getChannel().force(true);
+        } finally {
+            compact.close();
+        }
+        synchronized (fileLock) {
+            closeFile();
+            if (!tmp.renameTo(queueFile)) {
+                queueFile.delete();
+                if (!tmp.renameTo(queueFile))
+                    throw new IOException("Could not replace " + queueFile);
+            }
+        }
+
+        for (Cheque c : open.values()) {
+            cheques.put(c.getId(), c);
+            pending.incrementAndGet();
+            schedule(c);
+        }
+        if (!open.isEmpty())
+            System.out.println("Recovered " + open.size() + " pending cheque(s)");
+        return open.size();
+    }
+
+    public Cheque submit(String username, int amount) throws AtmException {
+        return submit(username, amount, null);
+    }
+
+    public Cheque submit(String username, int amount, String requestId) throws AtmException {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            throw new AtmException("Too many cheques pending. Please try later.");
+        }
+        long now = System.currentTimeMillis();
+        Cheque c = new Cheque(nextId.getAndIncrement(), username, amount, now, now + clearingDelayMillis, requestId);
+        try {
+            append(submitLine(c), true);
+        } catch (IOException e) {
+            pending.decrementAndGet();
+            throw new AtmException("Could not record cheque: " + e.getMessage());
+        }
+        cheques.put(c.getId(), c);
+        submitted.increment();
+        schedule(c);
+        return c;
+    }
+
+    public boolean cancel(long id) {
+        Cheque c = cheques.get(id);
+        if (c == null || !c.transition(ChequeStatus.PENDING, ChequeStatus.CANCELLED))
+            return false;
+        ScheduledFuture<?> task = c.task;
+        if (task != null) task.cancel(false);
+        finish(c, "X");
+        cancelled.increment();
+        c.fail(new AtmException("Cheque #" + id + " was cancelled."));
+        return true;
+    }
+
+    public Cheque get(long id) {
+        return cheques.get(id);
+    }
+
+    public ChequeStatus status(long id) {
+        Cheque c = cheques.get(id);
+        return c == null ? null : c.getStatus();
+    }
+
+    public List<Cheque> pending() {
+        List<Cheque> list = new ArrayList<Cheque>();
+        for (Cheque c : cheques.values()) {
+            if (c.getStatus() == ChequeStatus.PENDING)
+                list.add(c);
+        }
+        return list;
+    }
+
+    public List<Cheque> pendingFor(String username) {
+        List<Cheque> list = new ArrayList<Cheque>();
+        for (Cheque c : cheques.values()) {
+            if (c.getUsername().equals(username) && c.getStatus() == ChequeStatus.PENDING)
+                list.add(c);
+        }
+        return list;
+    }
+
+    private void schedule(final Cheque c) {
+        long delay = Math.max(0, c.getDueAtMillis() - System.currentTimeMillis());
+        c.task = scheduler.schedule(new Runnable() {
+            public void run() {
+                clear(c);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void clear(Cheque c) {
+        // claim it first so a concurrent cancel cannot slip in while we credit
+        if (!c.transition(ChequeStatus.PENDING, ChequeStatus.CLEARING)) return;
+        try {
+            int balance = settler.settle(c);
+            // a crash before the marker is on disk is caught by recover(), which finds the
+            // CHEQUE record the settler wrote to the local log
+            c.transition(ChequeStatus.CLEARING, ChequeStatus.CLEARED);
+            finish(c, "C");
+            cleared.increment();
+            CLEARED.increment();
+            long lag = Math.max(0, System.currentTimeMillis() - c.getDueAtMillis());
+            clearingLagMillis.add(lag);
+            CLEARING_LAG.record(TimeUnit.MILLISECONDS.toNanos(lag));
+            System.out.println("[" + Thread.currentThread().getName() + "] Cheque #" + c.getId()
+                    + " cleared for " + c.getUsername());
+            c.complete(balance);
+        } catch (AtmException e) {
+            c.transition(ChequeStatus.CLEARING, ChequeStatus.FAILED);
+            finish(c, "F");
+            failed.increment();
+            FAILED.increment();
+            c.fail(e);
+        } catch (RuntimeException e) {
+            c.transition(ChequeStatus.CLEARING, ChequeStatus.FAILED);
+            finish(c, "F");
+            failed.increment();
+            FAILED.increment();
+            c.fail(new AtmException("Cheque processing failed: " + e.getMessage()));
+        }
+    }
+
+    private void finish(final Cheque c, String marker) {
+        pending.decrementAndGet();
+        try {
+            append((marker + "\t" + c.getId() + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8), true);
+        } catch (IOException e) {
+            System.out.println("Cheque queue write failed for #" + c.getId() + ": " + e.getMessage());
+        }
+        // keep finished cheques around for status queries for a while
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    cheques.remove(c.getId());
+                }
+            }, RETENTION_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException shuttingDown) {
+            cheques.remove(c.getId());
+        }
+    }
+
+    private static byte[] submitLine(Cheque c) throws UnsupportedEncodingException {
+        return ("S\t" + c.getId() + "\t" + URLEncoder.encode(c.getUsername(), "UTF-8") + "\t" + c.getAmount()
+                + "\t" + c.getSubmittedAtMillis() + "\t" + c.getDueAtMillis()
+                + (c.getRequestId() == null ? "" : "\t" + URLEncoder.encode(c.getRequestId(), "UTF-8")) + "\n")
+                .getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private void append(byte[] line, boolean sync) throws IOException {
+        synchronized (fileLock) {
+            if (out == null) out = new FileOutputStream(queueFile, true);
+            out.write(line);
+            if (sync) out.getChannel().force(false);
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try { out.close(); } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+
+    // pending cheques stay in the file and are picked up again by recover() on next start
+    public void shutdown() {
+        scheduler.shutdownNow();
+        synchronized (fileLock) {
+            closeFile();
+        }
+    }
+
+    public int getQueueDepth() { return pending.get(); }
+    public long getSubmittedCount() { return submitted.sum(); }
+    public long getClearedCount() { return cleared.sum(); }
+    public long getCancelledCount() { return cancelled.sum(); }
+    public long getFailedCount() { return failed.sum(); }
+
+    public double getClearedPerSecond() {
+        double secs = (System.nanoTime() - startNanos) / 1e9;
+        return secs <= 0 ? 0.0 : cleared.sum() / secs;
+    }
+
+    // how far behind the due time cheques actually cleared
+    public double getAverageClearingLagMillis() {
+        long n = cleared.sum();
+        return n == 0 ? 0.0 : clearingLagMillis.sum() / (double) n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cheques[pending=%d submitted=%d cleared=%d cancelled=%d failed=%d rate=%.1f/s lag=%.1fms]",
+                getQueueDepth(), getSubmittedCount(), getClearedCount(), getCancelledCount(), getFailedCount(),
+                getClearedPerSecond(), getAverageClearingLagMillis());
+    }
+}
+
+// an authenticated customer session handed out by AtmEngine.login
+class AtmSession {
+    private final String username;
+    private final long loginAtMillis;
+    private volatile boolean active = true;
+
+    AtmSession(String username) {
+        this.username = username;
+        this.loginAtMillis = System.currentTimeMillis();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getLoginAtMillis() {
+        return loginAtMillis;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    void invalidate() {
+        active = false;
+    }
+}
+
+// one leg of a bulk transfer (e.g. a payroll line)
+class TransferInstruction {
+    final String from;
+    final String to;
+    final int amount;
+
+    TransferInstruction(String from, String to, int amount) {
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+}
+
+// what happened to one instruction of a bulk transfer
+enum TransferOutcome {
+    DONE, INSUFFICIENT_FUNDS, NO_SUCH_ACCOUNT, SAME_ACCOUNT, INVALID_AMOUNT, REJECTED
+}
+
+// per-instruction outcomes of AtmEngine.bulkTransfer, in input order
+class BulkTransferResult {
+    private final TransferOutcome[] outcomes;
+    private final long amountMoved;
+    private final long elapsedNanos;
+
+    BulkTransferResult(TransferOutcome[] outcomes, long amountMoved, long elapsedNanos) {
+        this.outcomes = outcomes;
+        this.amountMoved = amountMoved;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public TransferOutcome outcome(int index) {
+        return outcomes[index];
+    }
+
+    public int size() {
+        return outcomes.length;
+    }
+
+    public int getCompleted() {
+        int n = 0;
+        for (TransferOutcome o : outcomes)
+            if (o == TransferOutcome.DONE) n++;
+        return n;
+    }
+
+    public int getFailed() {
+        return outcomes.length - getCompleted();
+    }
+
+    public long getAmountMoved() {
+        return amountMoved;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bulk transfer[%d done, %d failed, Rs%d moved in %.1fms]",
+                getCompleted(), getFailed(), amountMoved, elapsedNanos / 1e6);
+    }
+}
+
+// Annual interest rate in fixed point. The daily rate is held in units of 1e-12 rupee per rupee
+// (SCALE), so a day's interest on a balance is an exact long product with no double rounding,
+// and the fraction of a rupee not credited yet is carried per account in the same unit.
+final class InterestRate {
+    static final long SCALE = 1_000_000_000_000L;
+    static final int DAYS_PER_YEAR = 365;
+    // largest daily rate whose product with any balance, plus a carried fraction, fits a long
+    private static final long MAX_DAILY_RATE = (Long.MAX_VALUE - SCALE) / Integer.MAX_VALUE;
+
+    static final InterestRate DEFAULT = ofPercent("4.0");
+
+    private final BigDecimal annualPercent;
+    private final long dailyRate;
+
+    InterestRate(BigDecimal annualPercent) {
+        if (annualPercent.signum() < 0)
+            throw new IllegalArgumentException("Interest rate cannot be negative: " + annualPercent);
+        BigDecimal daily = annualPercent.multiply(BigDecimal.valueOf(SCALE))
+                .divide(BigDecimal.valueOf(100L * DAYS_PER_YEAR), 0, RoundingMode.HALF_EVEN);
+        if (daily.compareTo(BigDecimal.valueOf(MAX_DAILY_RATE)) > 0)
+            throw new IllegalArgumentException("Interest rate too high: " + annualPercent + "%");
+        this.annualPercent = annualPercent;
+        this.dailyRate = daily.longValue();
+    }
+
+    // percent per year, e.g. "4" or "3.75"
+    static InterestRate ofPercent(String annualPercent) {
+        return new InterestRate(new BigDecimal(annualPercent.trim()));
+    }
+
+    public BigDecimal getAnnualPercent() {
+        return annualPercent;
+    }
+
+    public long getDailyRate() {
+        return dailyRate;
+    }
+
+    // carried fraction plus one day's interest on balance; whole rupees in it are due for credit
+    long accrue(int balance, long carried) {
+        return balance <= 0 ? carried : carried + balance * dailyRate;
+    }
+
+    // balance after days of daily compounding, credited the way the end-of-day run does it
+    long project(int balance, long carried, int days) {
+        long b = balance;
+        for (int d = 0; d < days; d++) {
+            long accrued = accrue(Math.toIntExact(b), carried);
+            b += accrued / SCALE;
+            carried = accrued % SCALE;
+        }
+        return b;
+    }
+
+    static BigDecimal toRupees(long scaled) {
+        return BigDecimal.valueOf(scaled, 12);
+    }
+
+    @Override
+    public String toString() {
+        return annualPercent.toPlainString() + "% p.a.";
+    }
+}
+
+// Progress of an end-of-day interest run, rewritten after every finished registry shard so an
+// interrupted run resumes with the shards still open. Accounts remember the day they last
+// accrued, so a shard that was cut off half way is simply walked again.
+class InterestCheckpoint {
+    final LocalDate day;
+    final int shards;
+    final BitSet done;
+    long accounts;     // accounts accrued so far
+    long credited;     // rupees credited so far
+    long elapsedNanos; // time spent in earlier attempts
+    boolean finished;
+
+    InterestCheckpoint(LocalDate day, int shards) {
+        this.day = day;
+        this.shards = shards;
+        this.done = new BitSet(shards);
+    }
+
+    // null if there is no checkpoint or it cannot be parsed
+    static InterestCheckpoint read(File file) throws IOException {
+        if (!file.exists()) return null;
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            InterestCheckpoint c = new InterestCheckpoint(LocalDate.parse(p.getProperty("day")),
+                    Integer.parseInt(p.getProperty("shards")));
+            for (String shard : p.getProperty("done", "").split(","))
+                if (!shard.isEmpty()) c.done.set(Integer.parseInt(shard));
+            c.accounts = Long.parseLong(p.getProperty("accounts", "0"));
+            c.credited = Long.parseLong(p.getProperty("credited", "0"));
+            c.elapsedNanos = Long.parseLong(p.getProperty("elapsedNanos", "0"));
+            c.finished = Boolean.parseBoolean(p.getProperty("finished"));
+            return c;
+        } catch (RuntimeException corrupt) {
+            return null;
+        }
+    }
+
+    void write(File file) throws IOException {
+        StringBuilder doneList = new StringBuilder();
+        for (int s = done.nextSetBit(0); s >= 0; s = done.nextSetBit(s + 1))
+            doneList.append(doneList.length() == 0 ? "" : ",").append(s);
+        Properties p = new Properties();
+        p.setProperty("day", day.toString());
+        p.setProperty("shards", Integer.toString(shards));
+        p.setProperty("done", doneList.toString());
+        p.setProperty("accounts", Long.toString(accounts));
+        p.setProperty("credited", Long.toString(credited));
+        p.setProperty("elapsedNanos", Long.toString(elapsedNanos));
+        p.setProperty("finished", Boolean.toString(finished));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, "end-of-day interest run");
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not replace " + file);
+        }
+    }
+}
+
+// outcome of AtmEngine.runEndOfDay
+class InterestRunResult {
+    private final LocalDate day;
+    private final long accounts;
+    private final long skipped;
+    private final long credited;
+    private final int resumedShards;
+    private final long elapsedNanos;
+
+    InterestRunResult(LocalDate day, long accounts, long skipped, long credited, int resumedShards, long elapsedNanos) {
+        this.day = day;
+        this.accounts = accounts;
+        this.skipped = skipped;
+        this.credited = credited;
+        this.resumedShards = resumedShards;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public LocalDate getDay() { return day; }
+    public long getAccounts() { return accounts; }             // accrued in this run
+    public long getSkipped() { return skipped; }               // had already accrued for the day
+    public long getCredited() { return credited; }             // rupees
+    public int getResumedShards() { return resumedShards; }    // finished by an earlier attempt
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    public double getSecondsPerMillionAccounts() {
+        return accounts == 0 ? 0 : elapsedNanos / 1e9 * 1_000_000 / accounts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("interest[%s: %d accounts, Rs%d credited, %d skipped, %d shard(s) resumed, "
+                        + "%.1fms = %.2fs per million accounts]",
+                day, accounts, credited, skipped, resumedShards, elapsedNanos / 1e6, getSecondsPerMillionAccounts());
+    }
+}
+
+// Remembers recent requests by their client request ID, so a double click or a retry after a
+// timeout gets the first answer back instead of running the operation a second time. The
+// entry goes in before the operation runs, so a duplicate arriving while the first is still
+// running waits for it rather than racing it. Entries live for windowMillis; beyond maxEntries
+// the oldest are dropped early. A failed operation changed nothing and is forgotten, so it can
+// be retried under the same ID. IDs are per user: one customer's ID never matches another's.
+class RequestCache<V> {
+    static final int MAX_ID_LENGTH = 64;
+
+    private static final Counter REPLAYS =
+            Metrics.counter("atm_request_replays_total", "Requests answered from the request ID cache instead of running again");
+    private static final Counter WAITS =
+            Metrics.counter("atm_request_replay_waits_total", "Duplicates that arrived while the first request was still running");
+    private static final Counter CONFLICTS =
+            Metrics.counter("atm_request_id_conflicts_total", "Request IDs reused for a different operation");
+    private static final Counter EVICTED_EARLY =
+            Metrics.counter("atm_request_ids_evicted_early_total", "Request IDs dropped before their window ended (cache full)");
+
+    static final class Entry<V> {
+        final String key;
+        final String fingerprint; // what was asked for, e.g. DEPOSIT:500
+        final long createdMillis;
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+
+        Entry(String key, String fingerprint, long createdMillis) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+    private final ConcurrentLinkedQueue<Entry<V>> order = new ConcurrentLinkedQueue<Entry<V>>(); // oldest first
+    private final AtomicInteger queued = new AtomicInteger(); // length of order
+    private volatile int maxEntries;
+    private volatile long windowMillis;
+
+    RequestCache(int maxEntries, long windowMillis) {
+        setLimits(maxEntries, windowMillis);
+    }
+
+    void setLimits(int maxEntries, long windowMillis) {
+        if (maxEntries < 1 || windowMillis < 1)
+            throw new IllegalArgumentException("request ID cache needs a positive size and window");
+        this.maxEntries = maxEntries;
+        this.windowMillis = windowMillis;
+    }
+
+    // runs op, unless this user sent requestId within the window: then the first run's answer
+    // is returned (after waiting for it if it is still running). Without a request ID op just runs.
+    V execute(String user, String requestId, String fingerprint, AtmEngine.Call<V> op) throws AtmException {
+        if (requestId == null) return op.call();
+        if (requestId.isEmpty() || requestId.length() > MAX_ID_LENGTH)
+            throw new AtmException("Invalid request ID.");
+        String key = key(user, requestId);
+        long now = System.currentTimeMillis();
+        Entry<V> mine = new Entry<V>(key, fingerprint, now);
+        Entry<V> first;
+        while ((first = entries.putIfAbsent(key, mine)) != null) {
+            if (now - first.createdMillis < windowMillis) return replay(first, fingerprint);
+            entries.remove(key, first); // outlived its window, take its place
+        }
+        track(mine, now);
+        try {
+            V value = op.call();
+            mine.result.complete(value);
+            return value;
+        } catch (AtmException | RuntimeException e) {
+            entries.remove(key, mine);
+            mine.result.completeExceptionally(e); // duplicates already waiting get the same error
+            throw e;
+        }
+    }
+
+    // a request that completed before a restart, found in the transaction log
+    void restore(String user, String requestId, String fingerprint, V value, long createdMillis) {
+        long now = System.currentTimeMillis();
+        if (now - createdMillis >= windowMillis) return;
+        Entry<V> e = new Entry<V>(key(user, requestId), fingerprint, createdMillis);
+        e.result.complete(value);
+        entries.put(e.key, e);
+        track(e, now);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    private V replay(Entry<V> first, String fingerprint) throws AtmException {
+        if (!first.fingerprint.equals(fingerprint)) {
+            CONFLICTS.increment();
+            throw new AtmException("Request ID was already used for a different operation.");
+        }
+        REPLAYS.increment();
+        if (!first.result.isDone()) WAITS.increment();
+        try {
+            return first.result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AtmException) throw (AtmException) cause;
+            throw (RuntimeException) cause; // execute() only fails it with these two
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AtmException("Interrupted while waiting for the original request.");
+        }
+    }
+
+    // new entries join at the tail; the head is dropped once it is past the window or the
+    // cache is over its size. A request still running is never dropped - a duplicate must keep
+    // finding it - so eviction pauses behind it and the cache may briefly run over its size.
+    private void track(Entry<V> e, long now) {
+        order.add(e);
+        queued.incrementAndGet();
+        Entry<V> oldest;
+        while ((oldest = order.peek()) != null) {
+            boolean full = queued.get() > maxEntries;
+            if (!full && now - oldest.createdMillis < windowMillis) break;
+            if (!oldest.result.isDone()) break;
+            oldest = order.poll();
+            if (oldest == null) break;
+            queued.decrementAndGet();
+            if (entries.remove(oldest.key, oldest) && now - oldest.createdMillis < windowMillis)
+                EVICTED_EARLY.increment();
+        }
+    }
+
+    private static String key(String user, String requestId) {
+        return user + '\u0000' + requestId;
+    }
+}
+
+// Headless ATM service. Every operation the GUI offers is available here as a typed call,
+// synchronously or as a CompletableFuture on the engine's executor, so the engine can be
+// driven without Swing and by many sessions at once.
+class AtmEngine {
+
+    // body of an async call that may fail with an ATM error
+    interface Call<T> {
+        T call() throws AtmException;
+    }
+
+    public static final int DEFAULT_OPENING_BALANCE = 10000;
+    private static final long CHEQUE_CLEARING_MS = 5000;
+    private static final int CHEQUE_WORKERS = 2;
+    private static final int MAX_PENDING_CHEQUES = 100_000;
+    private static final String CHEQUE_QUEUE_FILE = "pending_cheques.log";
+    private static final String INTEREST_CHECKPOINT_FILE = "interest_checkpoint.properties";
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_REQUEST_IDS = 100_000;                            // per cache
+    public static final long DEFAULT_REQUEST_ID_WINDOW_MS = TimeUnit.MINUTES.toMillis(15);
+
+    // latency + error counts per operation, whoever the caller is (GUI, async, simulation)
+    private static final OpMetrics OP_CREATE = OpMetrics.of("create_account");
+    private static final OpMetrics OP_LOGIN = OpMetrics.of("login");
+    private static final OpMetrics OP_BALANCE = OpMetrics.of("balance");
+    private static final OpMetrics OP_DEPOSIT = OpMetrics.of("deposit");
+    private static final OpMetrics OP_WITHDRAW = OpMetrics.of("withdraw");
+    private static final OpMetrics OP_MINI_STATEMENT = OpMetrics.of("mini_statement");
+    private static final OpMetrics OP_CHANGE_PIN = OpMetrics.of("change_pin");
+    private static final OpMetrics OP_CHEQUE = OpMetrics.of("cheque_deposit");
+    private static final OpMetrics OP_EXPORT = OpMetrics.of("export_history");
+    private static final OpMetrics OP_QUERY = OpMetrics.of("query_transactions");
+    private static final OpMetrics OP_TRANSFER = OpMetrics.of("transfer");
+    private static final OpMetrics OP_BULK_TRANSFER = OpMetrics.of("bulk_transfer");
+    private static final int BULK_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int STARTUP_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final LatencyHistogram QUEUE_DELAY =
+            Metrics.histogram("atm_engine_queue_delay_seconds", "Time an async call waited for an engine thread");
+    private static final LatencyHistogram INTEREST_RUN_TIME =
+            Metrics.histogram("atm_interest_run_seconds", "Duration of an end-of-day interest run");
+    private static final Counter INTEREST_ACCOUNTS =
+            Metrics.counter("atm_interest_accounts_total", "Accounts accrued by end-of-day interest runs");
+    private static final Counter INTEREST_CREDITED =
+            Metrics.counter("atm_interest_credited_rupees_total", "Rupees credited as interest");
+
+    private final AccountRegistry registry;
+    private final ExecutorService executor;
+    private final ChequeClearingService cheques;
+    private final LocalStore store; // null = in-memory only
+    private final HistoryExporter exporter = new HistoryExporter();
+    private final File dataDir;
+    private ExecutorService bulkPool; // created on the first bulk transfer
+    private volatile LoginLimiter limiter = new LoginLimiter();
+    private volatile int pinIterations = Credential.DEFAULT_ITERATIONS;
+    private volatile Credential dummy;
+    private volatile boolean preloadFromDb;
+    private volatile AccountPreloader startup;
+    private volatile InterestRate interestRate = InterestRate.DEFAULT;
+    private volatile InterestRunResult lastInterestRun;
+    private final AtomicBoolean interestRunning = new AtomicBoolean();
+    private volatile boolean stopping;
+    private ScheduledExecutorService endOfDay; // created by scheduleEndOfDay
+    // answers to recent requests by request ID: balances for deposits, withdrawals and
+    // transfers, the ticket for cheques
+    private final RequestCache<Integer> balanceRequests =
+            new RequestCache<Integer>(DEFAULT_REQUEST_IDS, DEFAULT_REQUEST_ID_WINDOW_MS);
+    private final RequestCache<Cheque> chequeRequests =
+            new RequestCache<Cheque>(DEFAULT_REQUEST_IDS, DEFAULT_REQUEST_ID_WINDOW_MS);
+
+    public AtmEngine() {
+        this(newDefaultExecutor());
+    }
+
+    static ExecutorService newDefaultExecutor() {
+        return Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()),
+                new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Atm-Engine-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public AtmEngine(ExecutorService executor) {
+        this(executor, new AccountRegistry());
+    }
+
+    public AtmEngine(ExecutorService executor, AccountRegistry registry) {
+        this(executor, registry, new File("."));
+    }
+
+    public AtmEngine(ExecutorService executor, AccountRegistry registry, File dataDir) {
+        this(executor, registry, dataDir, null);
+    }
+
+    // dataDir holds the engine's local files (pending cheque queue); with a LocalStore every
+    // change is also appended to the local transaction log and recovered by start()
+    public AtmEngine(ExecutorService executor, AccountRegistry registry, File dataDir, LocalStore store) {
+        this.executor = executor;
+        this.registry = registry;
+        this.store = store;
+        this.dataDir = dataDir;
+        this.cheques = new ChequeClearingService(new ChequeClearingService.Settler() {
+            public int settle(Cheque cheque) throws AtmException {
+                return settleCheque(cheque);
+            }
+
+            public Map<Long, Long> creditedSince(long fromMillis) {
+                return creditedCheques(fromMillis);
+            }
+        }, new File(dataDir, CHEQUE_QUEUE_FILE), CHEQUE_WORKERS, CHEQUE_CLEARING_MS, MAX_PENDING_CHEQUES);
+        Metrics.gauge("atm_accounts", "Accounts in the registry", new Gauge() {
+            public long value() {
+                return AtmEngine.this.registry.size();
+            }
+        });
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            Metrics.gauge("atm_engine_queue_depth", "Async calls waiting for an engine thread", new Gauge() {
+                public long value() {
+                    return pool.getQueue().size();
+                }
+            });
+            Metrics.gauge("atm_engine_active_threads", "Engine threads running a call", new Gauge() {
+                public long value() {
+                    return pool.getActiveCount();
+                }
+            });
+        }
+        Metrics.gauge("atm_request_ids", "Request IDs remembered for replay", new Gauge() {
+            public long value() {
+                return balanceRequests.size() + chequeRequests.size();
+            }
+        });
+        Metrics.gauge("atm_interest_last_run_millis_per_million_accounts",
+                "Last end-of-day interest run, milliseconds per million accounts", new Gauge() {
+                    public long value() {
+                        InterestRunResult r = lastInterestRun;
+                        return r == null ? 0 : (long) (r.getSecondsPerMillionAccounts() * 1000);
+                    }
+                });
+    }
+
+    // Rebuilds accounts from the local store (or bulk-loads them from the DB when the store is
+    // empty and preloadFromDb is set), then resumes cheques that were in flight at the last
+    // shutdown. Returns as soon as the load is under way: accounts are served as their
+    // partition comes in, and lookups of the rest wait for their partition.
+    public AccountPreloader start() {
+        final long startNanos = System.nanoTime();
+        AccountPreloader preload = null;
+        if (store != null) {
+            try {
+                preload = store.recoverParallel(registry, STARTUP_THREADS);
+            } catch (IOException e) {
+                System.out.println("Local store recovery failed: " + e.getMessage());
+            }
+        }
+        boolean storeEmpty = preload == null || preload.isLoaded() && preload.getAccountsLoaded() == 0;
+        if (storeEmpty && preloadFromDb && DatabaseManager.isEnabled()) {
+            if (registry.isBounded()) {
+                System.out.println("Startup: bounded registry, accounts are loaded from the DB on first use");
+            } else {
+                preload = new AccountPreloader("database", DatabaseManager.PRELOAD_PARTITIONS, startNanos);
+                registry.setPreloader(preload);
+                preload.start(DatabaseManager.preloadSource(), registry,
+                        Math.min(STARTUP_THREADS, DatabaseManager.getPoolSize()));
+            }
+        }
+        if (preload == null) preload = AccountPreloader.finished("memory", registry.size(), startNanos);
+        final AccountPreloader p = preload;
+        startup = p;
+        registry.setPreloader(p);
+        p.done().thenRun(new Runnable() {
+            public void run() {
+                registry.setPreloader(null);
+                System.out.println(p);
+                if (registry.isBounded() && !p.getSource().equals("database")) {
+                    // the log may be ahead of the DB; write recovered balances back before any
+                    // of them can be evicted and reloaded
+                    registry.forEach(new AccountRegistry.Visitor() {
+                        public void visit(AccountRecord record) {
+                            DatabaseManager.balanceChanged(record);
+                        }
+                    });
+                }
+            }
+        });
+        Metrics.gauge("atm_startup_accounts_loaded", "Accounts loaded by the start-up pipeline", new Gauge() {
+            public long value() {
+                return p.getAccountsLoaded();
+            }
+        });
+        Metrics.gauge("atm_startup_loaded_millis", "Start-up time until every account was loaded (0 while loading)", new Gauge() {
+            public long value() {
+                return (long) p.getLoadedMillis();
+            }
+        });
+        Metrics.gauge("atm_startup_first_login_millis", "Start-up time until the first successful login", new Gauge() {
+            public long value() {
+                return (long) p.getFirstLoginMillis();
+            }
+        });
+        try {
+            cheques.recover();
+        } catch (IOException e) {
+            System.out.println("Cheque queue recovery failed: " + e.getMessage());
+        }
+        restoreRequestIds();
+        InterestCheckpoint checkpoint = readInterestCheckpoint();
+        if (checkpoint != null && !checkpoint.finished)
+            System.out.println("End-of-day interest run for " + checkpoint.day + " was interrupted after "
+                    + checkpoint.done.cardinality() + "/" + checkpoint.shards + " shard(s); the next run finishes it");
+        return p;
+    }
+
+    // How many request IDs are remembered (per cache) and for how long. Call before start(),
+    // which reloads the IDs still inside the window from the transaction log.
+    public void setRequestIdLimits(int maxEntries, long windowMillis) {
+        balanceRequests.setLimits(maxEntries, windowMillis);
+        chequeRequests.setLimits(maxEntries, windowMillis);
+    }
+
+    // bulk-load every customer from the users table at start() when the local store is empty
+    public void setPreloadFromDb(boolean on) {
+        this.preloadFromDb = on;
+    }
+
+    // null before start()
+    public AccountPreloader getStartup() {
+        return startup;
+    }
+
+    public ChequeClearingService getChequeService() {
+        return cheques;
+    }
+
+    public AccountRegistry getRegistry() {
+        return registry;
+    }
+
+    public File getDataDir() {
+        return dataDir;
+    }
+
+    // ---- accounts & sessions ----
+
+    public void createAccount(String username, int pin) throws AtmException {
+        createAccount(username, pin, DEFAULT_OPENING_BALANCE);
+    }
+
+    public void createAccount(String username, int pin, int openingBalance) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            if (username == null || username.trim().isEmpty())
+                throw new AtmException("Invalid username.");
+            if (openingBalance < 0)
+                throw new AtmException("Opening balance cannot be negative.");
+            if (registry.find(username) != null)
+                throw new AtmException("Username already exists."); // before paying for the hash
+            Credential credential = Credential.create(pin, pinIterations);
+            AccountRecord record = registry.createIfAbsent(username, credential, openingBalance);
+            if (record == null)
+                throw new AtmException("Username already exists.");
+
+            persist(LogRecordType.OPEN, username, openingBalance, openingBalance, credential.encode());
+            DatabaseManager.balanceChanged(record); // first flush inserts the row
+            registry.release(record);
+            DatabaseManager.insertTransaction(username, "Account created - initial balance Rs" + openingBalance);
+        } catch (AtmException e) {
+            OP_CREATE.failed(e);
+            throw e;
+        } finally {
+            OP_CREATE.latency.recordSince(start);
+        }
+    }
+
+    public boolean accountExists(String username) {
+        return registry.contains(username);
+    }
+
+    // registers an existing account without journaling it (demo seed, recovery)
+    void restoreAccount(String username, int pin, SavingsAccount account) {
+        restoreAccount(username, Credential.create(pin, pinIterations), account);
+    }
+
+    // many accounts can share one credential, e.g. benchmarks that would otherwise hash per account
+    void restoreAccount(String username, Credential credential, SavingsAccount account) {
+        registry.put(new AccountRecord(username, credential, account));
+    }
+
+    // PBKDF2 cost for PINs set from now on; existing hashes keep their own cost
+    public void setPinIterations(int iterations) {
+        if (iterations <= 0) throw new IllegalArgumentException("iterations must be positive");
+        this.pinIterations = iterations;
+    }
+
+    public LoginLimiter getLoginLimiter() {
+        return limiter;
+    }
+
+    public void setLoginLimiter(LoginLimiter limiter) {
+        if (limiter == null) throw new IllegalArgumentException("limiter must not be null");
+        this.limiter = limiter;
+    }
+
+    public AtmSession login(String username, int pin) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            if (username == null || username.trim().isEmpty())
+                throw new AtmException("Please enter username.");
+            AccountRecord record = registry.find(username);
+            if (!verifyPin(username, record, pin))
+                throw new AtmException("Wrong credentials! Access Denied.");
+            if (!record.isActive())
+                throw new AtmException("Account is " + record.getStatus().name().toLowerCase() + ".");
+            AccountPreloader s = startup;
+            if (s != null) s.onLogin();
+            return new AtmSession(username);
+        } catch (AtmException e) {
+            OP_LOGIN.failed(e);
+            throw e;
+        } finally {
+            OP_LOGIN.latency.recordSince(start);
+        }
+    }
+
+    public void logout(AtmSession session) {
+        session.invalidate();
+    }
+
+    // ---- operations ----
+
+    public int balance(AtmSession session) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            return account(session).getBalance();
+        } catch (AtmException e) {
+            OP_BALANCE.failed(e);
+            throw e;
+        } finally {
+            OP_BALANCE.latency.recordSince(start);
+        }
+    }
+
+    // returns the balance observed after the deposit
+    public int deposit(AtmSession session, int amount) throws AtmException {
+        return deposit(session, amount, null);
+    }
+
+    // with a request ID, the same deposit sent again within the request ID window (a double
+    // click, a retry after a timeout) returns the first balance instead of depositing twice
+    public int deposit(final AtmSession session, final int amount, final String requestId) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            return balanceRequests.execute(owner(session), requestId,
+                    requestId == null ? null : fingerprint(LogRecordType.DEPOSIT, amount, null), new Call<Integer>() {
+                        public Integer call() throws AtmException {
+                            AccountRecord record = acquire(session);
+                            try {
+                                checkAmount(amount);
+                                int after = record.getAccount().depositAndGet(amount);
+                                persist(LogRecordType.DEPOSIT, session.getUsername(), amount, after,
+                                        LogRecord.requestExtra(requestId));
+                                DatabaseManager.balanceChanged(record);
+                                DatabaseManager.insertTransaction(session.getUsername(), "Deposited Rs" + amount);
+                                return after;
+                            } finally {
+                                registry.release(record);
+                            }
+                        }
+                    });
+        } catch (AtmException e) {
+            OP_DEPOSIT.failed(e);
+            throw e;
+        } finally {
+            OP_DEPOSIT.latency.recordSince(start);
+        }
+    }
+
+    public int withdraw(AtmSession session, int amount) throws AtmException {
+        return withdraw(session, amount, null);
+    }
+
+    // like deposit: a repeat with the same request ID returns the first balance
+    public int withdraw(final AtmSession session, final int amount, final String requestId) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            return balanceRequests.execute(owner(session), requestId,
+                    requestId == null ? null : fingerprint(LogRecordType.WITHDRAWAL, amount, null), new Call<Integer>() {
+                        public Integer call() throws AtmException {
+                            AccountRecord record = acquire(session);
+                            try {
+                                checkAmount(amount);
+                                int after = record.getAccount().withdrawAndGet(amount);
+                                persist(LogRecordType.WITHDRAWAL, session.getUsername(), amount, after,
+                                        LogRecord.requestExtra(requestId));
+                                DatabaseManager.balanceChanged(record);
+                                DatabaseManager.insertTransaction(session.getUsername(), "Withdrew Rs" + amount);
+                                return after;
+                            } finally {
+                                registry.release(record);
+                            }
+                        }
+                    });
+        } catch (AtmException e) {
+            OP_WITHDRAW.failed(e);
+            throw e;
+        } finally {
+            OP_WITHDRAW.latency.recordSince(start);
+        }
+    }
+
+    // moves money to another customer; both legs go to the local log as one TRANSFER record
+    public int transfer(AtmSession session, String toUser, int amount) throws AtmException {
+        return transfer(session, toUser, amount, null);
+    }
+
+    // a repeat with the same request ID returns the first run's source balance
+    public int transfer(final AtmSession session, final String toUser, final int amount, final String requestId)
+            throws AtmException {
+        long start = System.nanoTime();
+        try {
+            return balanceRequests.execute(owner(session), requestId,
+                    requestId == null ? null : fingerprint(LogRecordType.TRANSFER, amount, toUser), new Call<Integer>() {
+                        public Integer call() throws AtmException {
+                            AccountRecord from = acquire(session);
+                            AccountRecord to = null;
+                            try {
+                                checkAmount(amount);
+                                to = toUser == null ? null : registry.acquire(toUser);
+                                if (to == null || !to.isActive())
+                                    throw new AtmException("No such account: " + toUser);
+                                if (to == from)
+                                    throw new AtmException("Cannot transfer to your own account.");
+                                int[] after;
+                                try {
+                                    after = SavingsAccount.transfer(from.getAccount(), to.getAccount(), amount);
+                                } catch (ArithmeticException overflow) {
+                                    throw new AtmException("Transfer rejected: receiving account balance limit reached.");
+                                }
+                                journalTransfer(from, to, amount, after[0], after[1], requestId);
+                                return after[0];
+                            } finally {
+                                registry.release(to);
+                                registry.release(from);
+                            }
+                        }
+                    });
+        } catch (AtmException e) {
+            OP_TRANSFER.failed(e);
+            throw e;
+        } finally {
+            OP_TRANSFER.latency.recordSince(start);
+        }
+    }
+
+    // Runs many transfers (payroll, settlement files) across all cores. Legs are grouped by
+    // source: each source is debited for its legs in input order, then the targets are
+    // credited in parallel, all with the lock-free legs of SavingsAccount.transfer, so a payroll
+    // run from one employer does not serialize on the employer account. A leg whose credit
+    // fails is refunded to its source.
+    public BulkTransferResult bulkTransfer(List<TransferInstruction> batch) throws AtmException {
+        long start = System.nanoTime();
+        final int n = batch.size();
+        final AccountRecord[] sources = new AccountRecord[n];
+        final AccountRecord[] targets = new AccountRecord[n];
+        try {
+            final TransferInstruction[] legs = batch.toArray(new TransferInstruction[n]);
+            final TransferOutcome[] outcomes = new TransferOutcome[n];
+            final int[] sourceAfter = new int[n];
+
+            Map<AccountRecord, List<Integer>> bySource = new LinkedHashMap<AccountRecord, List<Integer>>();
+            for (int i = 0; i < n; i++) {
+                TransferInstruction t = legs[i];
+                sources[i] = t.from == null ? null : registry.acquire(t.from);
+                targets[i] = t.to == null ? null : registry.acquire(t.to);
+                if (t.amount <= 0) {
+                    outcomes[i] = TransferOutcome.INVALID_AMOUNT;
+                } else if (sources[i] == null || targets[i] == null || !sources[i].isActive() || !targets[i].isActive()) {
+                    outcomes[i] = TransferOutcome.NO_SUCH_ACCOUNT;
+                } else if (sources[i] == targets[i]) {
+                    outcomes[i] = TransferOutcome.SAME_ACCOUNT;
+                } else {
+                    List<Integer> group = bySource.get(sources[i]);
+                    if (group == null) bySource.put(sources[i], group = new ArrayList<Integer>());
+                    group.add(i);
+                }
+            }
+
+            // 1. reserve on the sources, sources in parallel
+            final List<List<Integer>> groups = new ArrayList<List<Integer>>(bySource.values());
+            parallelFor(groups.size(), new IntConsumer() {
+                public void accept(int g) {
+                    for (int i : groups.get(g)) {
+                        try {
+                            sourceAfter[i] = sources[i].getAccount().reserveTransfer(legs[i].amount);
+                        } catch (InsufficientFundsException e) {
+                            outcomes[i] = TransferOutcome.INSUFFICIENT_FUNDS;
+                        }
+                    }
+                }
+            });
+
+            // 2. credit the targets, legs in parallel
+            final int[] reserved = new int[n];
+            int count = 0;
+            for (int i = 0; i < n; i++)
+                if (outcomes[i] == null) reserved[count++] = i;
+            final LongAdder moved = new LongAdder();
+            parallelFor(count, new IntConsumer() {
+                public void accept(int k) {
+                    int i = reserved[k];
+                    int amount = legs[i].amount;
+                    SavingsAccount from = sources[i].getAccount();
+                    int targetAfter;
+                    try {
+                        targetAfter = targets[i].getAccount().receiveTransfer(amount);
+                    } catch (ArithmeticException overflow) {
+                        from.releaseTransfer(amount);
+                        outcomes[i] = TransferOutcome.REJECTED;
+                        return;
+                    }
+                    from.completeTransfer(amount, sourceAfter[i]);
+                    journalTransfer(sources[i], targets[i], amount, sourceAfter[i], targetAfter, null);
+                    outcomes[i] = TransferOutcome.DONE;
+                    moved.add(amount);
+                }
+            });
+            return new BulkTransferResult(outcomes, moved.sum(), System.nanoTime() - start);
+        } catch (AtmException e) {
+            OP_BULK_TRANSFER.failed(e);
+            throw e;
+        } finally {
+            for (int i = 0; i < n; i++) {
+                registry.release(sources[i]);
+                registry.release(targets[i]);
+            }
+            OP_BULK_TRANSFER.latency.recordSince(start);
+        }
+    }
+
+    // last n entries, oldest first
+    public List<String> miniStatement(AtmSession session, int n) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            return account(session).getStatement().render(n);
+        } catch (AtmException e) {
+            OP_MINI_STATEMENT.failed(e);
+            throw e;
+        } finally {
+            OP_MINI_STATEMENT.latency.recordSince(start);
+        }
+    }
+
+    // everything still held in memory; the full history lives in the transaction journal
+    public List<String> history(AtmSession session) throws AtmException {
+        return account(session).getMiniStatement();
+    }
+
+    // streams the user's history to a file in the background; full history from the local
+    // transaction log when there is one, otherwise what the mini statement still holds
+    public ExportJob exportHistory(AtmSession session, File target, ExportFormat format, boolean gzip,
+                                   long fromMillis, long toMillis, ExportListener listener) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            account(session);
+            HistorySource source = store != null
+                    ? new LogHistorySource(store.index())
+                    : new StatementHistorySource(registry);
+            return exporter.export(source, session.getUsername(), target, format, gzip, fromMillis, toMillis, listener);
+        } catch (AtmException e) {
+            OP_EXPORT.failed(e);
+            throw e;
+        } finally {
+            OP_EXPORT.latency.recordSince(start);
+        }
+    }
+
+    // One page of the user's statement entries matching the query; pass the page's cursor back
+    // for the page after it (null = first page). Served from the per-user index over the local
+    // transaction log, so a page costs about the same however many rows the log holds.
+    public TransactionPage queryTransactions(AtmSession session, TransactionQuery query, String cursor, int limit)
+            throws AtmException {
+        long start = System.nanoTime();
+        try {
+            account(session);
+            if (store == null)
+                throw new AtmException("Statement search needs the local transaction log.");
+            if (limit < 1 || limit > MAX_PAGE_SIZE)
+                throw new AtmException("Page size must be between 1 and " + MAX_PAGE_SIZE + ".");
+            return store.index().page(session.getUsername(), query, TransactionPage.decodeCursor(cursor), limit);
+        } catch (AtmException e) {
+            OP_QUERY.failed(e);
+            throw e;
+        } finally {
+            OP_QUERY.latency.recordSince(start);
+        }
+    }
+
+    // every matching entry as a lazy stream, fetched a page at a time as it is consumed; a
+    // failure while paging surfaces as an IllegalStateException
+    public Stream<TransactionRow> transactions(final AtmSession session, final TransactionQuery query)
+            throws AtmException {
+        final TransactionPage first = queryTransactions(session, query, null, DEFAULT_PAGE_SIZE);
+        Iterator<TransactionRow> rows = new Iterator<TransactionRow>() {
+            private TransactionPage page = first;
+            private int next;
+
+            public boolean hasNext() {
+                while (next == page.getRows().size() && page.hasMore()) {
+                    try {
+                        page = queryTransactions(session, query, page.getNextCursor(), DEFAULT_PAGE_SIZE);
+                    } catch (AtmException e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                    next = 0;
+                }
+                return next < page.getRows().size();
+            }
+
+            public TransactionRow next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.getRows().get(next++);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
+    }
+
+    public boolean checkPin(AtmSession session, int pin) throws AtmException {
+        AccountRecord record = record(session);
+        return verifyPin(record.getUsername(), record, pin);
+    }
+
+    public void changePin(AtmSession session, int oldPin, int newPin) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            if (!checkPin(session, oldPin))
+                throw new AtmException("Incorrect current PIN.");
+            Credential credential = Credential.create(newPin, pinIterations);
+            AccountRecord record = acquire(session);
+            try {
+                record.setCredential(credential);
+                DatabaseManager.balanceChanged(record); // the flush writes the hash too; resident until then
+            } finally {
+                registry.release(record);
+            }
+            persist(LogRecordType.PIN_CHANGE, session.getUsername(), 0, 0, credential.encode());
+            DatabaseManager.updatePIN(session.getUsername(), credential); // try to update DB
+        } catch (AtmException e) {
+            OP_CHANGE_PIN.failed(e);
+            throw e;
+        } finally {
+            OP_CHANGE_PIN.latency.recordSince(start);
+        }
+    }
+
+    // queues the cheque for clearing; cheque.result() completes with the balance once cleared
+    public Cheque depositCheque(AtmSession session, int amount) throws AtmException {
+        return depositCheque(session, amount, null);
+    }
+
+    // a repeat with the same request ID returns the ticket of the cheque already deposited
+    public Cheque depositCheque(final AtmSession session, final int amount, final String requestId) throws AtmException {
+        long start = System.nanoTime();
+        try {
+            return chequeRequests.execute(owner(session), requestId,
+                    requestId == null ? null : fingerprint(LogRecordType.CHEQUE, amount, null), new Call<Cheque>() {
+                        public Cheque call() throws AtmException {
+                            account(session);
+                            checkAmount(amount);
+                            return cheques.submit(session.getUsername(), amount, requestId);
+                        }
+                    });
+        } catch (AtmException e) {
+            OP_CHEQUE.failed(e);
+            throw e;
+        } finally {
+            OP_CHEQUE.latency.recordSince(start);
+        }
+    }
+
+    public ChequeStatus chequeStatus(AtmSession session, long chequeId) throws AtmException {
+        return ownCheque(session, chequeId).getStatus();
+    }
+
+    public void cancelCheque(AtmSession session, long chequeId) throws AtmException {
+        if (!cheques.cancel(ownCheque(session, chequeId).getId()))
+            throw new AtmException("Cheque #" + chequeId + " can no longer be cancelled.");
+    }
+
+    public List<Cheque> pendingCheques(AtmSession session) throws AtmException {
+        account(session);
+        return cheques.pendingFor(session.getUsername());
+    }
+
+    // credit for a cleared cheque; runs on a clearing worker, for the user who deposited it
+    private int settleCheque(Cheque cheque) throws AtmException {
+        AccountRecord record = registry.acquire(cheque.getUsername());
+        try {
+            if (record == null || !record.isActive())
+                throw new AtmException("Account " + cheque.getUsername() + " is not available.");
+            int after = record.getAccount().depositAndGet(cheque.getAmount(), TxType.CHEQUE); // deposit after clear
+            persist(LogRecordType.CHEQUE, cheque.getUsername(), cheque.getAmount(), after,
+                    LogRecord.chequeExtra(cheque.getId(), cheque.getRequestId()));
+            DatabaseManager.balanceChanged(record);
+            DatabaseManager.insertTransaction(cheque.getUsername(), "Cheque cleared: Rs" + cheque.getAmount());
+            return after;
+        } finally {
+            registry.release(record);
+        }
+    }
+
+    // cheque id -> time credited, from the CHEQUE records in the local log since fromMillis
+    private Map<Long, Long> creditedCheques(long fromMillis) {
+        final Map<Long, Long> credited = new HashMap<Long, Long>();
+        if (store == null) return credited;
+        TransactionLog log = store.log();
+        log.scan(log.seekTime(fromMillis - TransactionIndex.CLOCK_SKEW_MS), new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                if (r.type == LogRecordType.CHEQUE && r.chequeId() != 0)
+                    credited.put(r.chequeId(), r.timestampMillis);
+                return true;
+            }
+        });
+        return credited;
+    }
+
+    private Cheque ownCheque(AtmSession session, long chequeId) throws AtmException {
+        account(session);
+        Cheque c = cheques.get(chequeId);
+        if (c == null || !c.getUsername().equals(session.getUsername()))
+            throw new AtmException("No such cheque #" + chequeId + ".");
+        return c;
+    }
+
+    // ---- interest ----
+
+    public void setInterestRate(InterestRate rate) {
+        this.interestRate = rate;
+    }
+
+    public InterestRate getInterestRate() {
+        return interestRate;
+    }
+
+    // null until the first run in this process
+    public InterestRunResult getLastInterestRun() {
+        return lastInterestRun;
+    }
+
+    // End-of-day interest for day. Every account earns one day's interest on its balance when
+    // it is visited, whole rupees are credited through the local log, the balance write-behind
+    // and the DB journal, and the fraction is carried to the next day (daily compounding).
+    // Registry shards are the units of work, spread over the bulk pool and checkpointed as they
+    // finish; a run cut off by a crash or shutdown resumes with its open shards, and an older
+    // interrupted run is finished first. Accounts remember the day they last accrued, so a day
+    // is never paid twice.
+    public InterestRunResult runEndOfDay(LocalDate day) throws AtmException {
+        if (registry.isBounded())
+            throw new AtmException("End-of-day interest needs every account in memory; not available with a bounded registry.");
+        if (!interestRunning.compareAndSet(false, true))
+            throw new AtmException("An end-of-day interest run is already in progress.");
+        try {
+            AccountPreloader s = startup;
+            if (s != null) s.done().join(); // the walk must see every account
+            InterestCheckpoint checkpoint = readInterestCheckpoint();
+            if (checkpoint != null && !checkpoint.finished && checkpoint.shards != registry.shardCount())
+                checkpoint = new InterestCheckpoint(checkpoint.day, registry.shardCount()); // walk it all again
+            if (checkpoint != null && !checkpoint.finished && checkpoint.day.isBefore(day)) {
+                System.out.println("Finishing the interrupted end-of-day run for " + checkpoint.day + " first");
+                System.out.println(accrueInterest(checkpoint));
+                checkpoint = null;
+            }
+            if (checkpoint != null && checkpoint.day.equals(day) && checkpoint.finished)
+                return new InterestRunResult(day, 0, checkpoint.accounts, 0, checkpoint.shards, 0);
+            if (checkpoint == null || !checkpoint.day.equals(day))
+                checkpoint = new InterestCheckpoint(day, registry.shardCount());
+            return accrueInterest(checkpoint);
+        } catch (CompletionException e) {
+            throw new AtmException("End-of-day interest run failed: " + e.getCause());
+        } finally {
+            interestRunning.set(false);
+        }
+    }
+
+    // runs runEndOfDay for the current date every day at the given local time
+    public synchronized void scheduleEndOfDay(LocalTime at) {
+        if (endOfDay != null) endOfDay.shutdownNow();
+        endOfDay = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "End-Of-Day");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime next = now.toLocalDate().atTime(at);
+        if (!next.isAfter(now)) next = next.plusDays(1);
+        long delay = java.time.Duration.between(now, next).toMillis();
+        endOfDay.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    System.out.println(runEndOfDay(LocalDate.now()));
+                } catch (AtmException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        }, delay, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+        System.out.println("End-of-day interest scheduled daily at " + at + " (" + interestRate + ")");
+    }
+
+    private InterestRunResult accrueInterest(final InterestCheckpoint checkpoint) throws AtmException {
+        long start = System.nanoTime();
+        final int day = (int) checkpoint.day.toEpochDay();
+        final InterestRate rate = interestRate;
+        final int resumed = checkpoint.done.cardinality();
+        final LongAdder accounts = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder credited = new LongAdder();
+        parallelFor(checkpoint.shards, new IntConsumer() {
+            public void accept(int shard) {
+                if (checkpoint.done.get(shard) || stopping) return;
+                final long[] n = new long[2]; // accounts, rupees
+                registry.forEachInShard(shard, new AccountRegistry.Visitor() {
+                    public void visit(AccountRecord record) {
+                        if (stopping) return;
+                        long credit = accrue(record, day, rate);
+                        if (credit < 0) {
+                            skipped.increment();
+                        } else {
+                            n[0]++;
+                            n[1] += credit;
+                        }
+                    }
+                });
+                if (stopping) return;
+                accounts.add(n[0]);
+                credited.add(n[1]);
+                shardDone(checkpoint, shard, n[0], n[1]);
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        INTEREST_RUN_TIME.record(elapsed);
+        INTEREST_ACCOUNTS.add(accounts.sum());
+        INTEREST_CREDITED.add(credited.sum());
+        synchronized (checkpoint) {
+            checkpoint.elapsedNanos += elapsed;
+            checkpoint.finished = !stopping;
+            writeInterestCheckpoint(checkpoint);
+            if (stopping)
+                throw new AtmException("End-of-day interest run for " + checkpoint.day + " interrupted after "
+                        + checkpoint.done.cardinality() + "/" + checkpoint.shards + " shard(s); the next run resumes it.");
+        }
+        InterestRunResult result = new InterestRunResult(checkpoint.day, accounts.sum(), skipped.sum(),
+                credited.sum(), resumed, elapsed);
+        lastInterestRun = result;
+        return result;
+    }
+
+    // one day's interest for one account: rupees credited, or -1 if it already accrued for day
+    private long accrue(AccountRecord record, int day, InterestRate rate) {
+        if (record.getInterestDay() >= day || record.getStatus() == AccountStatus.CLOSED) return -1;
+        SavingsAccount account = record.getAccount();
+        long accrued = rate.accrue(account.getBalance(), record.getCarriedInterest());
+        int credit = (int) (accrued / InterestRate.SCALE);
+        long carried = accrued % InterestRate.SCALE;
+        int after;
+        try {
+            after = credit > 0 ? account.depositAndGet(credit, TxType.INTEREST) : account.getBalance();
+        } catch (ArithmeticException overflow) {
+            System.out.println("Interest not credited to " + record.getUsername() + ": balance at its limit");
+            return -1;
+        }
+        boolean changed = credit > 0 || carried != record.getCarriedInterest();
+        record.setInterest(day, carried);
+        if (!changed) return 0; // empty account, nothing to persist
+        persist(LogRecordType.INTEREST, record.getUsername(), credit, after, LogRecord.interestExtra(day, carried));
+        if (credit > 0) {
+            DatabaseManager.balanceChanged(record);
+            DatabaseManager.insertTransaction(record.getUsername(), "Interest credited Rs" + credit);
+        }
+        return credit;
+    }
+
+    // the shard's log records are forced before the checkpoint says it is done
+    private void shardDone(InterestCheckpoint checkpoint, int shard, long accounts, long credited) {
+        if (store != null) store.log().force();
+        synchronized (checkpoint) {
+            checkpoint.done.set(shard);
+            checkpoint.accounts += accounts;
+            checkpoint.credited += credited;
+            writeInterestCheckpoint(checkpoint);
+        }
+    }
+
+    private InterestCheckpoint readInterestCheckpoint() {
+        try {
+            return InterestCheckpoint.read(new File(dataDir, INTEREST_CHECKPOINT_FILE));
+        } catch (IOException e) {
+            System.out.println("Interest checkpoint unreadable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // a lost checkpoint only costs a re-walk, accounts still skip a day they accrued
+    private void writeInterestCheckpoint(InterestCheckpoint checkpoint) {
+        try {
+            checkpoint.write(new File(dataDir, INTEREST_CHECKPOINT_FILE));
+        } catch (IOException e) {
+            System.out.println("Interest checkpoint write failed: " + e.getMessage());
+        }
+    }
+
+    // ---- async variants ----
+
+    public CompletableFuture<AtmSession> loginAsync(final String username, final int pin) {
+        return submit(new Call<AtmSession>() {
+            public AtmSession call() throws AtmException {
+                return login(username, pin);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> balanceAsync(final AtmSession session) {
+        return submit(new Call<Integer>() {
+            public Integer call() throws AtmException {
+                return balance(session);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> depositAsync(AtmSession session, int amount) {
+        return depositAsync(session, amount, null);
+    }
+
+    public CompletableFuture<Integer> depositAsync(final AtmSession session, final int amount, final String requestId) {
+        return submit(new Call<Integer>() {
+            public Integer call() throws AtmException {
+                return deposit(session, amount, requestId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> withdrawAsync(AtmSession session, int amount) {
+        return withdrawAsync(session, amount, null);
+    }
+
+    public CompletableFuture<Integer> withdrawAsync(final AtmSession session, final int amount, final String requestId) {
+        return submit(new Call<Integer>() {
+            public Integer call() throws AtmException {
+                return withdraw(session, amount, requestId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> transferAsync(AtmSession session, String toUser, int amount) {
+        return transferAsync(session, toUser, amount, null);
+    }
+
+    public CompletableFuture<Integer> transferAsync(final AtmSession session, final String toUser, final int amount,
+                                                    final String requestId) {
+        return submit(new Call<Integer>() {
+            public Integer call() throws AtmException {
+                return transfer(session, toUser, amount, requestId);
+            }
+        });
+    }
+
+    public CompletableFuture<List<String>> miniStatementAsync(final AtmSession session, final int n) {
+        return submit(new Call<List<String>>() {
+            public List<String> call() throws AtmException {
+                return miniStatement(session, n);
+            }
+        });
+    }
+
+    public CompletableFuture<TransactionPage> queryTransactionsAsync(final AtmSession session, final TransactionQuery query,
+                                                                     final String cursor, final int limit) {
+        return submit(new Call<TransactionPage>() {
+            public TransactionPage call() throws AtmException {
+                return queryTransactions(session, query, cursor, limit);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> changePinAsync(final AtmSession session, final int oldPin, final int newPin) {
+        return submit(new Call<Void>() {
+            public Void call() throws AtmException {
+                changePin(session, oldPin, newPin);
+                return null;
+            }
+        });
+    }
+
+    // completes with the balance once the cheque has cleared
+    public CompletableFuture<Integer> depositChequeAsync(final AtmSession session, final int amount) {
+        try {
+            return depositCheque(session, amount).result();
+        } catch (AtmException e) {
+            CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    // runs a call on the engine executor; ATM errors complete the future exceptionally
+    public <T> CompletableFuture<T> submit(final Call<T> call) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final long queuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    QUEUE_DELAY.recordSince(queuedAt);
+                    try {
+                        result.complete(call.call());
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new AtmException("ATM engine is shut down."));
+        }
+        return result;
+    }
+
+    public void shutdown() {
+        stopping = true; // an interest run stops at the next account and keeps its checkpoint
+        executor.shutdown();
+        synchronized (this) {
+            if (bulkPool != null) bulkPool.shutdown();
+            if (endOfDay != null) endOfDay.shutdownNow();
+        }
+        cheques.shutdown();
+        exporter.shutdown();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.out.println("Local store close failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // ---- helpers ----
+
+    private static String owner(AtmSession session) throws AtmException {
+        if (session == null || !session.isActive())
+            throw new AtmException("Session expired. Please login again.");
+        return session.getUsername();
+    }
+
+    // what a request asked for; a request ID sent again for anything else is refused
+    static String fingerprint(LogRecordType type, long amount, String target) {
+        return target == null ? type + ":" + amount : type + ":" + amount + ":" + target;
+    }
+
+    // Reloads the request IDs still inside their window, so a retry that arrives after a restart
+    // is still answered from the first run. Completed requests come from the transaction log,
+    // cheques still clearing from the cheque queue.
+    private void restoreRequestIds() {
+        long startNanos = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final int[] restored = new int[1];
+        if (store != null) {
+            final TransactionLog log = store.log();
+            long window = Math.max(balanceRequests.getWindowMillis(), chequeRequests.getWindowMillis());
+            log.scan(log.seekTime(now - window - 1000), new TransactionLog.Visitor() {
+                public boolean visit(LogRecord r) {
+                    String id = r.requestId();
+                    if (id == null) return true;
+                    String target = r.type == LogRecordType.TRANSFER ? r.transferTarget() : null;
+                    String fingerprint = fingerprint(r.type, r.amount, target);
+                    if (r.type == LogRecordType.CHEQUE) {
+                        chequeRequests.restore(r.username, id, fingerprint, Cheque.cleared(r.chequeId(), r.username,
+                                (int) r.amount, r.timestampMillis, id, (int) r.balanceAfter), r.timestampMillis);
+                    } else {
+                        balanceRequests.restore(r.username, id, fingerprint, (int) r.balanceAfter, r.timestampMillis);
+                    }
+                    restored[0]++;
+                    return true;
+                }
+            });
+        }
+        for (Cheque c : cheques.pending()) {
+            if (c.getRequestId() == null) continue;
+            chequeRequests.restore(c.getUsername(), c.getRequestId(),
+                    fingerprint(LogRecordType.CHEQUE, c.getAmount(), null), c, c.getSubmittedAtMillis());
+            restored[0]++;
+        }
+        if (restored[0] > 0)
+            System.out.printf("Restored %d request ID(s) in %.1f ms%n", restored[0], (System.nanoTime() - startNanos) / 1e6);
+    }
+
+    // appends to the local transaction log; the in-memory change has already happened, so a
+    // failure here is reported like the DB fallback rather than undoing the operation
+    private void persist(LogRecordType type, String username, long amount, long balanceAfter, byte[] extra) {
+        if (store == null) return;
+        try {
+            store.log().append(type, username, amount, balanceAfter, extra);
+        } catch (IOException e) {
+            System.out.println("Local log append failed: " + username + " " + type + " " + amount
+                    + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private void journalTransfer(AccountRecord fromRecord, AccountRecord toRecord, int amount, int fromAfter, int toAfter,
+                                 String requestId) {
+        String from = fromRecord.getUsername(), to = toRecord.getUsername();
+        persist(LogRecordType.TRANSFER, from, amount, fromAfter, LogRecord.transferExtra(to, toAfter, requestId));
+        DatabaseManager.balanceChanged(fromRecord);
+        DatabaseManager.balanceChanged(toRecord);
+        DatabaseManager.insertTransaction(from, "Transferred Rs" + amount + " to " + to);
+        DatabaseManager.insertTransaction(to, "Received Rs" + amount + " from " + from);
+    }
+
+    // runs body(0..count-1) on the bulk pool (bulk transfers, interest runs) in dynamically
+    // claimed chunks; the calling thread works too, so progress never depends on a free pool thread
+    private void parallelFor(final int count, final IntConsumer body) throws AtmException {
+        if (count == 0) return;
+        int workers = Math.min(BULK_PARALLELISM, count);
+        final int chunk = Math.max(1, Math.min(1024, count / (workers * 8)));
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            public void run() {
+                int from;
+                while ((from = next.getAndAdd(chunk)) < count) {
+                    int to = Math.min(count, from + chunk);
+                    for (int i = from; i < to; i++)
+                        body.accept(i);
+                }
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<Future<?>>(workers - 1);
+        try {
+            ExecutorService pool = bulkPool();
+            for (int w = 1; w < workers; w++)
+                helpers.add(pool.submit(worker));
+        } catch (RejectedExecutionException e) {
+            // shutting down - the caller finishes the work alone
+        }
+        worker.run();
+        try {
+            for (Future<?> f : helpers)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AtmException("Batch interrupted.");
+        } catch (ExecutionException e) {
+            throw new AtmException("Batch failed: " + e.getCause());
+        }
+    }
+
+    private synchronized ExecutorService bulkPool() {
+        if (bulkPool == null) {
+            bulkPool = Executors.newFixedThreadPool(Math.max(1, BULK_PARALLELISM - 1), new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Bulk-Worker-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return bulkPool;
+    }
+
+    // one PIN check through the limiter; unknown users are checked against a dummy hash so the
+    // response time does not tell which usernames exist
+    private boolean verifyPin(String username, AccountRecord record, int pin) throws AtmException {
+        limiter.checkAllowed(username);
+        Credential credential = record != null ? record.getCredential() : dummyCredential();
+        boolean ok = limiter.verify(username, record != null, credential, pin) && record != null;
+        if (ok) limiter.onSuccess(username);
+        else limiter.onFailure(username);
+        return ok;
+    }
+
+    private Credential dummyCredential() {
+        Credential d = dummy;
+        if (d == null || d.iterations != pinIterations)
+            dummy = d = Credential.create(-1, pinIterations); // no real PIN is negative
+        return d;
+    }
+
+    private AccountRecord record(AtmSession session) throws AtmException {
+        if (session == null || !session.isActive())
+            throw new AtmException("Session expired. Please login again.");
+        AccountRecord record = registry.find(session.getUsername());
+        if (record == null || !record.isActive())
+            throw new AtmException("Account error. Please login again.");
+        return record;
+    }
+
+    // like record(), but the record cannot be evicted until registry.release(record)
+    private AccountRecord acquire(AtmSession session) throws AtmException {
+        if (session == null || !session.isActive())
+            throw new AtmException("Session expired. Please login again.");
+        AccountRecord record = registry.acquire(session.getUsername());
+        if (record == null || !record.isActive()) {
+            registry.release(record);
+            throw new AtmException("Account error. Please login again.");
+        }
+        return record;
+    }
+
+    private SavingsAccount account(AtmSession session) throws AtmException {
+        return record(session).getAccount();
+    }
+
+    private static void checkAmount(int amount) throws AtmException {
+        if (amount <= 0)
+            throw new AtmException("Enter a valid positive integer amount.");
+    }
+}
+
+// ---- Load simulation ----
+
+// what a simulated customer does at the ATM
+enum SimOp {
+    BALANCE("balance"), DEPOSIT("deposit"), WITHDRAW("withdraw"), CHEQUE("cheque"), PIN_CHANGE("pin"),
+    TRANSFER("transfer");
+
+    final String key;
+
+    SimOp(String key) {
+        this.key = key;
+    }
+
+    static SimOp fromKey(String key) {
+        for (SimOp op : values())
+            if (op.key.equalsIgnoreCase(key) || op.name().equalsIgnoreCase(key)) return op;
+        throw new IllegalArgumentException("Unknown operation in --mix: " + key);
+    }
+}
+
+// Command line settings for --simulate, e.g.
+//   --simulate --accounts=100000 --customers=2000 --duration=30 --rate=50000 --skew=0.99
+//   --mix=balance:35,deposit:25,withdraw:25,cheque:5,pin:5,transfer:5 --no-db
+class SimulationConfig {
+    int accounts = 10_000;
+    int customers = 1_000;
+    long durationMillis = 10_000;
+    double arrivalsPerSecond;      // total visit arrival rate, 0 = closed loop (no think time)
+    double skew;                   // Zipf exponent for picking accounts, 0 = uniform
+    int opsPerVisit = 3;
+    int openingBalance = 10_000;
+    int maxAmount = 5_000;
+    int pinIterations = 100;       // cheap by default so opening many accounts is quick
+    boolean useDb = true;
+    long seed = 42;
+    final int[] mix = {35, 25, 25, 5, 5, 5}; // weights by SimOp ordinal
+
+    static SimulationConfig parse(String[] args) {
+        SimulationConfig c = new SimulationConfig();
+        for (String arg : args) {
+            if (arg.equals("--simulate")) continue;
+            if (arg.equals("--no-db")) {
+                c.useDb = false;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            if (key.equals("accounts")) c.accounts = positive(key, Integer.parseInt(value));
+            else if (key.equals("customers")) c.customers = positive(key, Integer.parseInt(value));
+            else if (key.equals("duration")) c.durationMillis = (long) (Double.parseDouble(value) * 1000);
+            else if (key.equals("rate")) c.arrivalsPerSecond = Double.parseDouble(value);
+            else if (key.equals("skew")) c.skew = Double.parseDouble(value);
+            else if (key.equals("ops-per-visit")) c.opsPerVisit = positive(key, Integer.parseInt(value));
+            else if (key.equals("opening")) c.openingBalance = Integer.parseInt(value);
+            else if (key.equals("max-amount")) c.maxAmount = positive(key, Integer.parseInt(value));
+            else if (key.equals("seed")) c.seed = Long.parseLong(value);
+            else if (key.equals("pin-iterations")) c.pinIterations = positive(key, Integer.parseInt(value));
+            else if (key.equals("mix")) c.parseMix(value);
+            else throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+        if (c.durationMillis <= 0) throw new IllegalArgumentException("--duration must be positive");
+        if (c.arrivalsPerSecond < 0 || c.skew < 0) throw new IllegalArgumentException("--rate/--skew cannot be negative");
+        return c;
+    }
+
+    private void parseMix(String spec) {
+        Arrays.fill(mix, 0);
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            if (kv.length != 2) throw new IllegalArgumentException("Bad --mix entry: " + part);
+            mix[SimOp.fromKey(kv[0].trim()).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        int total = 0;
+        for (int w : mix) {
+            if (w < 0) throw new IllegalArgumentException("--mix weights cannot be negative");
+            total += w;
+        }
+        if (total == 0) throw new IllegalArgumentException("--mix needs at least one positive weight");
+    }
+
+    private static int positive(String key, int v) {
+        if (v <= 0) throw new IllegalArgumentException("--" + key + " must be positive");
+        return v;
+    }
+
+    static String usage() {
+        return "Usage: java AtmSimulatorGui --simulate [--accounts=N] [--customers=M] [--duration=SECONDS]\n"
+             + "         [--rate=VISITS_PER_SEC] [--skew=ZIPF_EXPONENT] [--ops-per-visit=K]\n"
+             + "         [--mix=balance:35,deposit:25,withdraw:25,cheque:5,pin:5,transfer:5]\n"
+             + "         [--opening=RS] [--max-amount=RS] [--pin-iterations=N] [--seed=N] [--no-db]";
+    }
+}
+
+// Zipf(skew) over [0, n): index 0 is the hottest. Inverse CDF with a binary search.
+class ZipfSampler {
+    private final double[] cdf;
+
+    ZipfSampler(int n, double skew) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++)
+            cdf[i] /= sum;
+    }
+
+    int next(Random rnd) {
+        double u = rnd.nextDouble();
+        int lo = 0, hi = cdf.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
+
+// Headless load generator: opens N accounts on a fresh in-memory engine and lets M simulated
+// customers (one virtual thread each where the JVM has them) visit the ATM until the duration
+// is up. Every visit logs in to a random (optionally Zipf-skewed) account and runs a few
+// operations from the configured mix. With --rate visits arrive as a Poisson process and the
+// response time is measured from the scheduled arrival, so a backed-up engine shows up as
+// latency instead of a quietly lower offered load.
+class LoadSimulator {
+
+    private static final long CHEQUE_DRAIN_TIMEOUT_MS = 30_000;
+
+    private final SimulationConfig config;
+    private final AtmEngine engine;
+    private final File workDir;
+    private final ZipfSampler zipf; // null = uniform
+    private final AtomicIntegerArray pins;
+    private final int mixTotal;
+
+    // per operation (plus login at index SimOp.values().length)
+    private final LatencyHistogram[] latency;
+    private final LongAdder[] completed;
+    private final LongAdder[] errors;
+    private final LatencyHistogram visitResponse = new LatencyHistogram();
+    private final LongAdder insufficientFunds = new LongAdder();
+    private final LongAdder authFailures = new LongAdder();
+    private final LongAdder visits = new LongAdder();
+
+    // money moved, for the conservation check
+    private final LongAdder deposited = new LongAdder();
+    private final LongAdder withdrawn = new LongAdder();
+    private final LongAdder chequesCleared = new LongAdder();
+    private final LongAdder chequesPending = new LongAdder();
+    private boolean virtualThreads;
+
+    LoadSimulator(SimulationConfig config) throws IOException {
+        this.config = config;
+        this.workDir = java.nio.file.Files.createTempDirectory("atm-sim").toFile();
+        this.engine = new AtmEngine(AtmEngine.newDefaultExecutor(),
+                new AccountRegistry(64, config.accounts), workDir);
+        engine.setPinIterations(config.pinIterations);
+        // customers here log in with a PIN another customer may just have changed; those are
+        // stale PINs, not guessing, so no lockouts and no global budget - only the hash cap
+        engine.setLoginLimiter(new LoginLimiter(Integer.MAX_VALUE, 0, 0, 0, Integer.MAX_VALUE,
+                Runtime.getRuntime().availableProcessors()));
+        this.zipf = config.skew > 0 ? new ZipfSampler(config.accounts, config.skew) : null;
+        this.pins = new AtomicIntegerArray(config.accounts);
+        int total = 0;
+        for (int w : config.mix) total += w;
+        this.mixTotal = total;
+        int kinds = SimOp.values().length + 1;
+        latency = new LatencyHistogram[kinds];
+        completed = new LongAdder[kinds];
+        errors = new LongAdder[kinds];
+        for (int i = 0; i < kinds; i++) {
+            latency[i] = new LatencyHistogram();
+            completed[i] = new LongAdder();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    // runs the whole simulation and returns true if money was conserved
+    boolean run() throws InterruptedException {
+        DatabaseManager.setEnabled(config.useDb);
+        try {
+            long t0 = System.nanoTime();
+            openAccounts();
+            System.out.printf("Opened %d accounts in %.1f ms%n", config.accounts, (System.nanoTime() - t0) / 1e6);
+
+            ExecutorService customers = newCustomerExecutor(config.customers);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.durationMillis);
+            final CountDownLatch done = new CountDownLatch(config.customers);
+            long start = System.nanoTime();
+            for (int i = 0; i < config.customers; i++) {
+                final long seed = config.seed * 31 + i;
+                customers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            customer(new Random(seed), deadline);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            customers.shutdown();
+
+            drainCheques();
+            report(elapsed);
+            return checkConservation();
+        } finally {
+            engine.shutdown();
+            DatabaseManager.shutdown();
+            deleteWorkDir();
+        }
+    }
+
+    private void openAccounts() {
+        for (int i = 0; i < config.accounts; i++) {
+            int pin = 1000 + (i % 9000);
+            try {
+                engine.createAccount(user(i), pin, config.openingBalance);
+            } catch (AtmException e) {
+                throw new IllegalStateException("Could not open " + user(i) + ": " + e.getMessage());
+            }
+            pins.set(i, pin);
+        }
+    }
+
+    // one customer: visit after visit until the deadline
+    private void customer(Random rnd, long deadline) {
+        double meanGapNanos = config.arrivalsPerSecond > 0
+                ? config.customers / config.arrivalsPerSecond * 1e9 : 0;
+        long nextArrival = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            if (meanGapNanos > 0) {
+                nextArrival += (long) (-Math.log(1 - rnd.nextDouble()) * meanGapNanos);
+                long wait = nextArrival - System.nanoTime();
+                if (wait > 0) {
+                    if (nextArrival - deadline > 0) break;
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                nextArrival = System.nanoTime();
+            }
+            visit(rnd);
+            visitResponse.recordSince(nextArrival);
+            visits.increment();
+        }
+    }
+
+    private void visit(Random rnd) {
+        int idx = zipf != null ? zipf.next(rnd) : rnd.nextInt(config.accounts);
+        int login = SimOp.values().length;
+        AtmSession session;
+        long t = System.nanoTime();
+        try {
+            session = engine.login(user(idx), pins.get(idx));
+            latency[login].recordSince(t);
+            completed[login].increment();
+        } catch (AtmException e) {
+            latency[login].recordSince(t);
+            errors[login].increment();
+            authFailures.increment(); // PIN changed under us by another customer
+            return;
+        }
+        for (int k = 0; k < config.opsPerVisit; k++)
+            operation(rnd, pickOp(rnd), idx, session);
+        engine.logout(session);
+    }
+
+    private void operation(Random rnd, SimOp op, int idx, AtmSession session) {
+        int amount = 1 + rnd.nextInt(config.maxAmount);
+        long t = System.nanoTime();
+        try {
+            switch (op) {
+                case BALANCE:
+                    engine.balance(session);
+                    break;
+                case DEPOSIT:
+                    engine.deposit(session, amount);
+                    deposited.add(amount);
+                    break;
+                case WITHDRAW:
+                    engine.withdraw(session, amount);
+                    withdrawn.add(amount);
+                    break;
+                case CHEQUE:
+                    chequeDeposit(session, amount);
+                    break;
+                case PIN_CHANGE:
+                    int oldPin = pins.get(idx);
+                    int newPin = 1000 + rnd.nextInt(9000);
+                    engine.changePin(session, oldPin, newPin);
+                    pins.set(idx, newPin);
+                    break;
+                case TRANSFER:
+                    // money only moves between accounts, the conservation check must still hold
+                    int to = zipf != null ? zipf.next(rnd) : rnd.nextInt(config.accounts);
+                    if (to == idx) to = (to + 1) % config.accounts;
+                    if (to != idx) engine.transfer(session, user(to), amount);
+                    break;
+            }
+            completed[op.ordinal()].increment();
+        } catch (InsufficientFundsException e) {
+            insufficientFunds.increment();
+            completed[op.ordinal()].increment(); // a correct refusal, not an error
+        } catch (AtmException e) {
+            errors[op.ordinal()].increment();
+        } catch (RuntimeException e) {
+            errors[op.ordinal()].increment();
+        } finally {
+            latency[op.ordinal()].recordSince(t);
+        }
+    }
+
+    private void chequeDeposit(AtmSession session, final int amount) throws AtmException {
+        Cheque cheque = engine.depositCheque(session, amount);
+        chequesPending.increment();
+        cheque.result().whenComplete(new BiConsumer<Integer, Throwable>() {
+            public void accept(Integer balance, Throwable error) {
+                if (error == null) chequesCleared.add(amount);
+                chequesPending.decrement();
+            }
+        });
+    }
+
+    private SimOp pickOp(Random rnd) {
+        int r = rnd.nextInt(mixTotal);
+        SimOp[] ops = SimOp.values();
+        for (int i = 0; i < ops.length; i++) {
+            r -= config.mix[i];
+            if (r < 0) return ops[i];
+        }
+        return SimOp.BALANCE;
+    }
+
+    // cheques clear a few seconds after submission; wait so they count toward the balances
+    private void drainCheques() throws InterruptedException {
+        long until = System.currentTimeMillis() + CHEQUE_DRAIN_TIMEOUT_MS;
+        if (chequesPending.sum() > 0)
+            System.out.println("Waiting for " + chequesPending.sum() + " cheques to clear...");
+        while (chequesPending.sum() > 0 && System.currentTimeMillis() < until)
+            Thread.sleep(100);
+    }
+
+    private void report(long elapsedNanos) {
+        double secs = elapsedNanos / 1e9;
+        long ops = 0, errs = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%n%-10s %10s %8s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "errors", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        for (int i = 0; i < latency.length; i++) {
+            String name = i < SimOp.values().length ? SimOp.values()[i].key : "login";
+            long n = completed[i].sum() + errors[i].sum();
+            if (n == 0) continue;
+            ops += n;
+            errs += errors[i].sum();
+            LatencyHistogram h = latency[i];
+            sb.append(String.format("%-10s %10d %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n", name, n, errors[i].sum(),
+                    h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3, h.percentile(0.99) / 1e3,
+                    h.percentile(0.999) / 1e3, h.getMaxNanos() / 1e3));
+        }
+        sb.append(String.format("%nCustomers %d on %s, %d accounts, skew %.2f, %s%n", config.customers,
+                virtualThreads ? "virtual threads" : "platform threads", config.accounts, config.skew,
+                config.arrivalsPerSecond > 0 ? String.format("arrivals %.0f/s", config.arrivalsPerSecond) : "closed loop"));
+        sb.append(String.format("Duration %.2f s, %d visits, %d operations: %.0f ops/s%n",
+                secs, visits.sum(), ops, ops / secs));
+        sb.append(String.format("Visit response p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n",
+                visitResponse.percentile(0.5) / 1e3, visitResponse.percentile(0.99) / 1e3,
+                visitResponse.percentile(0.999) / 1e3));
+        sb.append(String.format("Error rate %.3f%% (login failures after PIN changes: %d)%n",
+                ops == 0 ? 0.0 : 100.0 * errs / ops, authFailures.sum()));
+        long withdrawals = completed[SimOp.WITHDRAW.ordinal()].sum() + completed[SimOp.TRANSFER.ordinal()].sum();
+        sb.append(String.format("Insufficient funds %d (%.2f%% of withdrawals and transfers)%n", insufficientFunds.sum(),
+                withdrawals == 0 ? 0.0 : 100.0 * insufficientFunds.sum() / withdrawals));
+        System.out.print(sb);
+    }
+
+    // sum of balances must equal the opening money plus everything credited minus debited
+    private boolean checkConservation() {
+        final long[] actual = new long[1];
+        final long[] negative = new long[1];
+        engine.getRegistry().forEach(new AccountRegistry.Visitor() {
+            public void visit(AccountRecord record) {
+                int balance = record.getAccount().getBalance();
+                actual[0] += balance;
+                if (balance < 0) negative[0]++;
+            }
+        });
+        long expected = (long) config.accounts * config.openingBalance
+                + deposited.sum() + chequesCleared.sum() - withdrawn.sum();
+        boolean ok = actual[0] == expected && negative[0] == 0 && chequesPending.sum() == 0;
+        System.out.printf("Money conservation: expected Rs%d, found Rs%d, negative balances %d, cheques still pending %d -> %s%n",
+                expected, actual[0], negative[0], chequesPending.sum(), ok ? "OK" : "FAILED");
+        return ok;
+    }
+
+    // virtual thread per customer on Java 21+, a platform thread each otherwise
+    private ExecutorService newCustomerExecutor(int customers) {
+        try {
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtualThreads = true;
+            return (ExecutorService) executor;
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(customers, new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Sim-Customer-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    private void deleteWorkDir() {
+        File[] files = workDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        workDir.delete();
+    }
+
+    private static String user(int i) {
+        return "sim" + i;
+    }
+}
+
+// Watches the Swing event thread: every probeMillis a probe is posted to the event queue and the
+// time until it runs is recorded. A probe still waiting after stallMillis is a stall; it is
+// counted, and the event thread's stack is printed once so the blocking call shows up.
+class EdtWatchdog {
+    private static final int STACK_DEPTH = 12;
+    private static final LatencyHistogram DELAY =
+            Metrics.histogram("atm_ui_edt_stall_seconds", "Time a probe waited for the Swing event thread");
+    private static final Counter STALLS =
+            Metrics.counter("atm_ui_edt_stalls_total", "Swing event thread stalls longer than atm.edtStallMs");
+
+    private final long probeMillis;
+    private final long stallNanos;
+    private final ScheduledExecutorService ticker;
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private final AtomicLong longestNanos = new AtomicLong();
+    private volatile long postedAt;
+    private volatile Thread edt;
+    private volatile boolean reported; // the current stall has been printed
+
+    public EdtWatchdog(long probeMillis, long stallMillis) {
+        this.probeMillis = probeMillis;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Edt-Watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void start() {
+        Metrics.gauge("atm_ui_edt_longest_stall_millis", "Longest wait of a probe for the Swing event thread",
+                new Gauge() {
+                    public long value() {
+                        return getLongestStallMillis();
+                    }
+                });
+        ticker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, probeMillis, probeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    public long getStalls() {
+        return STALLS.get();
+    }
+
+    public long getLongestStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(longestNanos.get());
+    }
+
+    private void tick() {
+        if (queued.compareAndSet(false, true)) {
+            post();
+            return;
+        }
+        long waited = System.nanoTime() - postedAt;
+        if (!reported && waited >= stallNanos) {
+            reported = true;
+            System.out.println("Swing event thread blocked for " + TimeUnit.NANOSECONDS.toMillis(waited)
+                    + " ms" + stackOf(edt));
+        }
+    }
 
-            String oldPinStr = JOptionPane.showInputDialog(frame, "Enter current PIN:");
-            if (oldPinStr == null) return;
+    private void post() {
+        final long at = System.nanoTime();
+        postedAt = at;
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                edt = Thread.currentThread();
+                long waited = System.nanoTime() - at;
+                DELAY.record(waited);
+                long longest;
+                while (waited > (longest = longestNanos.get()) && !longestNanos.compareAndSet(longest, waited)) {
+                    // retry
+                }
+                if (waited >= stallNanos) {
+                    STALLS.increment();
+                    if (reported)
+                        System.out.println("Swing event thread responsive again after "
+                                + TimeUnit.NANOSECONDS.toMillis(waited) + " ms");
+                }
+                reported = false;
+                queued.set(false);
+            }
+        });
+    }
 
-            int oldPin;
-            try {
-                oldPin = Integer.parseInt(oldPinStr.trim());
-            } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(frame, "Invalid PIN format.");
-                return;
+    private static String stackOf(Thread t) {
+        if (t == null) return "";
+        StringBuilder sb = new StringBuilder(":");
+        StackTraceElement[] frames = t.getStackTrace();
+        for (int i = 0; i < frames.length && i < STACK_DEPTH; i++)
+            sb.append("\n\tat ").append(frames[i]);
+        return sb.toString();
+    }
+}
+
+// The ATM window. One frame whose centre swaps between the login screen, the menu and the form
+// of the chosen operation; outcomes go to the result panel below it instead of popups. Engine
+// calls never run on the event thread: request() hands them to the engine executor and keeps
+// the screen busy (inputs disabled, progress running) until the answer is back or times out.
+class AtmScreen {
+
+    // answer to a request, delivered on the event thread
+    interface Done<T> {
+        void done(T value);
+    }
+
+    private static final LatencyHistogram REQUEST_TIME =
+            Metrics.histogram("atm_ui_request_seconds", "Click to screen update for a GUI request");
+    private static final Counter TIMEOUTS =
+            Metrics.counter("atm_ui_timeouts_total", "GUI requests the screen stopped waiting for");
+
+    private static final Color BACKGROUND = new Color(240, 248, 255);
+    private static final Color OK_TEXT = new Color(0, 100, 0);
+    private static final Color ERROR_TEXT = new Color(178, 34, 34);
+    private static final String[] OPTIONS = {
+            "Check Balance", "Deposit", "Withdraw", "Transfer", "Mini Statement",
+            "Statement Search", "Export History", "Change PIN", "Cheque Deposit",
+            "Interest Calculator", "Exit"
+    };
+
+    private final AtmEngine engine;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timer;
+
+    private final JFrame frame = new JFrame("ATM Simulator");
+    private final JLabel header = new JLabel("", SwingConstants.CENTER);
+    private final CardLayout cards = new CardLayout();
+    private final JPanel center = new JPanel(cards);
+    private final JPanel form = new JPanel();
+    private final JTextField usernameField = new JTextField(15);
+    private final JPasswordField pinField = new JPasswordField(15);
+    private final JTextArea result = new JTextArea(6, 30);
+    private final JLabel status = new JLabel("Ready");
+    private final JProgressBar busy = new JProgressBar();
+    private final JPanel exportRow = new JPanel(new BorderLayout(6, 0));
+    private final JProgressBar exportBar = new JProgressBar(0, 100);
+
+    // event thread only
+    private AtmSession session;
+    private Object inFlight; // token of the request the screen is waiting for, null = idle
+    private ExportJob export;
+
+    // must be called on the event thread
+    public AtmScreen(AtmEngine engine, long timeoutMillis) {
+        this.engine = engine;
+        this.timeoutMillis = timeoutMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Ui-Timeout");
+                t.setDaemon(true);
+                return t;
             }
+        });
 
-            if (Objects.equals(userPinMap.get(currentUser), oldPin)) {
+        frame.setSize(460, 600);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setLocationRelativeTo(null);
+        frame.getContentPane().setBackground(BACKGROUND);
+        frame.setLayout(new BorderLayout());
 
-                String newPinStr = JOptionPane.showInputDialog(frame, "Enter new PIN:");
-                if (newPinStr == null) return;
+        header.setFont(new Font("Arial", Font.BOLD, 22));
+        header.setBorder(BorderFactory.createEmptyBorder(16, 0, 8, 0));
+        frame.add(header, BorderLayout.NORTH);
 
-                int newPin;
-                try {
-                    newPin = Integer.parseInt(newPinStr.trim());
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(frame, "Invalid PIN format.");
-                    return;
+        center.setBackground(BACKGROUND);
+        center.add(loginPanel(), "login");
+        center.add(menuPanel(), "menu");
+        center.add(form, "form");
+        frame.add(center, BorderLayout.CENTER);
+        frame.add(footer(), BorderLayout.SOUTH);
+        showLogin();
+    }
+
+    public void show() {
+        frame.setVisible(true);
+    }
+
+    // ---- screens ----
+
+    private JPanel loginPanel() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 40, 10, 40));
+        panel.setBackground(BACKGROUND);
+
+        JButton loginBtn = new JButton("Login");
+        JButton createBtn = new JButton("Create Account");
+        loginBtn.setFont(new Font("SansSerif", Font.BOLD, 14));
+        createBtn.setFont(new Font("SansSerif", Font.BOLD, 14));
+        loginBtn.setBackground(new Color(60, 179, 113));
+        createBtn.setBackground(new Color(100, 149, 237));
+        loginBtn.setForeground(Color.WHITE);
+        createBtn.setForeground(Color.WHITE);
+
+        addRow(panel, new JLabel("Username:"));
+        addRow(panel, usernameField);
+        panel.add(Box.createRigidArea(new Dimension(0, 10)));
+        addRow(panel, new JLabel("PIN:"));
+        addRow(panel, pinField);
+        panel.add(Box.createRigidArea(new Dimension(0, 20)));
+        addRow(panel, loginBtn);
+        panel.add(Box.createRigidArea(new Dimension(0, 10)));
+        addRow(panel, createBtn);
+
+        ActionListener login = new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                login();
+            }
+        };
+        loginBtn.addActionListener(login);
+        pinField.addActionListener(login); // Enter in the PIN field
+        createBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                createAccount();
+            }
+        });
+        return panel;
+    }
+
+    private JPanel menuPanel() {
+        JPanel panel = new JPanel(new GridLayout(6, 2, 6, 6));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 20, 10, 20));
+        panel.setBackground(BACKGROUND);
+        for (final String option : OPTIONS) {
+            JButton btn = new JButton(option);
+            btn.setFont(new Font("SansSerif", Font.PLAIN, 14));
+            btn.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    handleOption(option);
                 }
+            });
+            panel.add(btn);
+        }
+        return panel;
+    }
 
-                userPinMap.put(currentUser, newPin);
-                DatabaseManager.updatePIN(currentUser, newPin); // try to update DB
-                JOptionPane.showMessageDialog(frame, "PIN updated.");
+    // result panel, export progress and the busy indicator
+    private JPanel footer() {
+        result.setEditable(false);
+        result.setLineWrap(true);
+        result.setWrapStyleWord(true);
+        result.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        result.setBorder(BorderFactory.createEmptyBorder(6, 6, 6, 6));
 
-            } else {
-                JOptionPane.showMessageDialog(frame, "Incorrect current PIN.");
+        JButton cancelBtn = new JButton("Cancel");
+        cancelBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (export != null) export.cancel();
+            }
+        });
+        exportBar.setStringPainted(true);
+        exportRow.add(new JLabel("Export"), BorderLayout.WEST);
+        exportRow.add(exportBar, BorderLayout.CENTER);
+        exportRow.add(cancelBtn, BorderLayout.EAST);
+        exportRow.setOpaque(false);
+        exportRow.setVisible(false);
+
+        JPanel statusRow = new JPanel(new BorderLayout(6, 0));
+        statusRow.setOpaque(false);
+        statusRow.add(status, BorderLayout.CENTER);
+        statusRow.add(busy, BorderLayout.EAST);
+
+        JPanel south = new JPanel();
+        south.setLayout(new BoxLayout(south, BoxLayout.Y_AXIS));
+        south.setOpaque(false);
+        south.add(exportRow);
+        south.add(Box.createRigidArea(new Dimension(0, 4)));
+        south.add(statusRow);
+
+        JPanel footer = new JPanel(new BorderLayout(0, 6));
+        footer.setBorder(BorderFactory.createEmptyBorder(8, 12, 8, 12));
+        footer.setBackground(BACKGROUND);
+        footer.add(new JScrollPane(result), BorderLayout.CENTER);
+        footer.add(south, BorderLayout.SOUTH);
+        return footer;
+    }
+
+    private void showLogin() {
+        frame.setTitle("ATM Simulator");
+        header.setText("ATM Login");
+        cards.show(center, "login");
+        usernameField.requestFocusInWindow();
+    }
+
+    private void showMenu() {
+        frame.setTitle("ATM Menu - " + session.getUsername());
+        header.setText("Welcome, " + session.getUsername());
+        cards.show(center, "menu");
+    }
+
+    // replaces the old input dialogs: a label per field (null for none), submit and back
+    // returns the submit button, for forms that relabel it
+    private JButton showForm(String title, String[] labels, JComponent[] fields, String submitText,
+                             ActionListener submit) {
+        form.removeAll();
+        form.setLayout(new BoxLayout(form, BoxLayout.Y_AXIS));
+        form.setBorder(BorderFactory.createEmptyBorder(10, 40, 10, 40));
+        form.setBackground(BACKGROUND);
+        for (int i = 0; i < fields.length; i++) {
+            if (labels[i] != null) addRow(form, new JLabel(labels[i]));
+            addRow(form, fields[i]);
+            if (fields[i] instanceof JTextField) ((JTextField) fields[i]).addActionListener(submit);
+            form.add(Box.createRigidArea(new Dimension(0, 10)));
+        }
+
+        JButton submitBtn = new JButton(submitText);
+        submitBtn.setFont(new Font("SansSerif", Font.BOLD, 14));
+        submitBtn.addActionListener(submit);
+        JButton backBtn = new JButton("Back");
+        backBtn.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        backBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showMenu();
             }
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        buttons.setOpaque(false);
+        buttons.add(submitBtn);
+        buttons.add(Box.createRigidArea(new Dimension(10, 0)));
+        buttons.add(backBtn);
+        addRow(form, buttons);
+
+        header.setText(title);
+        cards.show(center, "form");
+        form.revalidate();
+        form.repaint();
+        if (fields.length > 0) fields[0].requestFocusInWindow();
+        return submitBtn;
+    }
+
+    // ---- actions ----
+
+    private void login() {
+        final String username = usernameField.getText().trim();
+        if (username.isEmpty()) {
+            error("Please enter username.");
             return;
         }
+        Integer pin = number(pinField, false, "Invalid PIN format.");
+        if (pin == null) return;
 
-        // CHEQUE DEPOSIT (multithreading)
-        if ("Cheque Deposit".equals(option)) {
+        request("Login", engine.loginAsync(username, pin), new Done<AtmSession>() {
+            public void done(AtmSession s) {
+                pinField.setText("");
+                session = s;
+                showMenu();
+                ok("Welcome, " + s.getUsername() + ".");
+            }
+        });
+    }
 
-            String chequeStr = JOptionPane.showInputDialog(frame, "Enter cheque amount:");
-            if (chequeStr == null || chequeStr.trim().isEmpty()) return;
+    private void createAccount() {
+        final String username = usernameField.getText().trim();
+        if (username.isEmpty()) {
+            error("Invalid username.");
+            return;
+        }
+        final Integer pin = number(pinField, false, "Set your 4-digit PIN in the PIN field.");
+        if (pin == null) return;
 
-            int cheque;
-            try {
-                cheque = Integer.parseInt(chequeStr.trim());
-                if (cheque <= 0)
-                    throw new NumberFormatException();
-            } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(frame, "Enter a valid positive integer amount.");
-                return;
+        request("Account creation", engine.submit(new AtmEngine.Call<Void>() {
+            public Void call() throws AtmException {
+                engine.createAccount(username, pin);
+                return null;
             }
+        }), new Done<Void>() {
+            public void done(Void nothing) {
+                pinField.setText("");
+                ok("Account created successfully for " + username + ". You can log in now.");
+            }
+        });
+    }
 
-            JOptionPane.showMessageDialog(frame,
-                    "Cheque received. Processing (this runs in background)...");
+    private void handleOption(String option) {
+        final AtmSession s = session;
 
-            Thread chequeThread = new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        System.out.println("[" + Thread.currentThread().getName() + "] Cheque processing started for " + currentUser);
-                        Thread.sleep(5000); // simulate processing
+        // CHECK BALANCE
+        if ("Check Balance".equals(option)) {
+            request("Balance check", engine.balanceAsync(s), new Done<Integer>() {
+                public void done(Integer balance) {
+                    String msg = "Your balance is Rs" + balance;
+                    if (balance < 500)
+                        msg += "\nAlert: Balance below Rs500!";
+                    ok(msg);
+                }
+            });
+            return;
+        }
 
-                        account.deposit(cheque); // deposit after clear
-                        DatabaseManager.insertTransaction(currentUser, "Cheque cleared: Rs" + cheque);
+        // DEPOSIT
+        if ("Deposit".equals(option)) {
+            final JTextField amountField = new JTextField(10);
+            final String requestId = newRequestId();
+            showForm("Deposit", new String[]{"Enter amount to deposit:"}, new JComponent[]{amountField},
+                    "Deposit", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            final Integer amount = number(amountField, true, "Enter a valid positive integer amount.");
+                            if (amount == null) return;
+                            request("Deposit", engine.depositAsync(s, amount, requestId), new Done<Integer>() {
+                                public void done(Integer balance) {
+                                    showMenu();
+                                    ok("Rs" + amount + " deposited.\nYour balance is Rs" + balance);
+                                }
+                            });
+                        }
+                    });
+            return;
+        }
 
-                        SwingUtilities.invokeLater(new Runnable() {
-                            public void run() {
-                                JOptionPane.showMessageDialog(frame,
-                                        "Cheque of Rs" + cheque +
-                                                " cleared and deposited to your account.");
+        // WITHDRAW
+        if ("Withdraw".equals(option)) {
+            final JTextField amountField = new JTextField(10);
+            final String requestId = newRequestId();
+            showForm("Withdraw", new String[]{"Enter amount to withdraw:"}, new JComponent[]{amountField},
+                    "Withdraw", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            final Integer amount = number(amountField, true, "Enter a valid positive integer amount.");
+                            if (amount == null) return;
+                            request("Withdrawal", engine.withdrawAsync(s, amount, requestId), new Done<Integer>() {
+                                public void done(Integer balance) {
+                                    showMenu();
+                                    ok("Rs" + amount + " withdrawn.\nYour balance is Rs" + balance);
+                                }
+                            });
+                        }
+                    });
+            return;
+        }
+
+        // TRANSFER
+        if ("Transfer".equals(option)) {
+            final JTextField toField = new JTextField(15);
+            final JTextField amountField = new JTextField(10);
+            final String requestId = newRequestId();
+            showForm("Transfer", new String[]{"Transfer to (username):", "Enter amount to transfer:"},
+                    new JComponent[]{toField, amountField}, "Transfer", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            final String toUser = toField.getText().trim();
+                            if (toUser.isEmpty()) {
+                                error("Enter the username to transfer to.");
+                                return;
                             }
-                        });
+                            final Integer amount = number(amountField, true, "Enter a valid positive integer amount.");
+                            if (amount == null) return;
+                            request("Transfer", engine.transferAsync(s, toUser, amount, requestId), new Done<Integer>() {
+                                public void done(Integer balance) {
+                                    showMenu();
+                                    ok("Rs" + amount + " transferred to " + toUser + ".\nYour balance is Rs" + balance);
+                                }
+                            });
+                        }
+                    });
+            return;
+        }
+
+        // MINI STATEMENT
+        if ("Mini Statement".equals(option)) {
+            request("Mini statement", engine.miniStatementAsync(s, 5), new Done<List<String>>() {
+                public void done(List<String> history) {
+                    StringBuilder sb = new StringBuilder("Last 5 Transactions:\n");
+                    for (String entry : history)
+                        sb.append(entry).append("\n");
+                    ok(history.isEmpty() ? "No transactions yet." : sb.toString());
+                }
+            });
+            return;
+        }
+
+        // STATEMENT SEARCH (paged query over the transaction index)
+        if ("Statement Search".equals(option)) {
+            statementSearch(s);
+            return;
+        }
+
+        // EXPORT HISTORY (streams from the transaction log on a background thread)
+        if ("Export History".equals(option)) {
+            final JComboBox<String> formatBox = new JComboBox<String>(new String[]{"CSV", "JSON Lines", "Binary"});
+            final JCheckBox gzipBox = new JCheckBox("Compress (gzip)");
+            gzipBox.setOpaque(false);
+            showForm("Export History", new String[]{"Export format:", null}, new JComponent[]{formatBox, gzipBox},
+                    "Export", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            if (export != null) {
+                                error("An export is already running.");
+                                return;
+                            }
+                            exportHistory(s, ExportFormat.values()[formatBox.getSelectedIndex()], gzipBox.isSelected());
+                        }
+                    });
+            return;
+        }
 
-                        System.out.println("[" + Thread.currentThread().getName() + "] Cheque processing finished for " + currentUser);
+        // CHANGE PIN
+        if ("Change PIN".equals(option)) {
+            final JPasswordField oldPinField = new JPasswordField(10);
+            final JPasswordField newPinField = new JPasswordField(10);
+            showForm("Change PIN", new String[]{"Enter current PIN:", "Enter new PIN:"},
+                    new JComponent[]{oldPinField, newPinField}, "Change PIN", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            Integer oldPin = number(oldPinField, false, "Invalid PIN format.");
+                            if (oldPin == null) return;
+                            Integer newPin = number(newPinField, false, "Invalid PIN format.");
+                            if (newPin == null) return;
+                            request("PIN change", engine.changePinAsync(s, oldPin, newPin), new Done<Void>() {
+                                public void done(Void nothing) {
+                                    showMenu();
+                                    ok("PIN updated.");
+                                }
+                            });
+                        }
+                    });
+            return;
+        }
+
+        // CHEQUE DEPOSIT (cleared in the background, the result panel is updated when it is done)
+        if ("Cheque Deposit".equals(option)) {
+            final JTextField amountField = new JTextField(10);
+            final String requestId = newRequestId();
+            showForm("Cheque Deposit", new String[]{"Enter cheque amount:"}, new JComponent[]{amountField},
+                    "Deposit Cheque", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            final Integer amount = number(amountField, true, "Enter a valid positive integer amount.");
+                            if (amount == null) return;
+                            depositCheque(s, amount, requestId);
+                        }
+                    });
+            return;
+        }
+
+        // INTEREST CALCULATOR (projection at the rate the end-of-day run credits daily)
+        if ("Interest Calculator".equals(option)) {
+            final JTextField yearsField = new JTextField(10);
+            showForm("Interest Calculator", new String[]{"Enter number of years for interest:"},
+                    new JComponent[]{yearsField}, "Calculate", new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            final Integer years = number(yearsField, true, "Enter a valid positive integer for years.");
+                            if (years == null) return;
+                            if (years > 100) {
+                                error("Enter at most 100 years.");
+                                return;
+                            }
+                            final InterestRate rate = engine.getInterestRate();
+                            request("Interest calculation", engine.submit(new AtmEngine.Call<long[]>() {
+                                public long[] call() throws AtmException {
+                                    int balance = engine.balance(s);
+                                    try {
+                                        return new long[]{balance, rate.project(balance, 0, years * InterestRate.DAYS_PER_YEAR)};
+                                    } catch (ArithmeticException tooLarge) {
+                                        throw new AtmException("The estimated balance is beyond what one account can hold.");
+                                    }
+                                }
+                            }), new Done<long[]>() {
+                                public void done(long[] v) {
+                                    ok(String.format(
+                                            "Principal: Rs%d\nRate: %s%% per annum, compounded daily\nYears: %d\nInterest: Rs%d\nEstimated balance: Rs%d",
+                                            v[0], rate.getAnnualPercent().toPlainString(), years, v[1] - v[0], v[1]));
+                                }
+                            });
+                        }
+                    });
+            return;
+        }
+
+        // EXIT
+        if ("Exit".equals(option)) {
+            engine.logout(s);
+            session = null;
+            showLogin();
+            ok("Thank you for using ATM Simulator. bye!");
+        }
+    }
 
-                    } catch (InterruptedException ex) {
-                        Thread.currentThread().interrupt();
-                        System.out.println("[" + Thread.currentThread().getName() + "] Cheque processing interrupted for " + currentUser);
+    private void depositCheque(final AtmSession s, final int amount, final String requestId) {
+        request("Cheque deposit", engine.submit(new AtmEngine.Call<Cheque>() {
+            public Cheque call() throws AtmException {
+                return engine.depositCheque(s, amount, requestId);
+            }
+        }), new Done<Cheque>() {
+            public void done(Cheque ticket) {
+                showMenu();
+                ok("Cheque #" + ticket.getId() + " received. Processing (this runs in background)...");
+                ticket.result().whenComplete(new BiConsumer<Integer, Throwable>() {
+                    public void accept(Integer balance, final Throwable failure) {
                         SwingUtilities.invokeLater(new Runnable() {
                             public void run() {
-                                JOptionPane.showMessageDialog(frame, "Cheque processing interrupted.");
+                                if (session != s) return; // logged out meanwhile
+                                if (failure == null)
+                                    ok("Cheque of Rs" + amount + " cleared and deposited to your account.");
+                                else
+                                    error(rootMessage(failure));
                             }
                         });
                     }
-                }
-            }, "Cheque-Clearing-Thread-" + currentUser);
+                });
+            }
+        });
+    }
 
-            chequeThread.start();
-            return;
+    // The form's button fetches the next page while the criteria are unchanged; editing any of
+    // them starts a new search.
+    private void statementSearch(final AtmSession s) {
+        final String[] typeNames = {"All", "Deposits", "Withdrawals", "Cheques", "Transfers", "Interest"};
+        final JComboBox<String> typeBox = new JComboBox<String>(typeNames);
+        final JTextField minField = new JTextField(10);
+        final JTextField daysField = new JTextField("30", 10);
+        final String[] cursor = new String[1];
+        final TransactionQuery[] current = new TransactionQuery[1];
+        final JButton[] searchBtn = new JButton[1];
+        final Runnable reset = new Runnable() {
+            public void run() {
+                current[0] = null;
+                cursor[0] = null;
+                if (searchBtn[0] != null) searchBtn[0].setText("Search");
+            }
+        };
+        searchBtn[0] = showForm("Statement Search",
+                new String[]{"Type:", "Minimum amount (optional):", "Last N days:"},
+                new JComponent[]{typeBox, minField, daysField}, "Search", new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        if (current[0] == null) {
+                            Integer days = number(daysField, true, "Enter the number of days as a positive integer.");
+                            if (days == null) return;
+                            Integer min = minField.getText().trim().isEmpty() ? Integer.valueOf(0)
+                                    : number(minField, false, "Enter the minimum amount as a whole number.");
+                            if (min == null) return;
+                            long now = System.currentTimeMillis();
+                            current[0] = new TransactionQuery(now - TimeUnit.DAYS.toMillis(days), Long.MAX_VALUE,
+                                    typesFor(typeBox.getSelectedIndex()), Math.max(0, min), Long.MAX_VALUE, true);
+                        }
+                        final boolean firstPage = cursor[0] == null;
+                        request("Statement search", engine.queryTransactionsAsync(s, current[0], cursor[0], 10),
+                                new Done<TransactionPage>() {
+                                    public void done(TransactionPage page) {
+                                        StringBuilder sb = new StringBuilder();
+                                        for (TransactionRow row : page.getRows())
+                                            sb.append(row).append("\n");
+                                        if (page.getRows().isEmpty())
+                                            sb.append(firstPage ? "No matching transactions." : "No more transactions.");
+                                        else if (page.hasMore())
+                                            sb.append("... press Next Page for more");
+                                        ok(sb.toString());
+                                        cursor[0] = page.getNextCursor();
+                                        if (page.hasMore()) {
+                                            searchBtn[0].setText("Next Page");
+                                        } else {
+                                            reset.run();
+                                        }
+                                    }
+                                });
+                    }
+                });
+        typeBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                reset.run();
+            }
+        });
+        javax.swing.event.DocumentListener edited = new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                reset.run();
+            }
+
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                reset.run();
+            }
+
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                reset.run();
+            }
+        };
+        minField.getDocument().addDocumentListener(edited);
+        daysField.getDocument().addDocumentListener(edited);
+    }
+
+    // entry types behind the statement search type choice (0 = all)
+    private static Set<TxType> typesFor(int choice) {
+        switch (choice) {
+            case 1: return EnumSet.of(TxType.DEPOSIT);
+            case 2: return EnumSet.of(TxType.WITHDRAWAL);
+            case 3: return EnumSet.of(TxType.CHEQUE);
+            case 4: return EnumSet.of(TxType.TRANSFER, TxType.TRANSFER_IN);
+            case 5: return EnumSet.of(TxType.INTEREST);
+            default: return null;
         }
+    }
 
-        // INTEREST CALCULATOR
-        if ("Interest Calculator".equals(option)) {
-            String yearsStr = JOptionPane.showInputDialog(frame, "Enter number of years for interest:");
+    private void exportHistory(final AtmSession s, final ExportFormat format, final boolean gzip) {
+        final String fileName = "transaction_history_" + s.getUsername() + format.extension + (gzip ? ".gz" : "");
+        final ExportListener listener = new ExportListener() {
+            public void onProgress(final long recordsWritten, final double fraction) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        exportBar.setValue((int) (fraction * 100));
+                        exportBar.setString(recordsWritten + " records");
+                    }
+                });
+            }
 
-            if (yearsStr == null || yearsStr.trim().isEmpty()) return;
+            public void onFinished(final ExportJob finished) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        exportFinished(finished, fileName);
+                    }
+                });
+            }
+        };
+        request("Export", engine.submit(new AtmEngine.Call<ExportJob>() {
+            public ExportJob call() throws AtmException {
+                return engine.exportHistory(s, new File(fileName), format, gzip, 0, Long.MAX_VALUE, listener);
+            }
+        }), new Done<ExportJob>() {
+            public void done(ExportJob job) {
+                showMenu();
+                if (job.result().isDone()) return; // small export, already reported
+                export = job;
+                exportBar.setValue(0);
+                exportBar.setString("");
+                exportRow.setVisible(true);
+                ok("Exporting to " + fileName + "...");
+            }
+        });
+    }
 
-            try {
-                int years = Integer.parseInt(yearsStr.trim());
-                if (years <= 0)
-                    throw new NumberFormatException();
+    private void exportFinished(ExportJob job, String fileName) {
+        if (export == job) {
+            export = null;
+            exportRow.setVisible(false);
+        }
+        try {
+            long n = job.result().join();
+            ok("Exported " + n + " records to " + fileName);
+        } catch (CancellationException | CompletionException ex) {
+            if (job.isCancelled())
+                ok("Export cancelled.");
+            else
+                error("Error exporting file: " + rootMessage(ex));
+        }
+    }
 
-                double rate = 4.0; // fixed rate example
-                double principal = account.getBalance();
-                double simpleInterest = principal * rate * years / 100.0;
+    // ---- async bridge ----
 
-                String out = String.format(
-                        "Principal: Rs%.2f\nRate: %.2f%% per annum\nYears: %d\nInterest: Rs%.2f\nEstimated balance: Rs%.2f",
-                        principal, rate, years, simpleInterest, principal + simpleInterest
-                );
+    // Delivers the answer to done on the event thread. The screen is busy until then or until
+    // timeoutMillis has passed; a late answer is still reported, as the operation may have gone
+    // through, but no longer changes the screen.
+    private <T> void request(final String what, CompletableFuture<T> call, final Done<T> done) {
+        final long start = System.nanoTime();
+        final Object token = new Object();
+        setBusy(token, what);
 
-                JOptionPane.showMessageDialog(frame, out);
+        final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+            public void run() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (inFlight != token) return; // answered meanwhile
+                        TIMEOUTS.increment();
+                        setBusy(null, null);
+                        error(what + " is taking longer than " + timeoutMillis / 1000.0
+                                + " s. It may still complete, please check before trying again.");
+                    }
+                });
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
 
-            } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(frame,
-                        "Enter a valid positive integer for years.");
+        call.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(final T value, final Throwable failure) {
+                timeout.cancel(false);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        REQUEST_TIME.recordSince(start);
+                        if (inFlight != token) {
+                            if (failure != null)
+                                error(what + " failed: " + rootMessage(failure));
+                            else
+                                ok(what + " went through after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                                        + " ms.");
+                            return;
+                        }
+                        setBusy(null, null);
+                        if (failure != null)
+                            error(rootMessage(failure));
+                        else
+                            done.done(value);
+                    }
+                });
             }
-            return;
+        });
+    }
+
+    private void setBusy(Object token, String what) {
+        inFlight = token;
+        boolean idle = token == null;
+        setEnabled(center, idle);
+        busy.setIndeterminate(!idle);
+        status.setText(idle ? "Ready" : what + "...");
+        frame.setCursor(idle ? Cursor.getDefaultCursor() : Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+    }
+
+    private static void setEnabled(Container c, boolean enabled) {
+        for (Component child : c.getComponents()) {
+            child.setEnabled(enabled);
+            if (child instanceof Container) setEnabled((Container) child, enabled);
         }
+    }
 
-        // EXIT
-        if ("Exit".equals(option)) {
-            frame.dispose();
-            JOptionPane.showMessageDialog(null,
-                    "Thank you for using ATM Simulator. bye!");
-            return;
+    // ---- helpers ----
+
+    private void ok(String message) {
+        result.setForeground(OK_TEXT);
+        result.setText(message);
+        result.setCaretPosition(0);
+    }
+
+    private void error(String message) {
+        result.setForeground(ERROR_TEXT);
+        result.setText(message);
+        result.setCaretPosition(0);
+    }
+
+    // the field as a number, or null after telling the user what is wrong with it
+    private Integer number(JTextField field, boolean positive, String message) {
+        String text = field instanceof JPasswordField
+                ? new String(((JPasswordField) field).getPassword())
+                : field.getText();
+        try {
+            int n = Integer.parseInt(text.trim());
+            if (positive && n <= 0)
+                throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            error(message);
+            field.requestFocusInWindow();
+            return null;
+        }
+    }
+
+    // left aligned and no taller than it wants to be, so BoxLayout does not stretch fields or buttons
+    private static void addRow(JPanel panel, JComponent c) {
+        c.setAlignmentX(Component.LEFT_ALIGNMENT);
+        int width = c instanceof AbstractButton ? c.getPreferredSize().width : Integer.MAX_VALUE;
+        c.setMaximumSize(new Dimension(width, c.getPreferredSize().height));
+        panel.add(c);
+    }
+
+    // one per form: resubmitting a form after a timeout must not run the operation twice
+    private static String newRequestId() {
+        return UUID.randomUUID().toString();
+    }
+
+    // unwraps CompletionException so the user sees the engine's message
+    private static String rootMessage(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+            t = t.getCause();
+        return t.getMessage() != null ? t.getMessage() : t.toString();
+    }
+}
+
+public class AtmSimulatorGui {
+
+    // local persistence settings, override with -Datm.dataDir=... -Datm.fsync=always|interval|never
+    private static final String DATA_DIR = System.getProperty("atm.dataDir", "atm_data");
+    private static final String FSYNC = System.getProperty("atm.fsync", "interval");
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("atm.fsyncIntervalMs", 10);
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("atm.snapshotIntervalMs", 60_000);
+    // log segments covered by a snapshot are deleted after this many days; 0 keeps the full history
+    private static final long LOG_RETENTION_DAYS = Long.getLong("atm.logRetentionDays", 0);
+    // metrics are always on: JMX bean atm:type=Metrics plus a Prometheus text file in the data dir
+    private static final long METRICS_INTERVAL_MS = Long.getLong("atm.metricsIntervalMs", 10_000);
+    private static final long MAX_RESIDENT_ACCOUNTS = Long.getLong("atm.maxResidentAccounts", 0); // 0 = keep all
+    private static final boolean PRELOAD_FROM_DB = Boolean.getBoolean("atm.preloadFromDb");
+    // the GUI stops waiting for an engine call after atm.uiTimeoutMs; the event thread is probed
+    // every atm.edtProbeMs and a probe waiting longer than atm.edtStallMs counts as a stall
+    private static final long UI_TIMEOUT_MS = Long.getLong("atm.uiTimeoutMs", 10_000);
+    private static final long EDT_PROBE_MS = Long.getLong("atm.edtProbeMs", 100);
+    private static final long EDT_STALL_MS = Long.getLong("atm.edtStallMs", 200);
+    // annual interest in percent, credited daily by the end-of-day run; -Datm.endOfDayAt=HH:mm runs it every day
+    private static final String INTEREST_RATE = System.getProperty("atm.interestRate", "4.0");
+    private static final String END_OF_DAY_AT = System.getProperty("atm.endOfDayAt");
+    // how long and how many client request IDs are remembered, so a retried request is not run twice
+    private static final long REQUEST_ID_WINDOW_MS = Long.getLong("atm.requestIdWindowMs", AtmEngine.DEFAULT_REQUEST_ID_WINDOW_MS);
+    private static final int REQUEST_ID_MAX_ENTRIES = Integer.getInteger("atm.requestIdMaxEntries", AtmEngine.DEFAULT_REQUEST_IDS);
+
+    // all account state and business rules live in the engine, the GUI is one client of it
+    private static AtmEngine engine;
+
+    public static void main(String[] args) {
+        if (Arrays.asList(args).contains("--simulate")) {
+            System.exit(simulate(args) ? 0 : 1);
+        }
+        if (Arrays.asList(args).contains("--no-db")) DatabaseManager.setEnabled(false);
+
+        engine = createEngine();
+        engine.setPreloadFromDb(PRELOAD_FROM_DB);
+        try {
+            engine.setInterestRate(InterestRate.ofPercent(INTEREST_RATE));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bad atm.interestRate (" + e.getMessage() + "), using " + engine.getInterestRate());
+        }
+        try {
+            engine.setRequestIdLimits(REQUEST_ID_MAX_ENTRIES, REQUEST_ID_WINDOW_MS);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bad atm.requestIdWindowMs / atm.requestIdMaxEntries, using the defaults");
+        }
+        engine.start();
+        Metrics.startReporting(new File(engine.getDataDir(), "metrics.prom"), METRICS_INTERVAL_MS);
+
+        // one-off end-of-day run (e.g. from cron while the ATM is closed), then exit
+        for (String arg : args) {
+            if (arg.equals("--end-of-day") || arg.startsWith("--end-of-day=")) {
+                System.exit(endOfDay(arg) ? 0 : 1);
+            }
+        }
+        if (END_OF_DAY_AT != null) {
+            try {
+                engine.scheduleEndOfDay(LocalTime.parse(END_OF_DAY_AT));
+            } catch (java.time.format.DateTimeParseException e) {
+                System.out.println("Bad atm.endOfDayAt '" + END_OF_DAY_AT + "', expected HH:mm");
+            }
+        }
+
+        // demo user (only the first time, after that it comes back from the local log)
+        if (!engine.accountExists("Priyanshu")) {
+            try {
+                engine.createAccount("Priyanshu", 1234, 10000);
+            } catch (AtmException ignored) {
+                // created concurrently - fine
+            }
+        }
+
+        // snapshot + close the local log and drain the transaction journal on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                engine.shutdown();
+                DatabaseManager.shutdown();
+            }
+        }, "Atm-Shutdown"));
+
+        // start GUI on EDT
+        new EdtWatchdog(EDT_PROBE_MS, EDT_STALL_MS).start();
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                new AtmScreen(engine, UI_TIMEOUT_MS).show();
+            }
+        });
+    }
+
+    // headless load test, see SimulationConfig for the options
+    private static boolean simulate(String[] args) {
+        SimulationConfig config;
+        try {
+            config = SimulationConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(SimulationConfig.usage());
+            return false;
+        }
+        try {
+            return new LoadSimulator(config).run();
+        } catch (IOException e) {
+            System.out.println("Simulation failed: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // --end-of-day[=YYYY-MM-DD], today by default
+    private static boolean endOfDay(String arg) {
+        boolean ok = false;
+        try {
+            int eq = arg.indexOf('=');
+            LocalDate day = eq < 0 ? LocalDate.now() : LocalDate.parse(arg.substring(eq + 1));
+            System.out.println("End-of-day interest for " + day + " at " + engine.getInterestRate());
+            System.out.println(engine.runEndOfDay(day));
+            ok = true;
+        } catch (java.time.format.DateTimeParseException e) {
+            System.out.println("Bad date in " + arg + ", expected --end-of-day=YYYY-MM-DD");
+        } catch (AtmException e) {
+            System.out.println(e.getMessage());
+        }
+        engine.shutdown();
+        DatabaseManager.shutdown();
+        return ok;
+    }
+
+    // engine backed by the local transaction log, or memory only if the data dir is unusable
+    private static AtmEngine createEngine() {
+        File dataDir = new File(DATA_DIR);
+        LocalStore store = null;
+        try {
+            FsyncPolicy fsync = FsyncPolicy.valueOf(FSYNC.toUpperCase());
+            store = new LocalStore(dataDir, fsync, FSYNC_INTERVAL_MS, SNAPSHOT_INTERVAL_MS);
+            store.setLogRetentionMillis(TimeUnit.DAYS.toMillis(Math.max(0, LOG_RETENTION_DAYS)));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Local store unavailable (" + e.getMessage() + "), balances kept in memory only.");
         }
+        if (!dataDir.isDirectory()) dataDir = new File(".");
+        // with MySQL as the backing store, customers are loaded on first use and idle ones dropped
+        AccountRegistry registry = MAX_RESIDENT_ACCOUNTS > 0 && DatabaseManager.isEnabled()
+                ? new AccountRegistry(DatabaseManager.accountLoader(), MAX_RESIDENT_ACCOUNTS)
+                : new AccountRegistry();
+        return new AtmEngine(AtmEngine.newDefaultExecutor(), registry, dataDir, store);
     }
 }
@@ -0,0 +1,70 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded read-through registry under Zipfian access: lookup cost and hit rate for a resident
+// set much smaller than the customer base. Misses are served by a loader that builds the
+// record in memory, so the numbers are cache overhead only; hit rates print per iteration.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountCacheBenchmark {
+
+    private static final int CUSTOMERS = 1_000_000;
+    private static final int KEYS = 1 << 20;
+
+    @Param({"10000", "100000"})
+    public int maxResident;
+
+    @Param({"0.8", "0.99"})
+    public double skew;
+
+    private AccountRegistry registry;
+    private String[] names;
+    private int[] keys;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private long hitsAtStart, missesAtStart;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Credential credential = Credential.create(1000, 1000);
+        registry = new AccountRegistry(new AccountLoader() {
+            public AccountRecord load(String username) {
+                return new AccountRecord(username, credential, new SavingsAccount(1000));
+            }
+        }, maxResident);
+        names = new String[CUSTOMERS];
+        for (int i = 0; i < CUSTOMERS; i++)
+            names[i] = "user" + i;
+        keys = KeyDistribution.zipfian(CUSTOMERS, skew, KEYS, 42);
+    }
+
+    @Setup(Level.Iteration)
+    public void markCounts() {
+        hitsAtStart = registry.getHitCount();
+        missesAtStart = registry.getMissCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportHitRate() {
+        long h = registry.getHitCount() - hitsAtStart, m = registry.getMissCount() - missesAtStart;
+        System.out.println(String.format("hit rate this iteration: %.1f%% %s", 100.0 * h / Math.max(1, h + m), registry));
+    }
+
+    @Benchmark
+    public AccountRecord lookup() throws AtmException {
+        return registry.find(names[keys[cursor.getAndIncrement() & (KEYS - 1)]]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public AccountRecord lookupContended() throws AtmException {
+        return registry.find(names[keys[cursor.getAndIncrement() & (KEYS - 1)]]);
+    }
+}
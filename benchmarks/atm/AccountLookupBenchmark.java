@@ -0,0 +1,75 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Many accounts behind the engine: lookup + balance / deposit with uniform or Zipfian skew.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountLookupBenchmark {
+
+    private static final int KEYS_PER_THREAD = 1 << 16;
+
+    @Param({"10000", "1000000"})
+    public int accounts;
+
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    AtmEngine engine;
+    AtmSession[] sessions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws AtmException {
+        new InMemoryJdbc().install();
+        engine = new AtmEngine();
+        sessions = new AtmSession[accounts];
+        Credential pin = Credential.create(1000); // hashed once, shared by every account
+        for (int i = 0; i < accounts; i++) {
+            String user = "user" + i;
+            engine.restoreAccount(user, pin, new SavingsAccount(1_000_000));
+            sessions[i] = engine.login(user, 1000);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+        DatabaseManager.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        int[] keys;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(AccountLookupBenchmark bench) {
+            long seed = Thread.currentThread().getId();
+            keys = "zipfian".equals(bench.distribution)
+                    ? KeyDistribution.zipfian(bench.accounts, 0.99, KEYS_PER_THREAD, seed)
+                    : KeyDistribution.uniform(bench.accounts, KEYS_PER_THREAD, seed);
+        }
+
+        int nextKey() {
+            int k = keys[next];
+            next = (next + 1) & (KEYS_PER_THREAD - 1);
+            return k;
+        }
+    }
+
+    @Benchmark
+    public int balance(Keys keys) throws AtmException {
+        return engine.balance(sessions[keys.nextKey()]);
+    }
+
+    @Benchmark
+    public int deposit(Keys keys) throws AtmException {
+        return engine.deposit(sessions[keys.nextKey()], 1);
+    }
+}
@@ -0,0 +1,68 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// PIN hashing cost per PBKDF2 iteration count and login cost with and without the verified
+// cache, for sizing -Datm.pinIterations against peak login storms.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialBenchmark {
+
+    @Param({"1000", "20000", "100000"})
+    public int iterations;
+
+    private Credential credential;
+    private AtmEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        credential = Credential.create(1234, iterations);
+        credential.verifySlow(1234); // primes the verified cache
+        engine = new AtmEngine();
+        engine.setPinIterations(iterations);
+        engine.restoreAccount("bench", 1234, new SavingsAccount(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    // new salt + hash, what account creation and PIN change pay
+    @Benchmark
+    public Credential hashPin() {
+        return Credential.create(1234, iterations);
+    }
+
+    // first login after start or after the cache entry expired
+    @Benchmark
+    public boolean coldVerify() {
+        return credential.verifySlow(1234);
+    }
+
+    @Benchmark
+    public boolean cachedVerify() {
+        return credential.verifyCached(1234);
+    }
+
+    // full engine login path (limiter + cache hit + session)
+    @Benchmark
+    public AtmSession cachedLogin() throws AtmException {
+        return engine.login("bench", 1234);
+    }
+
+    // cold logins per second the box sustains with every core hashing
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean coldLoginStorm() {
+        return credential.verifySlow(1234);
+    }
+}
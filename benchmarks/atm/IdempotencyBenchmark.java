@@ -0,0 +1,68 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Cost of request IDs on the deposit path, 4 threads on their own accounts: no ID, a new ID
+// per deposit (the cache is full, so every insert also evicts the oldest) and a replay of an ID
+// that was already answered. Compare with deposit (no ID) for the per-operation overhead. The
+// remembered IDs are long-lived objects, so the new-ID case is partly young GC copying them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "-Xms1g")
+public class IdempotencyBenchmark {
+
+    @Param({"100000"})
+    public int maxRequestIds;
+
+    private AtmEngine engine;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws AtmException {
+        DatabaseManager.setEnabled(false);
+        engine = new AtmEngine(AtmEngine.newDefaultExecutor());
+        engine.setPinIterations(1);
+        engine.setRequestIdLimits(maxRequestIds, AtmEngine.DEFAULT_REQUEST_ID_WINDOW_MS);
+        for (int i = 0; i < 64; i++)
+            engine.createAccount("user" + i, 1000, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        AtmSession session;
+        long next;
+
+        @Setup(Level.Trial)
+        public void setUp(IdempotencyBenchmark bench) throws AtmException {
+            session = bench.engine.login("user" + bench.threads.getAndIncrement(), 1000);
+            bench.engine.deposit(session, 1, "replayed");
+        }
+    }
+
+    @Benchmark
+    public int deposit(Client c) throws AtmException {
+        return engine.deposit(c.session, 1);
+    }
+
+    @Benchmark
+    public int depositNewRequestId(Client c) throws AtmException {
+        return engine.deposit(c.session, 1, Long.toString(c.next++));
+    }
+
+    @Benchmark
+    public int depositReplay(Client c) throws AtmException {
+        return engine.deposit(c.session, 1, "replayed");
+    }
+}
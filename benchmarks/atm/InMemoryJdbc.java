@@ -0,0 +1,123 @@
+package atm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-memory JDBC stand-in for benchmarks and tests: connections and prepared statements that accept every
+// call and only count the rows written, so the DB logging path can be measured without MySQL.
+public final class InMemoryJdbc implements ConnectionFactory {
+
+    final LongAdder connections = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder batches = new LongAdder();
+
+    // optional simulated round trip per execute, in nanoseconds
+    private final long roundTripNanos;
+    // what isValid answers, flip to simulate a dropped server
+    private volatile boolean valid = true;
+
+    public InMemoryJdbc() {
+        this(0);
+    }
+
+    public InMemoryJdbc(long roundTripNanos) {
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    // points DatabaseManager at a fresh pool over this stand-in
+    public InMemoryJdbc install() {
+        DatabaseManager.usePool(new ConnectionPool(this, 8, 60_000, 5_000, 16));
+        return this;
+    }
+
+    public long rowCount() {
+        return rows.sum();
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    @Override
+    public Connection create() throws SQLException {
+        connections.increment();
+        return (Connection) Proxy.newProxyInstance(InMemoryJdbc.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler());
+    }
+
+    private void roundTrip() {
+        if (roundTripNanos <= 0) return;
+        long end = System.nanoTime() + roundTripNanos;
+        while (System.nanoTime() < end) {
+            // busy wait, keeps the simulated latency precise at microsecond scale
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return Boolean.FALSE;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    private final class ConnectionHandler implements InvocationHandler {
+        private boolean autoCommit = true;
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+                case "prepareStatement":
+                    return Proxy.newProxyInstance(InMemoryJdbc.class.getClassLoader(),
+                            new Class<?>[]{PreparedStatement.class}, new StatementHandler());
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "isValid":
+                    return valid;
+                case "commit":
+                    roundTrip();
+                    return null;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+    }
+
+    private final class StatementHandler implements InvocationHandler {
+        private int pending;
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+                case "addBatch":
+                    pending++;
+                    return null;
+                case "executeBatch": {
+                    roundTrip();
+                    int[] counts = new int[pending];
+                    java.util.Arrays.fill(counts, 1);
+                    rows.add(pending);
+                    batches.increment();
+                    pending = 0;
+                    return counts;
+                }
+                case "executeUpdate":
+                    roundTrip();
+                    rows.increment();
+                    return 1;
+                case "clearBatch":
+                    pending = 0;
+                    return null;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+// End-of-day interest over 1M accounts, in memory only and with every credit appended to the
+// local transaction log. Each invocation runs the next business day, so every run accrues all
+// accounts; the run's seconds per million accounts are printed per iteration.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class InterestBatchBenchmark {
+
+    @Param({"1000000"})
+    public int accounts;
+
+    @Param({"false", "true"})
+    public boolean persist;
+
+    private File dir;
+    private LocalStore store;
+    private AtmEngine engine;
+    private LocalDate day = LocalDate.of(2026, 1, 1);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DatabaseManager.setEnabled(false);
+        dir = Files.createTempDirectory("atm-interest").toFile();
+        store = persist ? new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000) : null;
+        engine = new AtmEngine(AtmEngine.newDefaultExecutor(), new AccountRegistry(16, accounts), dir, store);
+        Credential credential = Credential.create(1000, 1000);
+        for (int i = 0; i < accounts; i++)
+            engine.restoreAccount("user" + i, credential, new SavingsAccount(1_000 + i % 100_000));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory())
+                for (File g : f.listFiles()) g.delete();
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        System.out.println(engine.getLastInterestRun());
+    }
+
+    @Benchmark
+    public InterestRunResult endOfDay() throws AtmException {
+        day = day.plusDays(1);
+        return engine.runEndOfDay(day);
+    }
+}
@@ -0,0 +1,66 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// DB logging path against the in-memory JDBC stand-in. The stand-in spins for roundTripMicros
+// per execute so batching effects show up; journal inserts/sec are printed per iteration.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    @Param({"0", "200"})
+    public long roundTripMicros;
+
+    private InMemoryJdbc db;
+    private long rowsAtStart;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = new InMemoryJdbc(TimeUnit.MICROSECONDS.toNanos(roundTripMicros)).install();
+    }
+
+    @Setup(Level.Iteration)
+    public void markRows() {
+        rowsAtStart = db.rowCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportRows() {
+        System.out.println("rows committed this iteration: " + (db.rowCount() - rowsAtStart)
+                + " " + DatabaseManager.getJournal());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DatabaseManager.shutdown();
+    }
+
+    // caller-side cost of logging one transaction
+    @Benchmark
+    @Threads(4)
+    public void insertTransaction() {
+        DatabaseManager.insertTransaction("bench", "Deposited Rs1");
+    }
+
+    // the pre-journal path: one pooled connection + one executeUpdate per row
+    @Benchmark
+    @Threads(4)
+    public int directInsert() throws java.sql.SQLException {
+        PooledConnection pc = DatabaseManager.getPool().borrow(1000);
+        try {
+            java.sql.PreparedStatement ps = pc.prepare(
+                    "INSERT INTO transactions(username, detail, created_at) VALUES (?, ?, NOW())");
+            ps.setString(1, "bench");
+            ps.setString(2, "Deposited Rs1");
+            return ps.executeUpdate();
+        } finally {
+            pc.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package atm;
+
+import java.util.SplittableRandom;
+
+// Pre-generated account index sequences so the random draw is not part of the measurement.
+final class KeyDistribution {
+
+    private KeyDistribution() {
+    }
+
+    static int[] uniform(int accounts, int length, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = rnd.nextInt(accounts);
+        return keys;
+    }
+
+    // Zipfian over [0, accounts): index 0 is the hottest account
+    static int[] zipfian(int accounts, double skew, int length, long seed) {
+        double[] cdf = new double[accounts];
+        double sum = 0;
+        for (int i = 0; i < accounts; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++) {
+            double u = rnd.nextDouble() * sum;
+            int lo = 0, hi = accounts - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) lo = mid + 1;
+                else hi = mid;
+            }
+            keys[i] = lo;
+        }
+        return keys;
+    }
+}
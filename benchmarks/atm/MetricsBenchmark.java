@@ -0,0 +1,40 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Recording overhead of the always-on metrics, alone and from several threads at once.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final Counter counter = new Counter();
+
+    @Benchmark
+    public void recordLatency() {
+        histogram.recordSince(System.nanoTime() - 1_500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLatencyContended() {
+        histogram.recordSince(System.nanoTime() - 1_500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void incrementCounterContended() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public long nanoTimeBaseline() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,55 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of rendering the mini statement and the full history as an account's history grows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MiniStatementBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int historySize;
+
+    private AtmEngine engine;
+    private AtmSession session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws AtmException {
+        engine = new AtmEngine();
+        SavingsAccount account = new SavingsAccount(0);
+        for (int i = 0; i < historySize; i++)
+            account.deposit(1);
+        engine.restoreAccount("bench", 1000, account);
+        session = engine.login("bench", 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public List<String> lastFive() throws AtmException {
+        return engine.miniStatement(session, 5);
+    }
+
+    @Benchmark
+    public String renderLastFive() throws AtmException {
+        StringBuilder sb = new StringBuilder("Last 5 Transactions:\n");
+        for (String entry : engine.miniStatement(session, 5))
+            sb.append(entry).append('\n');
+        return sb.toString();
+    }
+
+    @Benchmark
+    public List<String> fullHistory() throws AtmException {
+        return engine.history(session);
+    }
+}
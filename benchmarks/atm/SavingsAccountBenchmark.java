@@ -0,0 +1,57 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Single hot account: every thread hits the same SavingsAccount, plain CAS vs striped deposits.
+// Run with -t 1,2,4,8 (or -tg for the group benchmark) to see how it scales across cores.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SavingsAccountBenchmark {
+
+    @Param({"false", "true"})
+    public boolean striped;
+
+    private SavingsAccount account;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        // fresh account per iteration so int balances cannot overflow on long runs
+        account = new SavingsAccount(1_000_000, striped);
+    }
+
+    @Benchmark
+    public void deposit() {
+        account.deposit(1);
+    }
+
+    @Benchmark
+    public int balance() {
+        return account.getBalance();
+    }
+
+    // deposit-heavy merchant account with occasional withdrawals
+    @Benchmark
+    @Group("merchant")
+    @GroupThreads(3)
+    public void merchantDeposit() {
+        account.deposit(2);
+    }
+
+    @Benchmark
+    @Group("merchant")
+    @GroupThreads(1)
+    public void merchantWithdraw(Blackhole bh) {
+        try {
+            account.withdraw(1);
+        } catch (InsufficientFundsException e) {
+            bh.consume(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Warm start of a whole customer base from a partitioned snapshot: time until every account
+// is loaded (and, separately, until one given customer can log in) for 1 vs all-core loaders,
+// against reading the same snapshot sequentially and then filling the registry.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StartupBenchmark {
+
+    @Param({"1000000"})
+    public int accounts;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File dir;
+    private LocalStore store;
+    private AccountPreloader pending;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("atm-startup").toFile();
+        Credential credential = Credential.create(1000, 1000);
+        Map<String, SnapshotEntry> entries = new LinkedHashMap<String, SnapshotEntry>(accounts * 4 / 3 + 1);
+        for (int i = 0; i < accounts; i++)
+            entries.put("user" + i, new SnapshotEntry("user" + i, credential, AccountStatus.ACTIVE, 1000));
+        new BalanceSnapshot(0, entries).write(new File(dir, "snapshot.bin"));
+        store = new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.log().close();
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory())
+                for (File g : f.listFiles()) g.delete();
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public AccountRegistry fullyLoaded() throws Exception {
+        AccountRegistry registry = new AccountRegistry(16, accounts);
+        store.recoverParallel(registry, threads).done().get();
+        return registry;
+    }
+
+    // time until one customer is served while the rest is still loading
+    @Benchmark
+    public AccountRecord firstLookup() throws Exception {
+        AccountRegistry registry = new AccountRegistry(16, accounts);
+        pending = store.recoverParallel(registry, threads);
+        registry.setPreloader(pending);
+        return registry.find("user" + (accounts - 1));
+    }
+
+    // let the rest of the load finish outside the measurement
+    @TearDown(Level.Invocation)
+    public void awaitPending() throws Exception {
+        if (pending != null) pending.done().get();
+        pending = null;
+    }
+
+    @Benchmark
+    public AccountRegistry sequentialRead() throws IOException {
+        AccountRegistry registry = new AccountRegistry(16, accounts);
+        BalanceSnapshot snapshot = BalanceSnapshot.read(new File(dir, "snapshot.bin"));
+        for (SnapshotEntry e : snapshot.entries.values())
+            registry.put(new AccountRecord(e.username, e.credential, new SavingsAccount((int) e.balance)));
+        return registry;
+    }
+}
@@ -0,0 +1,52 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Append latency of the memory-mapped transaction log under each fsync policy.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionLogBenchmark {
+
+    @Param({"NEVER", "INTERVAL"})
+    public String fsync;
+
+    private File dir;
+    private TransactionLog log;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("txlog-bench").toFile();
+        log = TransactionLog.open(dir, FsyncPolicy.valueOf(fsync), 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return log.append(LogRecordType.DEPOSIT, "merchant", 100, 10_000, null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long appendContended() throws IOException {
+        return log.append(LogRecordType.DEPOSIT, "merchant", 100, 10_000, null);
+    }
+}
@@ -0,0 +1,113 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Statement queries over a log of 1M and 4M rows spread across 10k users: newest page, a page
+// deep in a user's history by cursor and a filtered page ("withdrawals of Rs5000 or more"),
+// against scanning the whole log for one user's newest rows as exports did before the index.
+// The indexed cases should not move with the log size; the scan grows with it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TransactionQueryBenchmark {
+
+    private static final int USERS = 10_000;
+    private static final int SESSIONS = 64;
+    private static final int PAGE = 50;
+
+    @Param({"1000000", "4000000"})
+    public int rows;
+
+    private File dir;
+    private LocalStore store;
+    private AtmEngine engine;
+    private AtmSession[] sessions;
+    private String[] deepCursors;
+    private int next;
+    private final TransactionQuery newest = TransactionQuery.all();
+    private final TransactionQuery bigWithdrawals =
+            new TransactionQuery(0, Long.MAX_VALUE, EnumSet.of(TxType.WITHDRAWAL), 5000, Long.MAX_VALUE, true);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, AtmException {
+        DatabaseManager.setEnabled(false);
+        dir = Files.createTempDirectory("atm-query").toFile();
+        store = new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000);
+        engine = new AtmEngine(AtmEngine.newDefaultExecutor(), new AccountRegistry(), dir, store);
+        engine.setPinIterations(1);
+        AtmSession[] all = new AtmSession[USERS];
+        for (int i = 0; i < USERS; i++) {
+            engine.createAccount("user" + i, 1000, 1_000_000);
+            all[i] = engine.login("user" + i, 1000);
+        }
+        Random rnd = new Random(42);
+        for (int n = USERS; n < rows; n++) {
+            AtmSession s = all[rnd.nextInt(USERS)];
+            int amount = 1 + rnd.nextInt(10_000);
+            if (rnd.nextBoolean()) engine.deposit(s, amount);
+            else engine.withdraw(s, Math.min(amount, 100));
+            if (n % 10 == 0) engine.withdraw(s, 5000 + rnd.nextInt(1000));
+        }
+        sessions = new AtmSession[SESSIONS];
+        deepCursors = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions[i] = all[i];
+            // about half way back through the user's history
+            int skip = Math.min(store.index().size("user" + i) / 2, AtmEngine.MAX_PAGE_SIZE);
+            deepCursors[i] = engine.queryTransactions(sessions[i], newest, null, Math.max(1, skip)).getNextCursor();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory())
+                for (File g : f.listFiles()) g.delete();
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public TransactionPage newestPage() throws AtmException {
+        return engine.queryTransactions(sessions[next++ & (SESSIONS - 1)], newest, null, PAGE);
+    }
+
+    @Benchmark
+    public TransactionPage deepPage() throws AtmException {
+        int i = next++ & (SESSIONS - 1);
+        return engine.queryTransactions(sessions[i], newest, deepCursors[i], PAGE);
+    }
+
+    @Benchmark
+    public TransactionPage filteredPage() throws AtmException {
+        return engine.queryTransactions(sessions[next++ & (SESSIONS - 1)], bigWithdrawals, null, PAGE);
+    }
+
+    @Benchmark
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int fullLogScan() {
+        final String user = sessions[next++ & (SESSIONS - 1)].getUsername();
+        final long[] newestPositions = new long[PAGE];
+        final int[] seen = new int[1];
+        store.log().scan(0, new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                if (user.equals(r.username)) newestPositions[seen[0]++ % PAGE] = r.position;
+                return true;
+            }
+        });
+        return seen[0];
+    }
+}
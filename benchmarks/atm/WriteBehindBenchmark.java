@@ -0,0 +1,87 @@
+package atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Balance persistence against the in-memory JDBC stand-in: write-behind (mark dirty, flushed
+// in batches) vs one UPDATE per operation. DB rows per balance change are printed per iteration.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBehindBenchmark {
+
+    @Param({"10", "10000"})
+    public int accounts;
+
+    @Param({"200"})
+    public long roundTripMicros;
+
+    private InMemoryJdbc db;
+    private AccountRecord[] records;
+    private long rowsAtStart;
+    private long changesAtStart;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = new InMemoryJdbc(TimeUnit.MICROSECONDS.toNanos(roundTripMicros)).install();
+        Credential credential = Credential.create(1000, 1000);
+        records = new AccountRecord[accounts];
+        for (int i = 0; i < accounts; i++)
+            records[i] = new AccountRecord("user" + i, credential, new SavingsAccount(1_000_000));
+    }
+
+    @Setup(Level.Iteration)
+    public void markRows() {
+        rowsAtStart = db.rowCount();
+        changesAtStart = DatabaseManager.getBalanceWriter().getChangeCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportRows() {
+        DatabaseManager.getBalanceWriter().flush();
+        long changes = DatabaseManager.getBalanceWriter().getChangeCount() - changesAtStart;
+        long rows = db.rowCount() - rowsAtStart;
+        System.out.println("balance changes: " + changes + " DB rows: " + rows + " "
+                + DatabaseManager.getBalanceWriter());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DatabaseManager.shutdown();
+    }
+
+    private AccountRecord pick() {
+        return records[ThreadLocalRandom.current().nextInt(records.length)];
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int writeBehind() {
+        AccountRecord r = pick();
+        int after = r.getAccount().depositAndGet(1);
+        DatabaseManager.balanceChanged(r);
+        return after;
+    }
+
+    // the naive path: one pooled connection + one UPDATE per balance change
+    @Benchmark
+    @Threads(4)
+    public int writeThrough() throws java.sql.SQLException {
+        AccountRecord r = pick();
+        int after = r.getAccount().depositAndGet(1);
+        PooledConnection pc = DatabaseManager.getPool().borrow(1000);
+        try {
+            java.sql.PreparedStatement ps = pc.prepare("UPDATE users SET balance = ? WHERE username = ?");
+            ps.setLong(1, after);
+            ps.setString(2, r.getUsername());
+            return ps.executeUpdate();
+        } finally {
+            pc.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package atm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+// Version handling of the balance write-behind over a fake users table: inserts, the first
+// write after a restart, conflicts that park an account and the operator overwrite.
+public class BalanceWriteBehindTest {
+
+    private final VersionedUsers db = new VersionedUsers();
+    private final ConnectionPool pool = new ConnectionPool(db, 2, 60_000, 60_000, 4);
+    private final BalanceWriteBehind writer = new BalanceWriteBehind(pool, 3_600_000, 16, 100);
+
+    @After
+    public void tearDown() {
+        writer.close(100);
+        pool.close();
+    }
+
+    @Test
+    public void newAccountIsInsertedThenUpdated() {
+        AccountRecord alice = record("alice", 100);
+        change(alice, 10);
+        assertEquals(1, writer.flush());
+        assertRow("alice", 1, 110);
+
+        change(alice, 5);
+        assertEquals(1, writer.flush());
+        assertRow("alice", 2, 115);
+        assertEquals(0, writer.getConflictCount());
+        assertFalse(alice.isDirty());
+    }
+
+    @Test
+    public void firstWriteAfterRestartAdoptsRowVersion() {
+        db.put("alice", 3, 500); // left by the previous run
+        AccountRecord alice = record("alice", 500); // rebuilt from the local log, version unknown
+        change(alice, 20);
+        assertEquals(1, writer.flush());
+        assertRow("alice", 4, 520);
+        assertEquals(0, writer.getConflictCount());
+        assertTrue(writer.getParkedAccounts().isEmpty());
+
+        change(alice, 1);
+        assertEquals(1, writer.flush());
+        assertRow("alice", 5, 521);
+    }
+
+    @Test
+    public void conflictParksAccountWithoutOverwritingRow() {
+        AccountRecord alice = loaded("alice", 1, 100);
+        db.put("alice", 5, 999); // someone else wrote the row
+        change(alice, 10);
+        assertEquals(0, writer.flush());
+        assertRow("alice", 5, 999);
+        assertEquals(1, writer.getConflictCount());
+        assertEquals(Collections.singleton("alice"), writer.getParkedAccounts());
+
+        change(alice, 10);
+        assertEquals(0, writer.flush());
+        assertRow("alice", 5, 999);
+        assertTrue(alice.isDirty()); // a bounded registry must not evict it
+    }
+
+    @Test
+    public void overwriteConflictWritesOverVersionSeen() {
+        AccountRecord alice = loaded("alice", 1, 100);
+        AccountRecord bob = loaded("bob", 1, 50);
+        db.put("alice", 5, 999);
+        change(alice, 10);
+        change(bob, 10);
+        assertEquals(1, writer.flush());
+        assertRow("bob", 2, 60);
+
+        assertFalse(writer.overwriteConflict("bob"));
+        assertTrue(writer.overwriteConflict("alice"));
+        assertFalse(writer.overwriteConflict("alice"));
+        assertEquals(1, writer.flush());
+        assertRow("alice", 6, 110);
+        assertTrue(writer.getParkedAccounts().isEmpty());
+        assertFalse(alice.isDirty());
+    }
+
+    @Test
+    public void rowChangedAgainBeforeOverwriteParksAgain() {
+        AccountRecord alice = loaded("alice", 1, 100);
+        db.put("alice", 5, 999);
+        change(alice, 10);
+        writer.flush();
+        db.put("alice", 6, 888);
+        assertTrue(writer.overwriteConflict("alice"));
+        assertEquals(0, writer.flush());
+        assertRow("alice", 6, 888);
+        assertEquals(2, writer.getConflictCount());
+        assertEquals(Collections.singleton("alice"), writer.getParkedAccounts());
+    }
+
+    // ---- helpers ----
+
+    private static AccountRecord record(String user, int balance) {
+        return new AccountRecord(user, Credential.create(1234, 1), new SavingsAccount(balance));
+    }
+
+    // as the DB loader builds it: the row version is known
+    private AccountRecord loaded(String user, long version, int balance) {
+        db.put(user, version, balance);
+        AccountRecord r = record(user, balance);
+        r.dbVersion = version;
+        return r;
+    }
+
+    private void change(AccountRecord r, int amount) {
+        r.getAccount().deposit(amount);
+        writer.changed(r);
+    }
+
+    private void assertRow(String user, long version, long balance) {
+        long[] row = db.get(user);
+        assertNotNull(user + " has no row", row);
+        assertEquals(version, row[0]);
+        assertEquals(balance, row[1]);
+    }
+
+    // users(username, version, balance) behind the three statements BalanceWriteBehind issues
+    static final class VersionedUsers implements ConnectionFactory {
+        private final Map<String, long[]> rows = new HashMap<String, long[]>();
+
+        synchronized void put(String user, long version, long balance) {
+            rows.put(user, new long[]{version, balance});
+        }
+
+        synchronized long[] get(String user) {
+            long[] row = rows.get(user);
+            return row == null ? null : row.clone();
+        }
+
+        // UPDATE ... SET balance, pin, version WHERE username AND version
+        synchronized int update(Map<Integer, Object> p) {
+            long[] row = rows.get(p.get(4));
+            if (row == null || row[0] != (Long) p.get(5)) return 0;
+            row[0] = (Long) p.get(3);
+            row[1] = (Long) p.get(1);
+            return 1;
+        }
+
+        @Override
+        public Connection create() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Connection.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method m, Object[] args) {
+                            if ("prepareStatement".equals(m.getName())) return statement((String) args[0]);
+                            if ("isValid".equals(m.getName())) return true;
+                            return defaultValue(m.getReturnType());
+                        }
+                    });
+        }
+
+        private PreparedStatement statement(final String sql) {
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+                        final Map<Integer, Object> params = new HashMap<Integer, Object>();
+                        final List<Map<Integer, Object>> batch = new ArrayList<Map<Integer, Object>>();
+
+                        public Object invoke(Object proxy, Method m, Object[] args) {
+                            String name = m.getName();
+                            if (name.startsWith("set") && args != null && args.length == 2) {
+                                params.put((Integer) args[0], args[1]);
+                                return null;
+                            }
+                            if ("clearParameters".equals(name)) {
+                                params.clear();
+                                return null;
+                            }
+                            if ("addBatch".equals(name)) {
+                                batch.add(new HashMap<Integer, Object>(params));
+                                return null;
+                            }
+                            if ("executeBatch".equals(name)) {
+                                int[] counts = new int[batch.size()];
+                                for (int i = 0; i < counts.length; i++) counts[i] = update(batch.get(i));
+                                batch.clear();
+                                return counts;
+                            }
+                            if ("executeUpdate".equals(name)) {
+                                if (sql.equals(BalanceWriteBehind.INSERT_SQL)) {
+                                    put((String) params.get(1), (Long) params.get(4), (Long) params.get(3));
+                                    return 1;
+                                }
+                                return update(params);
+                            }
+                            if ("executeQuery".equals(name)) return versionOf((String) params.get(1));
+                            return defaultValue(m.getReturnType());
+                        }
+                    });
+        }
+
+        // SELECT version FROM users WHERE username = ?
+        private ResultSet versionOf(String user) {
+            final long[] row = get(user);
+            return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, new InvocationHandler() {
+                        private boolean read;
+
+                        public Object invoke(Object proxy, Method m, Object[] args) {
+                            if ("next".equals(m.getName())) {
+                                boolean has = !read && row != null;
+                                read = true;
+                                return has;
+                            }
+                            if ("getLong".equals(m.getName())) return row[0];
+                            return defaultValue(m.getReturnType());
+                        }
+                    });
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) return Boolean.FALSE;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        }
+    }
+}
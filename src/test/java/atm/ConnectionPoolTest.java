@@ -0,0 +1,122 @@
+package atm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import static org.junit.Assert.*;
+
+// Borrow / release / eviction of ConnectionPool over the in-memory JDBC stand-in.
+public class ConnectionPoolTest {
+
+    private final InMemoryJdbc jdbc = new InMemoryJdbc();
+    private ConnectionPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) pool.close();
+    }
+
+    @Test
+    public void releasedConnectionIsReused() throws SQLException {
+        pool = new ConnectionPool(jdbc, 2, 60_000, 60_000, 4);
+        PooledConnection first = pool.borrow(100);
+        assertEquals(1, pool.getInUse());
+        first.close();
+        assertEquals(0, pool.getInUse());
+        assertEquals(1, pool.getIdleCount());
+
+        PooledConnection second = pool.borrow(100);
+        assertSame(first, second);
+        assertEquals(1, pool.getCreatedCount());
+        second.close();
+    }
+
+    @Test
+    public void doubleCloseReleasesOnce() throws SQLException {
+        pool = new ConnectionPool(jdbc, 1, 60_000, 60_000, 4);
+        PooledConnection pc = pool.borrow(100);
+        pc.close();
+        pc.close();
+        assertEquals(0, pool.getInUse());
+        assertEquals(1, pool.getIdleCount());
+
+        PooledConnection held = pool.borrow(100);
+        try {
+            pool.borrow(50);
+            fail("a second close must not hand out a second permit");
+        } catch (SQLTimeoutException expected) {
+            // only one connection may be out
+        } finally {
+            held.close();
+        }
+    }
+
+    @Test
+    public void connectionErrorDropsConnection() throws SQLException {
+        pool = new ConnectionPool(jdbc, 2, 60_000, 60_000, 4);
+        PooledConnection pc = pool.borrow(100);
+        pc.markBroken(new SQLException("communications link failure", "08S01"));
+        pc.close();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getOpenConnections());
+    }
+
+    @Test
+    public void statementErrorKeepsConnection() throws SQLException {
+        pool = new ConnectionPool(jdbc, 2, 60_000, 60_000, 4);
+        PooledConnection pc = pool.borrow(100);
+        pc.markBroken(new SQLException("duplicate key", "23000"));
+        pc.close();
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getOpenConnections());
+    }
+
+    @Test
+    public void errorOnInvalidConnectionDropsIt() throws SQLException {
+        pool = new ConnectionPool(jdbc, 2, 60_000, 60_000, 4);
+        PooledConnection pc = pool.borrow(100);
+        jdbc.setValid(false);
+        pc.markBroken(new SQLException("read timed out"));
+        pc.close();
+        assertEquals(0, pool.getOpenConnections());
+    }
+
+    @Test
+    public void borrowValidatesIdleConnection() throws SQLException {
+        pool = new ConnectionPool(jdbc, 2, 60_000, 0, 4);
+        pool.borrow(100).close();
+        jdbc.setValid(false);
+        PooledConnection pc = pool.borrow(100);
+        assertEquals(1, pool.getFailedValidationCount());
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getOpenConnections());
+        pc.close();
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        pool = new ConnectionPool(jdbc, 4, 1, 60_000, 4);
+        PooledConnection a = pool.borrow(100);
+        PooledConnection b = pool.borrow(100);
+        a.close();
+        b.close();
+        Thread.sleep(5);
+        pool.evictIdle();
+        assertEquals(2, pool.getEvictedCount());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getOpenConnections());
+
+        pool.borrow(100).close();
+        assertEquals(3, pool.getCreatedCount());
+    }
+
+    @Test(expected = SQLException.class)
+    public void closedPoolRefusesBorrow() throws SQLException {
+        pool = new ConnectionPool(jdbc, 1, 60_000, 60_000, 4);
+        pool.close();
+        pool.borrow(100);
+    }
+}
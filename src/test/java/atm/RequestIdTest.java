@@ -0,0 +1,154 @@
+package atm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+// Client request IDs on deposit, withdraw and transfer: a repeat is answered from the first
+// run, a reused ID for something else is refused, a failure may be retried, and IDs in the
+// window still hold after a restart from the local transaction log.
+public class RequestIdTest {
+
+    private File dir;
+    private AtmEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        DatabaseManager.setEnabled(false);
+        dir = Files.createTempDirectory("atm-requests").toFile();
+        engine = startEngine();
+        engine.createAccount("alice", 1111, 1000);
+        engine.createAccount("bob", 2222, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        delete(dir);
+    }
+
+    @Test
+    public void repeatReturnsFirstResultAndRunsOnce() throws AtmException {
+        AtmSession alice = engine.login("alice", 1111);
+        assertEquals(1100, engine.deposit(alice, 100, "r1"));
+        assertEquals(1100, engine.deposit(alice, 100, "r1"));
+        assertEquals(1100, engine.balance(alice));
+
+        assertEquals(1050, engine.withdraw(alice, 50, "w1"));
+        assertEquals(1050, engine.withdraw(alice, 50, "w1"));
+        assertEquals(1000, engine.transfer(alice, "bob", 50, "t1"));
+        assertEquals(1000, engine.transfer(alice, "bob", 50, "t1"));
+        assertEquals(1000, engine.balance(alice));
+        assertEquals(1050, engine.balance(engine.login("bob", 2222)));
+
+        // IDs are per user
+        AtmSession bob = engine.login("bob", 2222);
+        assertEquals(1150, engine.deposit(bob, 100, "r1"));
+    }
+
+    @Test
+    public void concurrentRepeatsRunOnce() throws Exception {
+        final AtmSession alice = engine.login("alice", 1111);
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> answers = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                answers.add(clients.submit(new Callable<Integer>() {
+                    public Integer call() throws AtmException {
+                        return engine.deposit(alice, 250, "double-click");
+                    }
+                }));
+            }
+            for (Future<Integer> f : answers)
+                assertEquals(1250, (int) f.get());
+        } finally {
+            clients.shutdown();
+        }
+        assertEquals(1250, engine.balance(alice));
+    }
+
+    @Test
+    public void sameIdForDifferentOperationIsRefused() throws AtmException {
+        AtmSession alice = engine.login("alice", 1111);
+        engine.deposit(alice, 100, "r1");
+        assertRefused(alice, "r1", 200, false);
+        assertRefused(alice, "r1", 100, true);
+        try {
+            engine.transfer(alice, "bob", 100, "r1");
+            fail("a deposit ID reused for a transfer");
+        } catch (AtmException expected) {
+            // refused, nothing moved
+        }
+        assertEquals(1100, engine.balance(alice));
+    }
+
+    @Test
+    public void failedWithdrawalCanBeRetried() throws AtmException {
+        AtmSession alice = engine.login("alice", 1111);
+        try {
+            engine.withdraw(alice, 5000, "w1");
+            fail("overdraft");
+        } catch (InsufficientFundsException expected) {
+            // forgotten, so the same ID may run again
+        }
+        engine.deposit(alice, 4000);
+        assertEquals(0, engine.withdraw(alice, 5000, "w1"));
+        assertEquals(0, engine.withdraw(alice, 5000, "w1"));
+        assertEquals(0, engine.balance(alice));
+    }
+
+    @Test
+    public void idsRestoredAfterRestartAreHonoured() throws Exception {
+        AtmSession alice = engine.login("alice", 1111);
+        assertEquals(1100, engine.deposit(alice, 100, "r1"));
+        assertEquals(1000, engine.transfer(alice, "bob", 100, "t1"));
+        engine.shutdown();
+
+        engine = startEngine();
+        alice = engine.login("alice", 1111);
+        assertEquals(1100, engine.deposit(alice, 100, "r1"));
+        assertEquals(1000, engine.transfer(alice, "bob", 100, "t1"));
+        assertEquals(1000, engine.balance(alice));
+        assertEquals(1100, engine.balance(engine.login("bob", 2222)));
+        assertRefused(alice, "r1", 100, true);
+    }
+
+    // ---- helpers ----
+
+    private AtmEngine startEngine() throws Exception {
+        LocalStore store = new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000);
+        AtmEngine e = new AtmEngine(AtmEngine.newDefaultExecutor(), new AccountRegistry(), dir, store);
+        e.setPinIterations(1);
+        e.start().done().get();
+        return e;
+    }
+
+    private void assertRefused(AtmSession session, String requestId, int amount, boolean withdraw) {
+        try {
+            if (withdraw) engine.withdraw(session, amount, requestId);
+            else engine.deposit(session, amount, requestId);
+            fail("request ID " + requestId + " reused for a different operation");
+        } catch (AtmException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("different operation"));
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children) delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,73 @@
+package atm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Transfer legs near the balance limit: money debited by a transfer in flight keeps its
+// headroom, so deposits cannot take it and the refund of a failed credit always fits.
+public class SavingsAccountTransferTest {
+
+    private static final int NEAR_MAX = Integer.MAX_VALUE - 1000;
+
+    @Test
+    public void refundFitsAfterDepositsFillSource() throws InsufficientFundsException {
+        assertRefundFits(new SavingsAccount(NEAR_MAX));
+    }
+
+    @Test
+    public void refundFitsAfterDepositsFillStripedSource() throws InsufficientFundsException {
+        assertRefundFits(new SavingsAccount(NEAR_MAX, true));
+    }
+
+    private static void assertRefundFits(SavingsAccount from) throws InsufficientFundsException {
+        SavingsAccount to = new SavingsAccount(Integer.MAX_VALUE);
+        int after = from.reserveTransfer(500);
+        assertEquals(NEAR_MAX - 500, after);
+
+        // the 500 in flight is not headroom for deposits
+        int deposited = 0;
+        while (true) {
+            try {
+                from.deposit(100);
+                deposited += 100;
+            } catch (ArithmeticException full) {
+                break;
+            }
+        }
+        assertEquals(1000, deposited);
+
+        try {
+            to.receiveTransfer(500);
+            fail("target is full");
+        } catch (ArithmeticException expected) {
+            from.releaseTransfer(500);
+        }
+        assertEquals(NEAR_MAX + 1000, from.getBalance());
+        assertEquals(Integer.MAX_VALUE, to.getBalance());
+    }
+
+    @Test
+    public void completedTransferFreesHeadroom() throws InsufficientFundsException {
+        SavingsAccount from = new SavingsAccount(NEAR_MAX);
+        SavingsAccount to = new SavingsAccount(0);
+        int[] after = SavingsAccount.transfer(from, to, 500);
+        assertEquals(NEAR_MAX - 500, after[0]);
+        assertEquals(500, after[1]);
+        from.deposit(1500); // the hold is gone once the target has the money
+        assertEquals(Integer.MAX_VALUE, from.getBalance());
+    }
+
+    @Test
+    public void insufficientFundsReleasesHold() {
+        SavingsAccount from = new SavingsAccount(NEAR_MAX);
+        try {
+            from.reserveTransfer(Integer.MAX_VALUE);
+            fail("overdraft");
+        } catch (InsufficientFundsException expected) {
+            // nothing reserved
+        }
+        from.deposit(1000);
+        assertEquals(Integer.MAX_VALUE, from.getBalance());
+    }
+}
@@ -0,0 +1,205 @@
+package atm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// Per-user index over the transaction log: varint delta blocks of 64 entries, cursor paging
+// in both directions across block and segment boundaries, type/amount filters and a rebuild
+// from the log when the saved index cannot be read.
+public class TransactionIndexTest {
+
+    private static final int SEGMENT = 4096;
+    private static final int RECORD_OVERHEAD = 45; // header + fixed payload, ASCII usernames
+
+    private File dir;
+    private TransactionLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("atm-index").toFile();
+        log = TransactionLog.open(new File(dir, "txlog"), SEGMENT, FsyncPolicy.NEVER, 10);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        log.close();
+        delete(dir);
+    }
+
+    @Test
+    public void entriesAroundBlockBoundariesDecode() throws IOException {
+        for (int count : new int[]{1, 63, 64, 65, 128, 129}) {
+            String user = "user" + count;
+            List<Long> written = appendInterleaved(user, count, new Random(count));
+            TransactionIndex index = new TransactionIndex(log);
+            index.catchUp();
+            assertEquals(count, index.size(user));
+            assertEquals(written, positions(index, user, oldestFirst(), 1000));
+            List<Long> reversed = new ArrayList<Long>(written);
+            Collections.reverse(reversed);
+            assertEquals(reversed, positions(index, user, TransactionQuery.all(), 1000));
+        }
+    }
+
+    @Test
+    public void cursorResumesAcrossBlocksAndSegments() throws IOException {
+        List<Long> written = appendInterleaved("alice", 200, new Random(1));
+        assertTrue("spans several segments", written.get(written.size() - 1) / SEGMENT > 2);
+        TransactionIndex index = new TransactionIndex(log);
+        index.catchUp();
+
+        for (int pageSize : new int[]{1, 7, 10, 64, 65}) {
+            assertEquals(written, positions(index, "alice", oldestFirst(), pageSize));
+            List<Long> reversed = new ArrayList<Long>(written);
+            Collections.reverse(reversed);
+            assertEquals(reversed, positions(index, "alice", TransactionQuery.all(), pageSize));
+        }
+
+        // a cursor on the last entry of a block, and on the last entry of a segment
+        TransactionPage next = index.page("alice", oldestFirst(), written.get(63), 2);
+        assertEquals(written.subList(64, 66), positionsOf(next));
+        int lastInSegment = 0;
+        while (written.get(lastInSegment + 1) < SEGMENT) lastInSegment++;
+        next = index.page("alice", oldestFirst(), written.get(lastInSegment), 2);
+        assertEquals(written.subList(lastInSegment + 1, lastInSegment + 3), positionsOf(next));
+        assertTrue(next.getRows().get(0).getPosition() >= SEGMENT);
+        next = index.page("alice", TransactionQuery.all(), written.get(lastInSegment + 1), 1);
+        assertEquals(written.subList(lastInSegment, lastInSegment + 1), positionsOf(next));
+    }
+
+    @Test
+    public void typeAndAmountFilters() throws IOException {
+        List<Long> bigWithdrawals = new ArrayList<Long>();
+        List<Long> smallDeposits = new ArrayList<Long>();
+        for (int i = 0; i < 150; i++) {
+            long amount = (i * 37) % 10_000;
+            if (i % 3 == 0) {
+                long p = append(LogRecordType.WITHDRAWAL, "alice", amount, null);
+                if (amount >= 5000) bigWithdrawals.add(p);
+            } else {
+                long p = append(LogRecordType.DEPOSIT, "alice", amount, null);
+                if (amount <= 100) smallDeposits.add(p);
+            }
+        }
+        long out = append(LogRecordType.TRANSFER, "alice", 250, LogRecord.transferExtra("bob", 250));
+        TransactionIndex index = new TransactionIndex(log);
+        index.catchUp();
+
+        assertEquals(bigWithdrawals, positions(index, "alice",
+                new TransactionQuery(0, Long.MAX_VALUE, EnumSet.of(TxType.WITHDRAWAL), 5000, Long.MAX_VALUE, false), 9));
+        assertEquals(smallDeposits, positions(index, "alice",
+                new TransactionQuery(0, Long.MAX_VALUE, EnumSet.of(TxType.DEPOSIT), 0, 100, false), 4));
+
+        TransactionPage in = index.page("bob",
+                new TransactionQuery(0, Long.MAX_VALUE, EnumSet.of(TxType.TRANSFER_IN), 0, Long.MAX_VALUE, true), -1, 10);
+        assertEquals(1, in.getRows().size());
+        assertEquals(out, in.getRows().get(0).getPosition());
+        assertEquals("alice", in.getRows().get(0).getCounterparty());
+        assertTrue(positions(index, "bob",
+                new TransactionQuery(0, Long.MAX_VALUE, EnumSet.of(TxType.TRANSFER), 0, Long.MAX_VALUE, true), 10).isEmpty());
+    }
+
+    @Test
+    public void unreadableIndexIsRebuiltFromLog() throws IOException {
+        List<Long> written = appendInterleaved("alice", 130, new Random(7));
+        TransactionIndex index = new TransactionIndex(log);
+        index.catchUp();
+        File file = new File(dir, "txindex.bin");
+        index.save(file);
+
+        TransactionIndex loaded = new TransactionIndex(log);
+        assertTrue(loaded.load(file));
+        assertEquals(written, positions(loaded, "alice", oldestFirst(), 50));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long at = raf.length() / 2;
+            raf.seek(at);
+            int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0x5A);
+        } finally {
+            raf.close();
+        }
+        TransactionIndex rebuilt = new TransactionIndex(log);
+        assertFalse(rebuilt.load(file));
+        assertEquals(0, rebuilt.getEntries());
+        assertEquals(written, positions(rebuilt, "alice", oldestFirst(), 50));
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 3);
+        } finally {
+            raf.close();
+        }
+        rebuilt = new TransactionIndex(log);
+        assertFalse(rebuilt.load(file));
+        assertEquals(written, positions(rebuilt, "alice", oldestFirst(), 50));
+    }
+
+    // ---- helpers ----
+
+    // returns the record's position: it ends where the log now ends (a record that did not fit
+    // a segment starts the next one, so the position before the append is not enough)
+    private long append(LogRecordType type, String user, long amount, byte[] extra) throws IOException {
+        log.append(type, user, amount, 0, extra);
+        int length = RECORD_OVERHEAD + user.length() + (extra == null ? 0 : extra.length);
+        return log.getCommittedPosition() - length;
+    }
+
+    // count deposits for user with 0-400 records of other users in between, so the deltas
+    // take one, two and three varint bytes
+    private List<Long> appendInterleaved(String user, int count, Random rnd) throws IOException {
+        List<Long> positions = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            int others = rnd.nextInt(4) == 0 ? rnd.nextInt(400) : rnd.nextInt(3);
+            for (int k = 0; k < others; k++)
+                log.append(LogRecordType.DEPOSIT, "other" + k % 5, 1, 0, null);
+            positions.add(append(LogRecordType.DEPOSIT, user, i + 1, null));
+        }
+        return positions;
+    }
+
+    private static TransactionQuery oldestFirst() {
+        return new TransactionQuery(0, Long.MAX_VALUE, null, 0, Long.MAX_VALUE, false);
+    }
+
+    // every matching position, following the cursor page by page
+    private static List<Long> positions(TransactionIndex index, String user, TransactionQuery query, int pageSize) {
+        List<Long> out = new ArrayList<Long>();
+        long cursor = -1;
+        do {
+            TransactionPage page = index.page(user, query, cursor, pageSize);
+            assertTrue(page.getRows().size() <= pageSize);
+            out.addAll(positionsOf(page));
+            cursor = page.hasMore() ? page.getRows().get(page.getRows().size() - 1).getPosition() : -1;
+        } while (cursor >= 0);
+        return out;
+    }
+
+    private static List<Long> positionsOf(TransactionPage page) {
+        List<Long> out = new ArrayList<Long>();
+        for (TransactionRow r : page.getRows()) out.add(r.getPosition());
+        return out;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children) delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,92 @@
+package atm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// The journal's spill file after a crash in the middle of an append: the torn last line is
+// cut off, later spills start on a fresh line and every complete line is replayed once.
+public class TransactionJournalSpillTest {
+
+    private File dir;
+    private File spill;
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("atm-spill").toFile();
+        spill = new File(dir, "journal.spill");
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) pool.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void tornLineIsDroppedAndNextSpillStartsOnNewLine() throws Exception {
+        write("1\talice\tDeposited Rs100\n2\tbob\tWithdrew Rs50\n3\tcarol\tDepo");
+
+        pool = new ConnectionPool(new DownDatabase(), 1, 60_000, 60_000, 4);
+        TransactionJournal journal = new TransactionJournal(pool, spill, 16, 8, 10, 100);
+        assertEquals("1\talice\tDeposited Rs100\n2\tbob\tWithdrew Rs50\n", read());
+        journal.append("dave", "Deposited Rs400");
+        journal.close(5_000);
+
+        List<String> lines = Files.readAllLines(spill.toPath(), StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(2), lines.get(2).endsWith("\tdave\tDeposited Rs400"));
+        assertTrue(read().endsWith("\n"));
+    }
+
+    @Test
+    public void completeLinesAreReplayedOnce() throws Exception {
+        write("1\talice\tDeposited Rs100\n2\tbob\tWithdrew Rs50\n3\tcarol\tDepo");
+
+        InMemoryJdbc jdbc = new InMemoryJdbc();
+        pool = new ConnectionPool(jdbc, 2, 60_000, 60_000, 4);
+        TransactionJournal journal = new TransactionJournal(pool, spill, 16, 8, 10, 100);
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (spill.length() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        journal.close(5_000);
+
+        assertEquals(2, journal.getReplayedCount());
+        assertEquals(2, jdbc.rowCount());
+        assertEquals(0, spill.length());
+    }
+
+    private void write(String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(spill);
+        try {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private String read() throws IOException {
+        return new String(Files.readAllBytes(spill.toPath()), StandardCharsets.UTF_8);
+    }
+
+    // every connection attempt fails, so the journal spills
+    private static final class DownDatabase implements ConnectionFactory {
+        @Override
+        public Connection create() throws SQLException {
+            throw new SQLException("connection refused", "08001");
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package atm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.junit.Assert.*;
+
+// Crash recovery of the transaction log and the balance snapshot: torn tails, records left
+// behind a cut, deleted segments, snapshot + tail replay and every snapshot file version.
+public class TransactionLogRecoveryTest {
+
+    private static final int SEGMENT = 4096;
+    private static final int MAGIC = 0x41544D53;
+
+    private File dir;
+    private final List<Closeable> open = new ArrayList<Closeable>();
+
+    @Before
+    public void setUp() throws IOException {
+        DatabaseManager.setEnabled(false);
+        dir = Files.createTempDirectory("atm-recovery").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Closeable c : open) {
+            try { c.close(); } catch (IOException ignored) {}
+        }
+        delete(dir);
+    }
+
+    @Test
+    public void tornTailIsCutAndAppendsContinue() throws IOException {
+        File logDir = new File(dir, "txlog");
+        TransactionLog log = openLog(logDir);
+        for (int i = 1; i <= 5; i++)
+            log.append(LogRecordType.DEPOSIT, "alice", i, 0, null);
+        List<LogRecord> written = records(log);
+        log.close();
+
+        corrupt(logDir, written.get(4).position);
+        log = openLog(logDir);
+        assertEquals(seqs(1, 2, 3, 4), seqsOf(records(log)));
+        assertEquals(5, log.append(LogRecordType.DEPOSIT, "alice", 50, 0, null));
+        log.close();
+
+        assertEquals(seqs(1, 2, 3, 4, 5), seqsOf(records(openLog(logDir))));
+    }
+
+    @Test
+    public void recordsBehindACutNeverComeBack() throws IOException {
+        File logDir = new File(dir, "txlog");
+        TransactionLog log = openLog(logDir);
+        log.append(LogRecordType.DEPOSIT, "alice", 1, 0, null);
+        log.append(LogRecordType.DEPOSIT, "alice", 2, 0, null);
+        log.append(LogRecordType.DEPOSIT, "alice", 3, 0, null);
+        List<LogRecord> written = records(log);
+        log.close();
+
+        // the middle record is lost; the one after it is intact and passes its CRC
+        corrupt(logDir, written.get(1).position);
+        log = openLog(logDir);
+        assertEquals(seqs(1), seqsOf(records(log)));
+        // same size as the lost record, so it ends exactly where the stale one starts
+        log.append(LogRecordType.DEPOSIT, "alice", 20, 0, null);
+        log.close();
+
+        List<LogRecord> after = records(openLog(logDir));
+        assertEquals(seqs(1, 2), seqsOf(after));
+        assertEquals(20, after.get(1).amount);
+    }
+
+    @Test
+    public void deletedSegmentsAreSkippedAndSequenceContinues() throws IOException {
+        File logDir = new File(dir, "txlog");
+        TransactionLog log = openLog(logDir);
+        for (int i = 1; i <= 200; i++)
+            log.append(LogRecordType.DEPOSIT, "alice", i, 0, null);
+        long middle = log.getCommittedPosition() / 2;
+        assertEquals(0, log.deleteSegments(middle, 0)); // nothing old enough yet
+        int deleted = log.deleteSegments(middle, Long.MAX_VALUE);
+        assertTrue(deleted > 0);
+        assertEquals((long) deleted * SEGMENT, log.getFirstPosition());
+        assertTrue(log.getFirstPosition() <= middle);
+        List<LogRecord> left = records(log);
+        assertContiguous(left);
+        long last = left.get(left.size() - 1).seq;
+        assertEquals(200, last);
+        log.close();
+
+        log = openLog(logDir);
+        assertEquals((long) deleted * SEGMENT, log.getFirstPosition());
+        assertEquals(201, log.append(LogRecordType.DEPOSIT, "alice", 201, 0, null));
+        assertContiguous(records(log));
+    }
+
+    // a record is 45 bytes + the username: 64-byte records fill a 4096-byte segment exactly
+    @Test
+    public void exactlyFilledSegmentSurvivesReopen() throws IOException {
+        assertNoRecordsLostAcrossReopen(19);
+    }
+
+    // 63-byte records leave 1 byte, too little for the end-of-segment marker
+    @Test
+    public void segmentWithoutRoomForMarkerSurvivesReopen() throws IOException {
+        assertNoRecordsLostAcrossReopen(18);
+    }
+
+    // 93-byte records leave 4 bytes: the marker is written but there is no room for a header
+    @Test
+    public void markerShorterThanHeaderSurvivesReopen() throws IOException {
+        assertNoRecordsLostAcrossReopen(48);
+    }
+
+    private void assertNoRecordsLostAcrossReopen(int usernameLength) throws IOException {
+        StringBuilder user = new StringBuilder();
+        while (user.length() < usernameLength) user.append('u');
+        File logDir = new File(dir, "txlog");
+        TransactionLog log = openLog(logDir);
+        for (int i = 1; i <= 100; i++)
+            log.append(LogRecordType.DEPOSIT, user.toString(), i, 0, null);
+        assertTrue(log.getCommittedPosition() > SEGMENT);
+        log.close();
+
+        log = openLog(logDir);
+        List<LogRecord> after = records(log);
+        assertEquals(100, after.size());
+        assertContiguous(after);
+        assertTrue(new File(logDir, "txlog-00000001.seg").exists());
+        assertEquals(101, log.append(LogRecordType.DEPOSIT, user.toString(), 101, 0, null));
+        log.close();
+
+        assertEquals(101, records(openLog(logDir)).size());
+    }
+
+    @Test
+    public void snapshotPlusTailAfterCrash() throws Exception {
+        LocalStore store = new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000);
+        TransactionLog log = store.log();
+        log.append(LogRecordType.OPEN, "alice", 1000, 1000, Credential.create(1111, 1).encode());
+        log.append(LogRecordType.OPEN, "bob", 500, 500, Credential.create(2222, 1).encode());
+        log.append(LogRecordType.DEPOSIT, "alice", 500, 1500, null);
+        store.snapshot();
+        log.append(LogRecordType.WITHDRAWAL, "alice", 200, 1300, null);
+        log.append(LogRecordType.DEPOSIT, "bob", 100, 600, null);
+        List<LogRecord> written = records(log);
+        log.force();
+        // no close(): the process died, the tail after the snapshot has to be replayed
+
+        AccountRegistry registry = new AccountRegistry();
+        LocalStore restarted = keep(new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000));
+        restarted.recover(registry);
+        assertEquals(1300, registry.get("alice").getAccount().getBalance());
+        assertEquals(600, registry.get("bob").getAccount().getBalance());
+        assertTrue(registry.get("alice").getCredential().verify(1111));
+
+        // and the same through the parallel warm start, with the last record torn
+        AccountRegistry warm = new AccountRegistry();
+        restarted.log().close();
+        open.remove(restarted);
+        corrupt(new File(dir, "txlog"), written.get(written.size() - 1).position);
+        LocalStore again = keep(new LocalStore(dir, FsyncPolicy.NEVER, 10, 3_600_000));
+        again.recoverParallel(warm, 2).done().get();
+        assertEquals(1300, warm.get("alice").getAccount().getBalance());
+        assertEquals(500, warm.get("bob").getAccount().getBalance());
+    }
+
+    @Test
+    public void readsVersion1Snapshot() throws IOException {
+        File file = new File(dir, "v1.bin");
+        writeSequential(file, 1, 77);
+        BalanceSnapshot snap = BalanceSnapshot.read(file);
+        assertNotNull(snap);
+        assertEquals(77, snap.logPosition);
+        assertEntries(snap);
+    }
+
+    @Test
+    public void readsVersion2Snapshot() throws IOException {
+        File file = new File(dir, "v2.bin");
+        writeSequential(file, 2, 78);
+        BalanceSnapshot snap = BalanceSnapshot.read(file);
+        assertNotNull(snap);
+        assertEquals(78, snap.logPosition);
+        assertEntries(snap);
+    }
+
+    @Test
+    public void readsVersion3Snapshot() throws IOException {
+        File file = new File(dir, "v3.bin");
+        writeVersion3(file, 79);
+        assertEquals(3, BalanceSnapshot.readVersion(file));
+        BalanceSnapshot snap = BalanceSnapshot.read(file);
+        assertNotNull(snap);
+        assertEquals(79, snap.logPosition);
+        assertEntries(snap);
+        assertEquals(0, snap.entries.get("alice").interestDay);
+    }
+
+    @Test
+    public void readsVersion4Snapshot() throws IOException {
+        Map<String, SnapshotEntry> entries = new LinkedHashMap<String, SnapshotEntry>();
+        SnapshotEntry alice = new SnapshotEntry("alice", Credential.create(1111, 1), AccountStatus.ACTIVE, 1000);
+        alice.interestDay = 19_000;
+        alice.carriedInterest = 42;
+        entries.put("alice", alice);
+        entries.put("bob", new SnapshotEntry("bob", Credential.create(2222, 1), AccountStatus.LOCKED, 250));
+        File file = new File(dir, "v4.bin");
+        new BalanceSnapshot(80, entries).write(file);
+
+        BalanceSnapshot snap = BalanceSnapshot.read(file);
+        assertNotNull(snap);
+        assertEquals(80, snap.logPosition);
+        assertEntries(snap);
+        assertEquals(19_000, snap.entries.get("alice").interestDay);
+        assertEquals(42, snap.entries.get("alice").carriedInterest);
+    }
+
+    @Test
+    public void corruptSnapshotIsRejected() throws IOException {
+        File file = new File(dir, "v2.bin");
+        writeSequential(file, 2, 78);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 12);
+            raf.write(0x5a);
+        } finally {
+            raf.close();
+        }
+        assertNull(BalanceSnapshot.read(file));
+    }
+
+    // ---- helpers ----
+
+    private TransactionLog openLog(File logDir) throws IOException {
+        return keep(TransactionLog.open(logDir, SEGMENT, FsyncPolicy.NEVER, 10));
+    }
+
+    private <T extends Closeable> T keep(T c) {
+        open.add(c);
+        return c;
+    }
+
+    private static List<LogRecord> records(TransactionLog log) {
+        final List<LogRecord> out = new ArrayList<LogRecord>();
+        log.scan(0, new TransactionLog.Visitor() {
+            public boolean visit(LogRecord r) {
+                LogRecord copy = new LogRecord();
+                copy.seq = r.seq;
+                copy.amount = r.amount;
+                copy.position = r.position;
+                out.add(copy);
+                return true;
+            }
+        });
+        return out;
+    }
+
+    private static List<Long> seqsOf(List<LogRecord> records) {
+        List<Long> out = new ArrayList<Long>();
+        for (LogRecord r : records) out.add(r.seq);
+        return out;
+    }
+
+    private static List<Long> seqs(long... seqs) {
+        List<Long> out = new ArrayList<Long>();
+        for (long s : seqs) out.add(s);
+        return out;
+    }
+
+    private static void assertContiguous(List<LogRecord> records) {
+        assertFalse(records.isEmpty());
+        for (int i = 1; i < records.size(); i++)
+            assertEquals(records.get(i - 1).seq + 1, records.get(i).seq);
+    }
+
+    // flips a payload byte of the record at a global log position so it fails its CRC
+    private static void corrupt(File logDir, long position) throws IOException {
+        File seg = new File(logDir, String.format("txlog-%08d.seg", (int) (position / SEGMENT)));
+        RandomAccessFile raf = new RandomAccessFile(seg, "rw");
+        try {
+            long at = position % SEGMENT + 8 + 10; // inside the timestamp
+            raf.seek(at);
+            int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertEntries(BalanceSnapshot snap) {
+        assertEquals(2, snap.entries.size());
+        SnapshotEntry alice = snap.entries.get("alice");
+        SnapshotEntry bob = snap.entries.get("bob");
+        assertEquals(1000, alice.balance);
+        assertEquals(AccountStatus.ACTIVE, alice.status);
+        assertTrue(alice.credential.verify(1111));
+        assertFalse(alice.credential.verify(1112));
+        assertEquals(250, bob.balance);
+        assertEquals(AccountStatus.LOCKED, bob.status);
+        assertTrue(bob.credential.verify(2222));
+    }
+
+    // versions 1 and 2: one stream with a trailing CRC; version 1 holds the plain PIN
+    private static void writeSequential(File file, int version, long logPosition) throws IOException {
+        CheckedOutputStream crcOut = new CheckedOutputStream(new FileOutputStream(file), new CRC32());
+        DataOutputStream out = new DataOutputStream(crcOut);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(version);
+            out.writeLong(logPosition);
+            out.writeInt(2);
+            writeSequentialEntry(out, version, "alice", 1111, AccountStatus.ACTIVE, 1000);
+            writeSequentialEntry(out, version, "bob", 2222, AccountStatus.LOCKED, 250);
+            out.flush();
+            out.writeLong(crcOut.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeSequentialEntry(DataOutputStream out, int version, String user, int pin,
+                                             AccountStatus status, long balance) throws IOException {
+        out.writeUTF(user);
+        if (version == 1) {
+            out.writeInt(pin);
+        } else {
+            byte[] encoded = Credential.create(pin, 1).encode();
+            out.writeShort(encoded.length);
+            out.write(encoded);
+        }
+        out.writeByte(status.ordinal());
+        out.writeLong(balance);
+    }
+
+    // version 3: partitioned like version 4 but without the interest fields; one partition
+    private static void writeVersion3(File file, long logPosition) throws IOException {
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(section);
+        writeVersion3Entry(out, "alice", 1111, AccountStatus.ACTIVE, 1000);
+        writeVersion3Entry(out, "bob", 2222, AccountStatus.LOCKED, 250);
+        out.flush();
+        byte[] body = section.toByteArray();
+        CRC32 sectionCrc = new CRC32();
+        sectionCrc.update(body);
+
+        int headerSize = 4 + 4 + 8 + 4 + (8 + 4 + 4 + 8) + 8;
+        ByteBuffer head = ByteBuffer.allocate(headerSize);
+        head.putInt(MAGIC).putInt(3).putLong(logPosition).putInt(1);
+        head.putLong(headerSize).putInt(body.length).putInt(2).putLong(sectionCrc.getValue());
+        CRC32 crc = new CRC32();
+        crc.update(head.array(), 0, headerSize - 8);
+        head.putLong(crc.getValue());
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(head.array());
+            fos.write(body);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeVersion3Entry(DataOutputStream out, String user, int pin, AccountStatus status,
+                                           long balance) throws IOException {
+        byte[] name = user.getBytes("UTF-8");
+        byte[] encoded = Credential.create(pin, 1).encode();
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeShort(encoded.length);
+        out.write(encoded);
+        out.writeByte(status.ordinal());
+        out.writeLong(balance);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children) delete(c);
+        f.delete();
+    }
+}